@@ -13,6 +13,9 @@ public interface BTListener
   public final static String EVENT_LEAVE = "leave";
   public final static String EVENT_RECEIVED = "received";
   public final static String EVENT_SENT = "sent";
+  // param2 is the FileTransfer. see NetLayer.sendFile()
+  public final static String EVENT_FILE_STARTED = "file started";
+  public final static String EVENT_FILE_FINISHED = "file finished";
 
 
   /**
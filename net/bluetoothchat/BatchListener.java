@@ -0,0 +1,19 @@
+package net.bluetoothchat;
+
+/**
+ * A BTListener that takes its events in batches.
+ * <p>Description: EventDispatcher hands a BatchListener all the events queued
+ * since its last call at once, so that e.g. a burst of messages is rendered with
+ * one repaint instead of one per message.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public interface BatchListener extends BTListener
+{
+  /**
+   * BlueChat network events, in the order they happened.
+   * @param events the events. the array is not used after the call
+   */
+  public void handleEvents( ChatEvent[] events );
+}
@@ -0,0 +1,603 @@
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import javax.bluetooth.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Transport implementation on top of JSR-82 bluetooth serial port profile.
+ * <p>Description: This class does the bluetooth specific work for NetLayer, including
+ * - initialize the local device and make it discoverable (init())
+ * - create a local BlueChat btspp server and register it with bluetooth (listen())
+ * - search for bluetooth devices and remote BlueChat services (discover())</p>
+ * <p>Discovery is a pipeline. Each device found by the inquiry is queued for a
+ * service search, and a BlueChat service is reported to NetLayer as soon as it is
+ * found, so the first peer can connect while other devices are still searched.
+ * Up to maxSearches searchServices transactions run at a time. With overlap set,
+ * searches start while the inquiry is still running; many stacks do not allow
+ * this, and if searchServices fails during the inquiry we fall back to waiting
+ * for the inquiry to complete. A device whose search cannot start for another
+ * reason, e.g. a busy stack, is queued once more behind the others, and counted
+ * as failed if it cannot start then either. A transaction that
+ * does not complete within searchTimeout ms is cancelled with cancelServiceSearch,
+ * so a lost callback cannot hang discovery. The N6600 cannot handle more than one
+ * service search at a time, which is why the default concurrency is 1. See
+ * getDiscoveryStats() for the time spent in each phase.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class BluetoothTransport implements Transport
+{
+  // BlueChat specific service UUID
+  // note: this UUID must be a string of 32 char
+  // do not use the 0x???? constructor because it won't
+  // work. not sure if it is a N6600 bug or not
+  private final static UUID uuid = new UUID("102030405060708090A0B0C0D0E0F010", false);
+
+  //
+  // major service class as SERVICE_TELEPHONY
+  private final static int SERVICE_TELEPHONY = 0x400000;
+
+  // default number of concurrent service searches
+  public final static int DEFAULT_MAX_SEARCHES = 1;
+  // default time in ms after which a service search is cancelled
+  public final static int DEFAULT_SEARCH_TIMEOUT = 15000;
+
+  // reference to local bluetooth device singleton
+  LocalDevice localDevice = null;
+  // reference to local discovery agent singleton
+  DiscoveryAgent agent = null;
+  // local BlueChat service server object
+  StreamConnectionNotifier server;
+
+  // receiver of discovery result. see discover()
+  TransportListener listener;
+
+  // max number of searchServices transactions running at the same time
+  int maxSearches;
+  // time in ms after which a searchServices transaction is cancelled
+  int searchTimeout;
+
+  // list of discovered devices waiting for service discovery. When all the near-by
+  // BlueChat service has been discovered, this list will be cleared until the
+  // next inquiry
+  Vector pendingDevices = new Vector();
+
+  // map searchServices transaction id (Integer) to running Search
+  Hashtable searches = new Hashtable();
+  // devices queued again after searchServices failed, see DoServiceDiscovery
+  Vector retriedDevices = new Vector();
+
+  // synchronization lock
+  // see DoServiceDiscovery and serviceSearchCompleted
+  Object lock = new Object();
+
+  // start service searches while the inquiry is running
+  boolean overlap;
+  // set by inquiryCompleted, no more devices will be found
+  boolean inquiryDone;
+
+  // timer to cancel service searches that take too long
+  Timer timeoutTimer = new Timer();
+
+  // time of each discovery phase, see getDiscoveryStats()
+  long inquiryStart;
+  long inquiryEnd;
+  long firstService;
+  long searchEnd;
+  int searchCount;
+  int timeoutCount;
+  // searches that could not be started, even when tried again
+  int failedCount;
+  long searchTimeTotal;
+  long searchTimeMax;
+
+  public BluetoothTransport()
+  {
+    this( DEFAULT_MAX_SEARCHES, DEFAULT_SEARCH_TIMEOUT, false );
+  }
+
+  /**
+   * @param maxSearches max number of concurrent service searches. this is
+   * further limited by the bluetooth.sd.trans.max property of the stack
+   * @param searchTimeout time in ms after which a service search is cancelled
+   * @param overlap true to search services while the inquiry is still running
+   */
+  public BluetoothTransport( int maxSearches, int searchTimeout, boolean overlap )
+  {
+    this.maxSearches = maxSearches;
+    this.searchTimeout = searchTimeout;
+    this.overlap = overlap;
+  }
+
+  public void init() throws IOException
+  {
+    //
+    // initialize the JABWT stack
+    localDevice = LocalDevice.getLocalDevice(); // obtain reference to singleton
+    localDevice.setDiscoverable(DiscoveryAgent.GIAC); // set Discover mode to GIAC
+    agent = localDevice.getDiscoveryAgent(); // obtain reference to singleton
+
+    // the stack may allow fewer concurrent service searches than we want
+    try {
+      int max = Integer.parseInt( LocalDevice.getProperty( "bluetooth.sd.trans.max" ) );
+      if ( max > 0 && max < maxSearches )
+        maxSearches = max;
+    }
+    catch (Exception ex) {
+      // property not available. keep our setting
+    }
+
+    // print local device information
+    Util.printLocalDevice( localDevice );
+  }
+
+  public void listen() throws IOException
+  {
+    // Create a server connection object, using a
+    // Serial Port Profile URL syntax and our specific UUID
+    // and set the service name to BlueChatApp
+    server =  (StreamConnectionNotifier)Connector.open(
+        "btspp://localhost:" + uuid.toString() +";name=BlueChatApp");
+
+    // Retrieve the service record template
+    ServiceRecord rec = localDevice.getRecord( server );
+
+    // set ServiceRecrod ServiceAvailability (0x0008) attribute to indicate our service is available
+    // 0xFF indicate fully available status
+    // This operation is optional
+    rec.setAttributeValue( 0x0008, new DataElement( DataElement.U_INT_1, 0xFF ) );
+
+    // Print the service record, which already contains
+    // some default values
+    Util.printServiceRecord( rec );
+
+    // Set the Major Service Classes flag in Bluetooth stack.
+    // We choose Object Transfer Service
+    rec.setDeviceServiceClasses(
+        SERVICE_TELEPHONY  );
+  }
+
+  public StreamConnection accept() throws IOException
+  {
+    return server.acceptAndOpen();
+  }
+
+  public StreamConnection connect( String url ) throws IOException
+  {
+    return (StreamConnection)Connector.open( url );
+  }
+
+  public void discover( TransportListener listener ) throws IOException
+  {
+    this.listener = listener;
+    // although JSR-82 provides the ability to lookup
+    // cached and preknown devices, we intentionally by-pass
+    // them and go to discovery mode directly.
+    // this allow us to retrieve the latest active BlueChat parties
+    inquiryStart = System.currentTimeMillis();
+    inquiryEnd = 0;
+    firstService = 0;
+    searchEnd = 0;
+    searchCount = 0;
+    timeoutCount = 0;
+    failedCount = 0;
+    searchTimeTotal = 0;
+    searchTimeMax = 0;
+    inquiryDone = false;
+    agent.startInquiry(DiscoveryAgent.GIAC, new Listener());
+
+    // search services on the devices as they are found
+    new Thread( new DoServiceDiscovery() ).start();
+  }
+
+  public String getRemoteAddress( StreamConnection c ) throws IOException
+  {
+    return RemoteDevice.getRemoteDevice( c ).getBluetoothAddress();
+  }
+
+  public String getRemoteName( StreamConnection c )
+  {
+    try {
+      return getFriendlyName( RemoteDevice.getRemoteDevice( c ) );
+    }
+    catch (IOException ex) {
+      return "Unknown";
+    }
+  }
+
+  public String getLocalAddress()
+  {
+    return localDevice.getBluetoothAddress();
+  }
+
+  public boolean isPollable()
+  {
+    // many JSR-82 stacks always return 0 from available() on
+    // RFCOMM streams, so we must block in read
+    return false;
+  }
+
+  public void close()
+  {
+    try {
+      // this close will interrupt server.acceptAndOpen()
+      // wake it up to exit
+      server.close();
+    }
+    catch (IOException ex) {
+    }
+  }
+
+  public RemoteDevice findDeviceByTransId( int id )
+  {
+    Search search = (Search) searches.get( new Integer( id ) );
+    return search != null ? search.device : null;
+  }
+
+  /**
+   * @return time spent in the inquiry and service search phases of the
+   * last discovery, e.g. "inquiry=10240ms firstService=10900ms search=3100ms
+   * searches=5 avg=620ms max=1800ms timeouts=0 failed=0". firstService is the time
+   * from the start of the inquiry to the first BlueChat service found, and
+   * search the time from the end of the inquiry to the last search completed
+   */
+  public String getDiscoveryStats()
+  {
+    long inquiry = inquiryEnd > 0 ? inquiryEnd - inquiryStart : 0;
+    long first = firstService > 0 ? firstService - inquiryStart : 0;
+    long search = searchEnd > 0 ? searchEnd - inquiryEnd : 0;
+    long avg = searchCount > 0 ? searchTimeTotal / searchCount : 0;
+    return "inquiry=" + inquiry + "ms firstService=" + first + "ms search=" + search + "ms searches=" + searchCount
+        + " avg=" + avg + "ms max=" + searchTimeMax + "ms timeouts=" + timeoutCount + " failed=" + failedCount;
+  }
+
+  /**
+   * A service search transaction is over, because the stack completed it or
+   * because it timed out. Let DoServiceDiscovery start the next search.
+   * @return false if the search was already finished
+   */
+  boolean finishSearch( int transId, boolean timedOut )
+  {
+    Search search;
+    synchronized( lock )
+    {
+      search = (Search) searches.remove( new Integer( transId ) );
+      if ( search == null )
+        return false;
+
+      search.timeout.cancel();
+      long time = System.currentTimeMillis() - search.start;
+      searchCount++;
+      searchTimeTotal += time;
+      if ( time > searchTimeMax )
+        searchTimeMax = time;
+      if ( timedOut )
+        timeoutCount++;
+      log("service search on " + getFriendlyName( search.device ) + " took " + time + "ms");
+
+      // unlock to proceed to service search on next device
+      // see DoServiceDiscovery.run()
+      lock.notifyAll();
+    }
+    return true;
+  }
+
+  private static String getFriendlyName( RemoteDevice rdev )
+  {
+    try {
+      // NOTE in 6600, this parameter must be false because
+      // according to some observation from other developer
+      // setting this to true mean the Bluetooth system need to make
+      // another connection to remote device, however, there is no available
+      // free connection, so it will give you exception
+      return rdev.getFriendlyName(false); // this is a temp name
+    }
+    catch (IOException ex) {
+      return "Unknown";
+    }
+  }
+
+  private static void log( String s)
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("BluetoothTransport: "+s);
+
+    // "B" means BluetoothTransport
+    if ( ChatMain.isDebug )
+      ChatMain.instance.gui_log( "B", s );
+
+  }
+
+
+  /**
+   * Internal discovery listener class for handling device & service discovery events.
+   * @author P Coder
+   * @version 1.0
+   */
+  class Listener implements DiscoveryListener
+  {
+
+    /**
+     * A device is discovered.
+     * Put the device on the pending list, where DoServiceDiscovery picks it
+     * up. With overlap set, its services are searched right away, while the
+     * inquiry goes on; without, once the inquiry completed.
+     *
+     * @param remoteDevice
+     * @param deviceClass
+     */
+    public void deviceDiscovered(RemoteDevice remoteDevice,
+                                 DeviceClass deviceClass)
+    {
+      log("invoke deviceDiscovered name=" + getFriendlyName( remoteDevice ));
+
+      // only device of SERVICE_OBJECT_TRANSFER will be considered as candidate device
+      // because in our BlueChat service, we explicitly set the service class to
+      // SERVICE_OBJECT_TRANSFER. see the listen() method
+//      if ( (deviceClass.getServiceClasses() & SERVICE_OBJECT_TRANSFER) != 0 )
+//      {
+        synchronized( lock )
+        {
+          // let DoServiceDiscovery search it right away
+          pendingDevices.addElement( remoteDevice );
+          lock.notifyAll();
+        }
+//      } else
+//      {
+//        log("found device that is not Object Transfer Service, ignore this device...");
+//      }
+    }
+
+    /**
+     * device discovery completed.
+     * Tell DoServiceDiscovery that no more devices will be found. Without
+     * overlap, this is when it starts to search services.
+     * @param transId
+     */
+    public void inquiryCompleted(int transId)
+    {
+      log( "invoke inqueryCompleted" );
+      synchronized( lock )
+      {
+        inquiryEnd = System.currentTimeMillis();
+        inquiryDone = true;
+        lock.notifyAll();
+      }
+    }
+
+    /**
+     * a service is discovered from a remote device.
+     * when a BlueChat service is discovered, it is reported to NetLayer
+     * right away, without waiting for the service search to complete.
+     * @param transId
+     * @param svcRec
+     */
+    public void servicesDiscovered(int transId, ServiceRecord[] svcRec)
+    {
+      log( "invoke servicesDiscovered:"+transId+","+svcRec.length);
+      try {
+
+        for ( int i=0; i< svcRec.length; i++ )
+        {
+          Util.printServiceRecord( svcRec[i] );
+
+
+          // the transaction id is registered while holding the lock.
+          // see DoServiceDiscovery.run()
+          RemoteDevice rdev;
+          synchronized( lock )
+          {
+            rdev = findDeviceByTransId( transId );
+            if ( rdev != null && firstService == 0 )
+              firstService = System.currentTimeMillis();
+          }
+          if ( rdev == null )
+          {
+            log("cannot find pending device when a service is discovered. ignore this service...");
+            continue;
+          }
+
+          // We make an assumption that the first service is BlueChat. In fact, only one
+          // service record will be found on each device.
+          // Note: we know the found service is BlueChat service because we search on specific UUID,
+          // this UUID is unique to us.
+          String url  = svcRec[i].getConnectionURL( ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false );
+          log("BlueChat service url="+url);
+
+          // let NetLayer establish the connection. NetLayer queues the
+          // connect, so this callback returns quickly
+          listener.peerDiscovered( rdev.getBluetoothAddress(), getFriendlyName( rdev ), url );
+
+        }
+
+      }
+      catch (Exception e) {
+        e.printStackTrace();
+        log(e.getClass().getName());
+        log(e.getMessage());
+
+      }
+    }
+
+    /**
+     * service discovery is completed.
+     * @param int0
+     * @param int1
+     */
+    public void serviceSearchCompleted(int transID, int respCode)
+    {
+      log("invoke serviceSearchCompleted: "+transID);
+      // print response code
+      if ( respCode == SERVICE_SEARCH_COMPLETED )
+        log("SERVICE_SEARCH_COMPLETED");
+      else if ( respCode == SERVICE_SEARCH_TERMINATED )
+        log("SERVICE_SEARCH_TERMINATED");
+      else if ( respCode == SERVICE_SEARCH_ERROR )
+        log("SERVICE_SEARCH_ERROR");
+      else if ( respCode == SERVICE_SEARCH_NO_RECORDS )
+        log("SERVICE_SEARCH_NO_RECORDS");
+      else if ( respCode == SERVICE_SEARCH_DEVICE_NOT_REACHABLE )
+        log("SERVICE_SEARCH_DEVICE_NOT_REACHABLE");
+
+
+      finishSearch( transID, false );
+    }
+
+  } // inner class Listener
+
+  /**
+   * a running searchServices transaction
+   */
+  static class Search
+  {
+    int transId;
+    RemoteDevice device;
+    long start;
+    // cancels the search when it takes too long
+    TimerTask timeout;
+  }
+
+  /**
+   * cancel a service search that did not complete in time. some stacks never
+   * call serviceSearchCompleted after a cancel, so the search is finished here
+   */
+  class SearchTimeout extends TimerTask
+  {
+    int transId;
+
+    SearchTimeout( int transId )
+    {
+      this.transId = transId;
+    }
+
+    public void run()
+    {
+      log("service search " + transId + " timed out");
+      agent.cancelServiceSearch( transId );
+      finishSearch( transId, true );
+    }
+  }
+
+  /**
+   * Search services on the devices as the inquiry finds them, with up to
+   * maxSearches searches at a time, until the inquiry is done and every
+   * device is searched.
+   */
+  class DoServiceDiscovery implements Runnable
+  {
+    // index of the next device in pendingDevices to search
+    private int next = 0;
+
+    public void run()
+    {
+      while ( true )
+      {
+        synchronized( lock )
+        {
+          while ( !canSearch() && !isFinished() )
+          {
+            try {
+              lock.wait();
+            }
+            catch (InterruptedException ex) {
+            }
+          }
+          if ( isFinished() )
+            break;
+
+          RemoteDevice rdev = (RemoteDevice) pendingDevices.elementAt( next++ );
+          search( rdev );
+        }
+      }
+
+      searchEnd = System.currentTimeMillis();
+      log( getDiscoveryStats() );
+
+      // no more service to discovery. so any pending devices
+      // will be ignored and removed
+      pendingDevices.removeAllElements();
+      retriedDevices.removeAllElements();
+
+      listener.discoveryCompleted();
+    }
+
+    /**
+     * @return true if a device is waiting and a search may start
+     */
+    private boolean canSearch()
+    {
+      return next < pendingDevices.size() && searches.size() < maxSearches
+          && ( overlap || inquiryDone );
+    }
+
+    /**
+     * @return true if the inquiry is done and all searches are completed
+     */
+    private boolean isFinished()
+    {
+      return inquiryDone && next >= pendingDevices.size() && searches.size() == 0;
+    }
+
+    /**
+     * start a service search on a device. called while holding the lock,
+     * so that a quick serviceSearchCompleted() cannot run before the
+     * transaction id is registered
+     */
+    private void search( RemoteDevice rdev )
+    {
+      try {
+        log("search service on device " + getFriendlyName( rdev ));
+
+        //
+        // searchServices return a transaction id, which we will used to
+        // identify which remote device the service is found in our callback
+        // listener (class Listener)
+        //
+        // note: in theory, only one runtine instance of Listener is needed
+        // to handle all discovery callback. however, there is a bug in rococo
+        // simualtor that cause callback fails with one instance of used
+        // so we make a new Listener for every searchServices()
+        Search search = new Search();
+        search.device = rdev;
+        search.start = System.currentTimeMillis();
+        search.transId = agent.searchServices(null // null to indicate retrieve default attributes
+                                             ,
+                                             new UUID[] { uuid }  // BlueChat service UUID SerialPort
+                                             ,
+                                             rdev,
+                                             new Listener());
+        search.timeout = new SearchTimeout( search.transId );
+        searches.put( new Integer( search.transId ), search );
+        timeoutTimer.schedule( search.timeout, searchTimeout );
+      }
+      catch (BluetoothStateException e) {
+        e.printStackTrace();
+        log(e.getClass().getName()+" "+e.getMessage());
+
+        if ( !inquiryDone && overlap )
+        {
+          // the stack cannot search while inquiring. try this device
+          // again once the inquiry is done
+          log("service search during inquiry failed, waiting for inquiry to complete");
+          overlap = false;
+          pendingDevices.addElement( rdev );
+        } else if ( !retriedDevices.contains( rdev ) )
+        {
+          // the stack may be busy, e.g. connecting. try this device
+          // once more, after the others
+          log("service search failed, trying again later");
+          retriedDevices.addElement( rdev );
+          pendingDevices.addElement( rdev );
+        } else
+        {
+          failedCount++;
+          log("service search on " + getFriendlyName( rdev ) + " failed again, device skipped");
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,197 @@
+package net.bluetoothchat;
+
+import java.util.*;
+
+/**
+ * Logical channels multiplexed over the link to one v2 EndPoint.
+ * <p>Description: A pair of nodes shares a single StreamConnection, and a
+ * piconet only has room for 7 active slaves, so a feature cannot open a link of
+ * its own. Instead, it opens a logical channel, see NetLayer.openChannel(), and
+ * sends SIGNAL_DATA frames that carry the channel number in their header
+ * (FrameCodec.FLAG_CHANNEL). Channel 0 is the implicit stream of the other
+ * signals.</p>
+ * <p>Each channel has its own credit based flow control. The receiver grants a
+ * limit: the sender may send frames on the channel up to that number. Opening a
+ * channel grants window frames to every peer; as the frames are delivered the
+ * receiver moves the limit on with SIGNAL_CREDIT. A frame carries its number
+ * within the channel (FrameCodec.FLAG_SEQ), so that a frame lost on the way, e.g.
+ * with a bad checksum, still counts and does not use up the credit for good.
+ * Credits are limits, not increments, so a lost SIGNAL_CREDIT is made up by the
+ * next one; an idle channel repeats its limit now and then, see
+ * NetLayer.HeartbeatTask.</p>
+ * <p>Frames without credit wait here, in a backlog per channel, and are only
+ * queued on the EndPoint when credit arrives. A busy or stalled channel thus
+ * never sits at the head of a PacketQueue lane in front of the other channels,
+ * and it holds at most its credit in the queue. When the backlog is full the
+ * oldest frame is thrown away.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class ChannelMux
+{
+  // the EndPoint whose link the channels share
+  private EndPoint endpt;
+  // map Integer channel to Channel
+  private Hashtable channels = new Hashtable();
+
+  public ChannelMux( EndPoint endpt )
+  {
+    this.endpt = endpt;
+  }
+
+  /**
+   * queue a SIGNAL_DATA packet on the EndPoint if the channel has credit,
+   * otherwise keep it until credit arrives
+   */
+  void put( ChatPacket p )
+  {
+    synchronized( this )
+    {
+      Channel c = get( p.channel );
+      if ( c.queued >= c.limit )
+      {
+        if ( c.backlog.size() >= endpt.btnet.channelBacklog )
+        {
+          c.backlog.removeElementAt( 0 );
+          c.dropCount++;
+        }
+        c.backlog.addElement( p );
+        return;
+      }
+      c.queued++;
+    }
+    endpt.putPacket( p );
+  }
+
+  /**
+   * the remote node granted credit. the frames waiting for it are queued
+   * @param limit number of frames the channel may have sent in total
+   */
+  void creditReceived( int channel, int limit )
+  {
+    Vector ready = new Vector();
+    synchronized( this )
+    {
+      Channel c = get( channel );
+      if ( limit <= c.limit )
+        return;
+      c.limit = limit;
+      while ( c.queued < c.limit && c.backlog.size() > 0 )
+      {
+        ready.addElement( c.backlog.elementAt( 0 ) );
+        c.backlog.removeElementAt( 0 );
+        c.queued++;
+      }
+    }
+    for ( int i=0; i < ready.size(); i++ )
+    {
+      endpt.putPacket( (ChatPacket) ready.elementAt( i ) );
+    }
+  }
+
+  /**
+   * a SIGNAL_DATA packet is about to be written
+   * @return its number within the channel
+   */
+  synchronized int nextSeq( int channel )
+  {
+    return get( channel ).sent++;
+  }
+
+  /**
+   * a SIGNAL_DATA frame arrived. the frames before it count as received,
+   * even if they were lost on the way
+   * @return the new limit to grant, or -1 if the last one is far enough ahead
+   */
+  synchronized int dataReceived( int channel, int seq )
+  {
+    Channel c = get( channel );
+    if ( seq >= c.received )
+      c.received = seq + 1;
+    int window = endpt.btnet.channelWindow;
+    // grant again when half of the window is used
+    if ( c.received + window - c.granted < ( window + 1 ) / 2 )
+      return -1;
+    return grant( c, window );
+  }
+
+  /**
+   * @return the limit to grant when a channel is opened, or repeated on an
+   * idle link, see NetLayer.HeartbeatTask
+   */
+  synchronized int grant( int channel )
+  {
+    return grant( get( channel ), endpt.btnet.channelWindow );
+  }
+
+  private int grant( Channel c, int window )
+  {
+    c.granted = c.received + window;
+    c.grantedAt = System.currentTimeMillis();
+    return c.granted;
+  }
+
+  /**
+   * @return time the last credit was granted on the channel, 0 if never
+   */
+  synchronized long getGrantedAt( int channel )
+  {
+    Channel c = (Channel) channels.get( new Integer( channel ) );
+    return c != null ? c.grantedAt : 0;
+  }
+
+  /**
+   * @return e.g. "channel 2 limit=40 sent=36 backlog=0 drops=0 received=12"
+   * for each channel used
+   */
+  public synchronized String getStats()
+  {
+    StringBuffer sb = new StringBuffer();
+    for ( Enumeration e = channels.elements(); e.hasMoreElements(); )
+    {
+      Channel c = (Channel) e.nextElement();
+      if ( sb.length() > 0 )
+        sb.append( ", " );
+      sb.append( "channel " ).append( c.id ).append( " limit=" ).append( c.limit )
+        .append( " sent=" ).append( c.queued ).append( " backlog=" ).append( c.backlog.size() )
+        .append( " drops=" ).append( c.dropCount ).append( " received=" ).append( c.received );
+    }
+    return sb.toString();
+  }
+
+  private Channel get( int channel )
+  {
+    Integer key = new Integer( channel );
+    Channel c = (Channel) channels.get( key );
+    if ( c == null )
+    {
+      c = new Channel();
+      c.id = channel;
+      channels.put( key, c );
+    }
+    return c;
+  }
+
+  /**
+   * the state of one channel, in both directions
+   */
+  static class Channel
+  {
+    int id;
+
+    // send side: the limit granted by the remote node, the frames queued
+    // on the EndPoint and written so far, and the frames waiting for credit
+    int limit;
+    int queued;
+    int sent;
+    Vector backlog = new Vector();
+    int dropCount;
+
+    // receive side: one more than the highest frame number that arrived,
+    // the limit we granted and when
+    int received;
+    int granted;
+    long grantedAt;
+  }
+}
@@ -0,0 +1,61 @@
+package net.bluetoothchat;
+
+/**
+ * A BTListener event queued by EventDispatcher.
+ * <p>Description: The action string of BTListener.handleAction() is turned into
+ * one of the TYPE_XXX numbers when the event is queued, so that a listener can
+ * switch on it instead of comparing strings.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class ChatEvent
+{
+  public final static int TYPE_JOIN = 0;
+  public final static int TYPE_LEAVE = 1;
+  public final static int TYPE_RECEIVED = 2;
+  public final static int TYPE_SENT = 3;
+  public final static int TYPE_FILE_STARTED = 4;
+  public final static int TYPE_FILE_FINISHED = 5;
+  // an action this class does not know
+  public final static int TYPE_OTHER = 6;
+
+  private final static String[] ACTIONS = {
+      BTListener.EVENT_JOIN, BTListener.EVENT_LEAVE, BTListener.EVENT_RECEIVED,
+      BTListener.EVENT_SENT, BTListener.EVENT_FILE_STARTED, BTListener.EVENT_FILE_FINISHED };
+
+  // one of TYPE_XXX
+  public int type;
+  // the BTListener.EVENT_XXX it was made of
+  public String action;
+  // usually the EndPoint, and the argument of the action. see BTListener
+  public Object param1;
+  public Object param2;
+
+  public ChatEvent( String action, Object param1, Object param2 )
+  {
+    this.type = typeOf( action );
+    this.action = action;
+    this.param1 = param1;
+    this.param2 = param2;
+  }
+
+  /**
+   * @return the TYPE_XXX of a BTListener.EVENT_XXX
+   */
+  public static int typeOf( String action )
+  {
+    // the actions are passed as the constants, so they are the same objects
+    for ( int i=0; i < ACTIONS.length; i++ )
+    {
+      if ( ACTIONS[i] == action )
+        return i;
+    }
+    for ( int i=0; i < ACTIONS.length; i++ )
+    {
+      if ( ACTIONS[i].equals( action ) )
+        return i;
+    }
+    return TYPE_OTHER;
+  }
+}
@@ -11,7 +11,7 @@ import javax.microedition.lcdui.*;
  * @author P Coder
  * @version 1.0
  */
-public class ChatMain extends MIDlet implements BTListener, CommandListener {
+public class ChatMain extends MIDlet implements BatchListener, CommandListener {
     // shared static variables
 
     public static ChatMain instance;
@@ -19,13 +19,22 @@ public class ChatMain extends MIDlet implements BTListener, CommandListener {
 
     // debug flag
     public static boolean isDebug = false;
+    // console logging flag. turn off when many nodes run in one VM,
+    // e.g. in SimBench
+    public static boolean isLogging = true;
 
     // Chat app GUI components
     public InputUI inputui;
     public MessageUI messageui;
     public NameUI nameui;
+    public RoomUI roomui;
     // Bluetooth network layer for BlueChat app
     public NetLayer btnet;
+    // calls handleEvents() on a thread of its own, so that the screen does
+    // not hold up the links
+    public EventDispatcher dispatcher;
+    // room the entered messages go to, null for everyone
+    public String currentRoom;
 
     /** Constructor */
     public ChatMain() {
@@ -43,6 +52,7 @@ public class ChatMain extends MIDlet implements BTListener, CommandListener {
         inputui = new InputUI();
         messageui = new MessageUI();
         nameui = new NameUI();
+        roomui = new RoomUI();
         display.setCurrent(nameui);
 
     }
@@ -75,40 +85,70 @@ public class ChatMain extends MIDlet implements BTListener, CommandListener {
      * @param param2 parameter 2 is usually the argument of the action
      */
     public void handleAction(String event, Object param1, Object param2) {
-        log("invoke handleAction. action=" + event);
-
-        if (event.equals(BTListener.EVENT_JOIN)) {
-            // a new user has join the chat room
-            EndPoint endpt = (EndPoint) param1;
-            String msg = endpt.remoteName + " joins the chat room";
-            ChatPacket packet = new ChatPacket(NetLayer.SIGNAL_HANDSHAKE, endpt.remoteName, msg);
-
-            // display the join message on screen
-            messageui.msgs.addElement(packet);
-            messageui.repaint();
-
-        } else if (event.equals(BTListener.EVENT_SENT)) {
-            // nothing to do
-        } else if (event.equals(BTListener.EVENT_RECEIVED)) {
-            // a new message has received from a remote user
-            EndPoint endpt = (EndPoint) param1;
-            ChatPacket msg = (ChatPacket) param2;
-            // render this message on screen
-            messageui.msgs.addElement(msg);
-            messageui.repaint();
+        handleEvents(new ChatEvent[] { new ChatEvent(event, param1, param2) });
+    }
 
-        } else if (event.equals(BTListener.EVENT_LEAVE)) {
-            // a user has leave the chat room
-            EndPoint endpt = (EndPoint) param1;
-            String msg = endpt.remoteName + " leaves the chat room";
-            ChatPacket packet = new ChatPacket(NetLayer.SIGNAL_TERMINATE, endpt.remoteName, msg);
-            // display the leave message on screen
-            messageui.msgs.addElement(packet);
+    /**
+     * Handle a batch of events from Bluetooth Network layer, queued by the
+     * EventDispatcher while the screen was busy. The message screen is
+     * repainted once for the whole batch.
+     * @param events the events, in the order they happened
+     */
+    public void handleEvents(ChatEvent[] events) {
+        log("invoke handleEvents. events=" + events.length);
+
+        boolean changed = false;
+        for (int i = 0; i < events.length; i++) {
+            ChatEvent e = events[i];
+            ChatPacket packet = null;
+            switch (e.type) {
+                case ChatEvent.TYPE_JOIN: {
+                    // a new user has join the chat room
+                    EndPoint endpt = (EndPoint) e.param1;
+                    String msg = endpt.remoteName + " joins the chat room";
+                    packet = new ChatPacket(NetLayer.SIGNAL_HANDSHAKE, endpt.remoteName, msg);
+                    break;
+                }
+                case ChatEvent.TYPE_RECEIVED:
+                    // a new message has received from a remote user
+                    packet = (ChatPacket) e.param2;
+                    break;
+
+                case ChatEvent.TYPE_LEAVE: {
+                    // a user has leave the chat room
+                    EndPoint endpt = (EndPoint) e.param1;
+                    String msg = endpt.remoteName + " leaves the chat room";
+                    packet = new ChatPacket(NetLayer.SIGNAL_TERMINATE, endpt.remoteName, msg);
+                    break;
+                }
+                case ChatEvent.TYPE_FILE_STARTED:
+                case ChatEvent.TYPE_FILE_FINISHED: {
+                    // a file transfer has started, completed or failed
+                    FileTransfer t = (FileTransfer) e.param2;
+                    String msg;
+                    if (e.type == ChatEvent.TYPE_FILE_STARTED) {
+                        msg = "sends file " + t.getName() + " (" + t.getSize() + " bytes)";
+                    } else if (t.getState() == FileTransfer.STATE_DONE) {
+                        msg = (t.isIncoming() ? "sent file " : "received file ") + t.getName();
+                    } else {
+                        msg = "file " + t.getName() + " failed, " + t.getError();
+                    }
+                    packet = new ChatPacket(NetLayer.SIGNAL_HANDSHAKE, t.getRemoteName(), msg);
+                    break;
+                }
+                default:
+                    // nothing to do, e.g. for SENT
+                    break;
+            }
+            if (packet != null) {
+                // display the message on screen
+                messageui.msgs.addElement(packet);
+                changed = true;
+            }
+        }
+        if (changed) {
             messageui.repaint();
-
-
         }
-
     }
 
     /**
@@ -120,12 +160,14 @@ public class ChatMain extends MIDlet implements BTListener, CommandListener {
         log("invoke commandAction. command=" + c.getLabel());
         if (d == inputui && c.getLabel().equals("Send")) {
             String msg = inputui.getString();
-            // send the message to all connected BlueChat remote EndPoints
-            btnet.sendString(msg);
+            // send the message to all connected BlueChat remote EndPoints,
+            // or to the ones in the current room
+            btnet.sendString(currentRoom, msg);
 
             // update the message screen to reflect the entered message.
             // create a dummy packet object to hold the entered message.
             ChatPacket packet = new ChatPacket(NetLayer.SIGNAL_MESSAGE, btnet.localName, msg);
+            packet.room = currentRoom;
             messageui.msgs.addElement(packet);
             display.setCurrent(messageui);
             messageui.repaint();
@@ -140,11 +182,21 @@ public class ChatMain extends MIDlet implements BTListener, CommandListener {
             // user enters virtual chat room.
             // create and initialize Bluetooth network layer
             btnet = new NetLayer();
+            // remember peers between runs, so we can connect to them right away
+            btnet.setPeerCache( new PeerCache( "BlueChatPeers", PeerCache.DEFAULT_TTL ) );
+            // pass messages on to the nodes of other piconets in range
+            btnet.setRelay(NetLayer.DEFAULT_RELAY_HOPS, NetLayer.DEFAULT_SEEN_MAX, NetLayer.DEFAULT_SEEN_TTL);
+            // receive files into the private directory, if the device has a file system
+            String dir = System.getProperty("fileconn.dir.private");
+            if (dir != null) {
+                btnet.setTransferStore(new FileConnectionStore(dir));
+            }
             String localName = nameui.text.getString();
             log("set local nick name to " + localName);
 
             // initialize the network layer. This will start the local BlueChat server
-            btnet.init(localName, this);
+            dispatcher = new EventDispatcher(this);
+            btnet.init(localName, dispatcher);
 
             // search for existing BlueChat nodes
             btnet.query();
@@ -161,6 +213,37 @@ public class ChatMain extends MIDlet implements BTListener, CommandListener {
             display.setCurrent(inputui);
             inputui.showUI(); // clear the input text field
 
+        } else if (d == messageui && c.getLabel().equals("Rooms")) {
+            // enter room screen
+            display.setCurrent(roomui);
+            roomui.showUI(btnet.getRooms(), currentRoom);
+
+        } else if (d == roomui && c.getLabel().equals("Join")) {
+            // join the room, and send the entered messages to it
+            String room = roomui.text.getString();
+            if (room.length() > 0) {
+                btnet.joinRoom(room);
+                currentRoom = room;
+            }
+            display.setCurrent(messageui);
+            messageui.repaint();
+
+        } else if (d == roomui && c.getLabel().equals("Leave")) {
+            String room = roomui.text.getString();
+            btnet.leaveRoom(room);
+            if (room.equals(currentRoom)) {
+                currentRoom = null;
+            }
+            display.setCurrent(messageui);
+
+        } else if (d == roomui && c.getLabel().equals("Everyone")) {
+            // stay in the rooms, but send the entered messages to everyone
+            currentRoom = null;
+            display.setCurrent(messageui);
+
+        } else if (d == roomui && c.getLabel().equals("Back")) {
+            display.setCurrent(messageui);
+
         } else if (d == messageui && c.getLabel().equals("Clear")) {
             // clear the history of message and refresh the message screen
             messageui.msgs.removeAllElements();
@@ -172,6 +255,7 @@ public class ChatMain extends MIDlet implements BTListener, CommandListener {
             // remote EndPoints, wait for the TERMINATE_ACK signal, and
             // disconnect all connections.
             btnet.disconnect();
+            dispatcher.stop();
             quitApp();
 
         } else if (d == inputui && c.getLabel().equals("Erase")) {
@@ -202,7 +286,9 @@ public class ChatMain extends MIDlet implements BTListener, CommandListener {
     }
 
     private static void log(String s) {
-        System.out.println("ChatMain: " + s);
+        if (ChatMain.isLogging) {
+            System.out.println("ChatMain: " + s);
+        }
 
         // "M" means Main class
         if (ChatMain.isDebug) {
@@ -1,5 +1,7 @@
 package net.bluetoothchat;
 
+import java.io.*;
+
 /**
  * A holder object for BlueChat network packet data.
  * <p>Description: ChatPacket can represent severl type of message, which is defined
@@ -18,6 +20,34 @@ public class ChatPacket
   public String sender;
   // the message content
   public String msg;
+  // the raw payload of a v2 frame. see FrameCodec
+  public byte[] data;
+  // sequence number of a received frame, -1 if it had none. see ReliableChannel
+  public int seq = -1;
+  // logical channel, 0 for the implicit stream. see ChannelMux
+  public int channel = 0;
+  // chat room of a message, null for a message to everyone. see RoomIndex
+  public String room;
+  // remote addresses a message was sent to, null for a message to everyone
+  // in the room. see NetLayer.sendTo()
+  public String[] to;
+  // remote address of the node a received message came from, or of the
+  // node that sent it first if it was relayed
+  public String from;
+  // id of a relayed message, 0 if it has none, and the number of links it
+  // may still travel. see NetLayer.setRelay()
+  public long id;
+  public int hops;
+
+  // cached v1 and v2 frame encoding of this packet, shared by all
+  // EndPoints the packet is queued on. see FrameCodec.encode()
+  byte[] frameV1;
+  byte[] frameV2;
+  boolean frameV2Crc;
+  // cached v2 frame of a chat message without its sequence number, see
+  // FrameCodec.encodeTemplate()
+  byte[] frameSeq;
+  boolean frameSeqCrc;
 
   public ChatPacket(int signal, String msg)
   {
@@ -36,4 +66,38 @@ public class ChatPacket
   {
   }
 
+  /**
+   * @return the message content, decoded from the raw payload if needed
+   */
+  public String getMsg()
+  {
+    if ( msg == null && data != null )
+    {
+      try {
+        msg = new String( data, "UTF-8" );
+      }
+      catch (UnsupportedEncodingException ex) {
+        msg = new String( data );
+      }
+    }
+    return msg;
+  }
+
+  /**
+   * @return the raw payload, encoded from the message content if needed
+   */
+  public byte[] getData()
+  {
+    if ( data == null && msg != null )
+    {
+      try {
+        data = msg.getBytes( "UTF-8" );
+      }
+      catch (UnsupportedEncodingException ex) {
+        data = msg.getBytes();
+      }
+    }
+    return data;
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package net.bluetoothchat;
+
+/**
+ * CRC-32C (Castagnoli) checksum.
+ * <p>Description: Table driven implementation used to protect v2 frames,
+ * see FrameCodec. CLDC has no java.util.zip, so we carry our own.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class Crc32c
+{
+  // reflected Castagnoli polynomial
+  private final static int POLY = 0x82F63B78;
+
+  private final static int[] table = new int[256];
+
+  static
+  {
+    for ( int i=0; i < 256; i++ )
+    {
+      int c = i;
+      for ( int k=0; k < 8; k++ )
+      {
+        c = ( c & 1 ) != 0 ? ( c >>> 1 ) ^ POLY : c >>> 1;
+      }
+      table[i] = c;
+    }
+  }
+
+  private Crc32c()
+  {
+  }
+
+  /**
+   * @return the checksum of a byte range
+   */
+  public static int compute( byte[] b, int off, int len )
+  {
+    return update( 0, b, off, len );
+  }
+
+  /**
+   * continue a checksum with more bytes
+   * @param crc checksum of the previous bytes, 0 to start
+   */
+  public static int update( int crc, byte[] b, int off, int len )
+  {
+    int c = ~crc;
+    for ( int i=off; i < off + len; i++ )
+    {
+      c = table[( c ^ b[i] ) & 0xFF] ^ ( c >>> 8 );
+    }
+    return ~c;
+  }
+}
@@ -1,116 +1,422 @@
-package net.bluetoothchat;
-import javax.bluetooth.*;
-import javax.microedition.io.*;
-import java.io.*;
-import java.util.*;
-
-
-/**
- * A EndPoint object represent all the connection attribute of an active BlueChat node.
- * <p>Description: </p>
- * <p>Copyright: Copyright (c) 2009</p>
- * @author P Coder
- * @version 1.0
- */
-public class EndPoint
-{
-  // remote device object
-  RemoteDevice remoteDev;
-  // remote device class
-  DeviceClass remoteClass;
-  // remote service URL
-  String remoteUrl;
-  // connection to remote service
-  StreamConnection con;
-  // bluetooth discovery transId, obtainsed from searchServices
-  int transId = -1; // -1 must be used for default. cannot use 0
-
-  // sender thread
-  Sender sender;
-  // reader thread
-  Reader reader;
-
-  // local user nick name
-  String localName;
-  // remote user nick name
-  String remoteName;
-
-  // BTListener implementation for callback NetLayer event
-  BTListener callback;
-
-  // reference to NetLayer
-  NetLayer btnet;
-
-  // vector of ChatPacket pending to be sent to remote service.
-  // when message is sent, it is removed from the vector.
-  Vector msgs = new Vector();
-
-  public EndPoint( NetLayer btnet, RemoteDevice rdev, StreamConnection c )
-  {
-    this.btnet = btnet;
-
-    remoteDev = rdev;
-
-    try {
-      // NOTE in 6600, this parameter must be false because
-      // according to some observation from other developer
-      // setting this to true mean the Bluetooth system need to make
-      // another connection to remote device, however, there is no available
-      // free connection, so it will give you exception
-      remoteName = rdev.getFriendlyName(false); // this is a temp name
-    }
-    catch (IOException ex) {
-      remoteName = "Unknown";
-      // ignore
-    }
-    localName = btnet.localName;
-    callback = btnet.callback;
-    con = c;
-
-    sender = new Sender();
-    sender.endpt = this;
-
-    reader = new Reader();
-    reader.endpt = this;
-
-
-  }
-
-  public synchronized void putString( int signal, String s )
-  {
-    log("invoke putString "+signal+" "+s);
-    // put the message on the queue, pending to be sent by Sender thread
-    msgs.addElement( new ChatPacket( signal, s ) );
-    synchronized( sender )
-    {
-      // tell sender that there is a message pending to be sent
-      sender.notify();
-    }
-  }
-
-  public synchronized ChatPacket getString()
-  {
-//    log("invoke getString()");
-    if ( msgs.size() > 0 )
-    {
-      // if there are message pending, return it and remove it from the vector
-      ChatPacket s = (ChatPacket) msgs.firstElement();
-      msgs.removeElementAt(0);
-      return s;
-    } else
-    {
-      // if there is no message pending. return null
-      return null;
-    }
-  }
-
-  public synchronized boolean peekString()
-  {
-    return ( msgs.size() > 0 );
-  }
-
-  private static void log( String s )
-  {
-    System.out.println("EndPoint: "+s);
-  }
+package net.bluetoothchat;
+import javax.microedition.io.*;
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * A EndPoint object represent all the connection attribute of an active BlueChat node.
+ * <p>Description: </p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class EndPoint
+{
+  // unique address of the remote node, as reported by Transport
+  String remoteAddress;
+  // remote service URL
+  String remoteUrl;
+  // true if we opened the link, false if the remote node did
+  boolean outbound;
+  // connection to remote service
+  StreamConnection con;
+
+  // sender thread
+  Sender sender;
+  // reader thread
+  Reader reader;
+  // PollingEngine worker servicing this EndPoint, null when
+  // sender and reader run in their own threads
+  PollingEngine.Worker worker;
+
+  // local user nick name
+  String localName;
+  // remote user nick name
+  String remoteName;
+  // wire protocol version used to send to the remote node. starts at 1
+  // and is raised when the remote node announces SIGNAL_VERSION
+  int remoteVersion = 1;
+
+  // time a frame was last received and last sent, and the time a chat
+  // message was last received or sent. see NetLayer.HeartbeatTask
+  long lastReceived;
+  long lastSent;
+  long lastActivity;
+
+  // sequence numbers and ACKs of chat messages, used with v2 nodes
+  ReliableChannel channel = new ReliableChannel();
+  // an ACK is queued and not sent yet
+  private boolean ackQueued = false;
+
+  // session id of the remote node, see NetLayer.sessionReceived()
+  long remoteSession = 0;
+  // the SESSION frame of the remote node has arrived. chat messages to
+  // v2 nodes are held until then, since it decides their sequence numbers
+  boolean sessionReady = false;
+  // state kept from an earlier link to the same node, see getResumed()
+  NetLayer.RetainedSession resumed = null;
+  private boolean resumeChecked = false;
+  private boolean sessionSent = false;
+
+  // the chat rooms the remote node announced, see RoomIndex
+  String[] rooms = new String[0];
+
+  // logical channels sharing this link, see ChannelMux
+  ChannelMux mux = new ChannelMux( this );
+
+  // BTListener implementation for callback NetLayer event
+  BTListener callback;
+
+  // reference to NetLayer
+  NetLayer btnet;
+
+  // queue of ChatPacket pending to be sent to remote service.
+  // when message is sent, it is removed from the queue.
+  // see NetLayer.setQueueLimit()
+  PacketQueue msgs;
+
+  public EndPoint( NetLayer btnet, String address, String name, StreamConnection c )
+  {
+    this.btnet = btnet;
+
+    remoteAddress = address;
+    remoteName = name; // this is a temp name until handshake
+    localName = btnet.localName;
+    callback = btnet.callback;
+    con = c;
+    lastReceived = lastSent = lastActivity = System.currentTimeMillis();
+    msgs = new PacketQueue( btnet.queueCapacity, btnet.queuePolicy );
+    msgs.setScheduling( btnet.scheduling, btnet.chatWeight, btnet.bulkWeight );
+
+    sender = new Sender();
+    sender.endpt = this;
+
+    reader = new Reader();
+    reader.endpt = this;
+
+
+  }
+
+  public void putString( int signal, String s )
+  {
+    log("invoke putString "+signal+" "+s);
+    putPacket( new ChatPacket( signal, s ) );
+  }
+
+  /**
+   * queue a packet to be sent. the same packet may be queued on several
+   * EndPoints, and must not be changed afterwards.
+   */
+  public void putPacket( ChatPacket packet )
+  {
+    putPacket( packet, true );
+  }
+
+  /**
+   * queue a packet without waiting for room when the queue is full, e.g. a
+   * message relayed by a Reader. see PacketQueue.put( ChatPacket, boolean )
+   */
+  void offerPacket( ChatPacket packet )
+  {
+    putPacket( packet, false );
+  }
+
+  private void putPacket( ChatPacket packet, boolean wait )
+  {
+    // put the message on the queue, pending to be sent by Sender thread.
+    // this also wakes up the Sender if it is waiting for a message
+    if ( !msgs.put( packet, wait ) )
+    {
+      // queue is full, or we are closing
+      if ( msgs.getPolicy() == PacketQueue.POLICY_DISCONNECT )
+        btnet.dropEndPoint( this, "queue full" );
+      return;
+    }
+    if ( worker != null )
+    {
+      // same for the PollingEngine worker, if we are serviced by one
+      worker.wakeup();
+    }
+  }
+
+  /**
+   * tell the remote node that we speak v2 frames. v1 nodes ignore this.
+   * see FrameCodec
+   */
+  public void announceVersion()
+  {
+    if ( btnet.protocolVersion >= 2 )
+      putString( NetLayer.SIGNAL_VERSION, "" );
+  }
+
+  /**
+   * tell a v2 node our session id and, if we kept the state of an earlier
+   * link to it, the session id we knew it by and the next sequence number we
+   * expect from it. the frame goes ahead of the queued messages, since they
+   * may wait for the answer. only sent once. see NetLayer.sessionReceived()
+   */
+  void sendSession() throws IOException
+  {
+    synchronized( this )
+    {
+      if ( sessionSent )
+        return;
+      sessionSent = true;
+    }
+    NetLayer.RetainedSession r = getResumed();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bout );
+    out.writeLong( btnet.sessionId );
+    out.writeLong( r != null ? r.remoteSession : 0 );
+    out.writeInt( r != null ? r.channel.getExpected() : 0 );
+
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_SESSION, null );
+    packet.data = bout.toByteArray();
+    if ( !msgs.putFirst( packet ) )
+      return;
+    // our rooms go ahead of it, so that the remote node knows them before
+    // any message flows
+    if ( btnet.rooms.size() > 0 )
+      putRooms( true );
+    if ( worker != null )
+      worker.wakeup();
+  }
+
+  /**
+   * @return the state kept from an earlier link to the remote node, or null.
+   * it is taken from NetLayer on the first call, which is either when we send
+   * our SESSION frame or when the remote one arrives, whichever comes first
+   */
+  synchronized NetLayer.RetainedSession getResumed()
+  {
+    if ( !resumeChecked )
+    {
+      resumed = btnet.takeSession( remoteAddress );
+      resumeChecked = true;
+    }
+    return resumed;
+  }
+
+  /**
+   * a message with a sequence number arrived. queue an ACK, unless one is
+   * queued already; it will cover this message as well
+   */
+  void requestAck()
+  {
+    synchronized( this )
+    {
+      if ( ackQueued )
+        return;
+      ackQueued = true;
+    }
+    // ahead of everything else, so that a full window cannot hold it up
+    if ( !msgs.putFirst( new ChatPacket( NetLayer.SIGNAL_ACK, null ) ) )
+      return;
+    if ( worker != null )
+      worker.wakeup();
+  }
+
+  /**
+   * @return the body of an ACK frame: the next expected sequence number and
+   * the selective ACK bitmap. called when the ACK is sent
+   */
+  byte[] ackBody() throws IOException
+  {
+    synchronized( this )
+    {
+      ackQueued = false;
+    }
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bout );
+    out.writeInt( channel.getExpected() );
+    out.writeLong( channel.getSack() );
+    return bout.toByteArray();
+  }
+
+  /**
+   * an ACK arrived. send the lost messages again, and let the Sender
+   * use the room in the window
+   */
+  void ackReceived( int cum, long sack )
+  {
+    Vector lost = channel.ackReceived( cum, sack );
+    for ( int i = lost.size() - 1; i >= 0; i-- )
+    {
+      // the link is closing, the messages are dropped with it
+      if ( !msgs.putFirst( (ChatPacket) lost.elementAt( i ) ) )
+        return;
+    }
+    msgs.signal();
+    if ( worker != null )
+      worker.wakeup();
+  }
+
+  /**
+   * tell the remote node the rooms we are in. see NetLayer.joinRoom()
+   * @param first true to put the frame ahead of the queued ones
+   */
+  void putRooms( boolean first )
+  {
+    String[] names = btnet.getRooms();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bout );
+    try {
+      out.writeShort( names.length );
+      for ( int i=0; i < names.length; i++ )
+      {
+        out.writeUTF( names[i] );
+      }
+    }
+    catch (IOException ex) {
+      // cannot happen with a ByteArrayOutputStream
+    }
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_ROOMS, null );
+    packet.data = bout.toByteArray();
+    if ( first )
+      msgs.putFirst( packet );
+    else
+      putPacket( packet );
+  }
+
+  /**
+   * send a list of message ids, SIGNAL_DIGEST or SIGNAL_PULL. see
+   * NetLayer.setGossip()
+   */
+  void putIds( int signal, long[] ids )
+  {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bout );
+    try {
+      out.writeShort( ids.length );
+      for ( int i=0; i < ids.length; i++ )
+      {
+        out.writeLong( ids[i] );
+      }
+    }
+    catch (IOException ex) {
+      // cannot happen with a ByteArrayOutputStream
+    }
+    ChatPacket packet = new ChatPacket( signal, null );
+    packet.data = bout.toByteArray();
+    putPacket( packet );
+  }
+
+  /**
+   * send a SIGNAL_DATA packet on its logical channel, as soon as the remote
+   * node grants credit for it. see ChannelMux
+   */
+  public void putData( ChatPacket packet )
+  {
+    mux.put( packet );
+  }
+
+  /**
+   * grant the remote node credit on a logical channel
+   * @param limit number of frames it may have sent on the channel in total
+   */
+  void putCredit( int channel, int limit )
+  {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bout );
+    try {
+      out.writeShort( channel );
+      out.writeInt( limit );
+    }
+    catch (IOException ex) {
+      // cannot happen with a ByteArrayOutputStream
+    }
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_CREDIT, null );
+    packet.data = bout.toByteArray();
+    putPacket( packet );
+  }
+
+  /**
+   * answer a file offer or chunk with the offset received so far. see
+   * FileTransfer
+   * @param offset -1 to refuse the file
+   * @param resend true to ask for the chunks from offset on
+   */
+  void putFileAck( int id, long offset, boolean resend )
+  {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bout );
+    try {
+      out.writeInt( id );
+      out.writeLong( offset );
+      out.writeByte( resend ? FileTransfer.ACK_RESEND : 0 );
+    }
+    catch (IOException ex) {
+      // cannot happen with a ByteArrayOutputStream
+    }
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_FILE_ACK, null );
+    packet.data = bout.toByteArray();
+    putPacket( packet );
+  }
+
+  /**
+   * @return credit and backlog of each logical channel, see ChannelMux.getStats()
+   */
+  public String getChannelStats()
+  {
+    return mux.getStats();
+  }
+
+  /**
+   * @return window and retransmission counters, see ReliableChannel.getStats()
+   */
+  public String getDeliveryStats()
+  {
+    return channel.getStats();
+  }
+
+  public ChatPacket getString()
+  {
+    // if there is no message pending. return null
+    return msgs.poll();
+  }
+
+  public boolean peekString()
+  {
+    return !msgs.isEmpty();
+  }
+
+  /**
+   * @return number of packets waiting to be sent
+   */
+  public int getQueueDepth()
+  {
+    return msgs.size();
+  }
+
+  /**
+   * @return number of messages thrown away because the queue was full
+   */
+  public int getDropCount()
+  {
+    return msgs.getDropCount();
+  }
+
+  /**
+   * @return the largest number of packets that were waiting to be sent
+   */
+  public int getQueueHighWater()
+  {
+    return msgs.getHighWater();
+  }
+
+  /**
+   * @return the number of packets sent and the average and longest time
+   * they waited in the queue, per priority class. see PacketQueue
+   */
+  public String getLatencyStats()
+  {
+    return msgs.getLatencyStats();
+  }
+
+  private static void log( String s )
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("EndPoint: "+s);
+  }
 }
\ No newline at end of file
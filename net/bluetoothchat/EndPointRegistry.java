@@ -0,0 +1,106 @@
+package net.bluetoothchat;
+
+import java.util.*;
+
+/**
+ * The active EndPoints of a NetLayer.
+ * <p>Description: EndPoints are indexed by remote address, so lookups do not scan
+ * the list. Broadcast loops iterate snapshot(), an array that is replaced, never
+ * changed, when an EndPoint is added or removed (copy on write). A Reader removing
+ * its EndPoint or the accept thread adding one therefore cannot disturb a
+ * broadcast in progress, and the broadcast does not hold any lock while it queues
+ * packets. Adding and removing copy the array, which is cheap for the number of
+ * peers a piconet can have and happens far less often than a broadcast.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class EndPointRegistry
+{
+  // map remote address to EndPoint
+  private Hashtable byAddress = new Hashtable();
+  // current EndPoints. replaced on every change, never modified
+  private EndPoint[] snapshot = new EndPoint[0];
+
+  public EndPointRegistry()
+  {
+  }
+
+  /**
+   * add an EndPoint, unless one with the same remote address exists
+   * @return false if the address is already registered
+   */
+  public synchronized boolean add( EndPoint endpt )
+  {
+    if ( byAddress.containsKey( endpt.remoteAddress ) )
+      return false;
+
+    byAddress.put( endpt.remoteAddress, endpt );
+    EndPoint[] s = new EndPoint[snapshot.length + 1];
+    System.arraycopy( snapshot, 0, s, 0, snapshot.length );
+    s[snapshot.length] = endpt;
+    snapshot = s;
+    return true;
+  }
+
+  /**
+   * @return false if the EndPoint was not registered, e.g. already removed
+   */
+  public synchronized boolean remove( EndPoint endpt )
+  {
+    if ( byAddress.get( endpt.remoteAddress ) != endpt )
+      return false;
+
+    byAddress.remove( endpt.remoteAddress );
+    EndPoint[] s = new EndPoint[snapshot.length - 1];
+    int n = 0;
+    for ( int i=0; i < snapshot.length; i++ )
+    {
+      if ( snapshot[i] != endpt )
+        s[n++] = snapshot[i];
+    }
+    snapshot = s;
+    return true;
+  }
+
+  /**
+   * put an EndPoint in place of the registered one of the same remote
+   * address, so that no broadcast meanwhile misses both
+   * @return false if old is not registered any more
+   */
+  public synchronized boolean replace( EndPoint old, EndPoint endpt )
+  {
+    if ( byAddress.get( old.remoteAddress ) != old )
+      return false;
+
+    byAddress.put( endpt.remoteAddress, endpt );
+    EndPoint[] s = new EndPoint[snapshot.length];
+    for ( int i=0; i < snapshot.length; i++ )
+    {
+      s[i] = snapshot[i] == old ? endpt : snapshot[i];
+    }
+    snapshot = s;
+    return true;
+  }
+
+  /**
+   * @return the EndPoint of a remote address, or null
+   */
+  public EndPoint get( String address )
+  {
+    return (EndPoint) byAddress.get( address );
+  }
+
+  /**
+   * @return the current EndPoints. the array must not be changed
+   */
+  public synchronized EndPoint[] snapshot()
+  {
+    return snapshot;
+  }
+
+  public synchronized int size()
+  {
+    return snapshot.length;
+  }
+}
@@ -0,0 +1,175 @@
+package net.bluetoothchat;
+
+import java.util.*;
+
+/**
+ * Hands the BTListener events from the network threads to one thread of its own.
+ * <p>Description: NetLayer calls its BTListener on the Reader, Sender and
+ * PollingEngine threads. A listener that takes its time, e.g. one that updates
+ * the screen, would hold up the reads of the link meanwhile. Passed to
+ * NetLayer.init() in place of the listener, the dispatcher only queues each
+ * event as a ChatEvent and returns. Its own thread takes the events from the
+ * queue and calls the listener, in the order they were queued. A BatchListener
+ * gets all the events queued meanwhile, up to maxBatch, in one call.</p>
+ * <p>The queue holds at most capacity events. When it is full, the network
+ * threads wait for the listener, so that a listener that cannot keep up slows
+ * the links down instead of filling the heap. The listener must therefore not
+ * wait for the network threads itself.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class EventDispatcher implements BTListener, Runnable
+{
+  public final static int DEFAULT_CAPACITY = 512;
+  public final static int DEFAULT_MAX_BATCH = 256;
+
+  private BTListener listener;
+  private int capacity;
+  private int maxBatch;
+
+  // of ChatEvent
+  private Vector queue = new Vector();
+  private boolean done = false;
+
+  // number of events and calls of the listener so far, and the most
+  // events queued at a time
+  private int eventCount = 0;
+  private int callCount = 0;
+  private int highWater = 0;
+
+  public EventDispatcher( BTListener listener )
+  {
+    this( listener, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH );
+  }
+
+  /**
+   * @param capacity most events queued
+   * @param maxBatch most events passed to a BatchListener in one call
+   */
+  public EventDispatcher( BTListener listener, int capacity, int maxBatch )
+  {
+    this.listener = listener;
+    this.capacity = capacity;
+    this.maxBatch = maxBatch;
+    Thread t = new Thread( this );
+    t.start();
+  }
+
+  /**
+   * queue an event. called by the network threads
+   */
+  public void handleAction( String action, Object param1, Object param2 )
+  {
+    ChatEvent e = new ChatEvent( action, param1, param2 );
+    synchronized( queue )
+    {
+      while ( queue.size() >= capacity && !done )
+      {
+        try {
+          queue.wait();
+        }
+        catch (InterruptedException ex) {
+          return;
+        }
+      }
+      if ( done )
+        return;
+      queue.addElement( e );
+      if ( queue.size() > highWater )
+        highWater = queue.size();
+      queue.notifyAll();
+    }
+  }
+
+  /**
+   * call the listener with the queued events, until stop()
+   */
+  public void run()
+  {
+    while ( true )
+    {
+      ChatEvent[] events;
+      synchronized( queue )
+      {
+        while ( queue.isEmpty() && !done )
+        {
+          try {
+            queue.wait();
+          }
+          catch (InterruptedException ex) {
+            return;
+          }
+        }
+        if ( done )
+          return;
+
+        int n = listener instanceof BatchListener ? Math.min( queue.size(), maxBatch ) : 1;
+        events = new ChatEvent[n];
+        for ( int i=0; i < n; i++ )
+        {
+          events[i] = (ChatEvent) queue.elementAt( i );
+        }
+        // usually the batch takes all
+        if ( n == queue.size() )
+          queue.removeAllElements();
+        else
+        {
+          for ( int i=0; i < n; i++ )
+          {
+            queue.removeElementAt( 0 );
+          }
+        }
+        eventCount += n;
+        callCount++;
+        // room for the waiting network threads
+        queue.notifyAll();
+      }
+
+      try {
+        if ( listener instanceof BatchListener )
+        {
+          ((BatchListener) listener).handleEvents( events );
+        } else
+        {
+          ChatEvent e = events[0];
+          listener.handleAction( e.action, e.param1, e.param2 );
+        }
+      }
+      catch (RuntimeException ex) {
+        // a broken listener must not stop the events
+        log("listener failed: "+ex);
+      }
+    }
+  }
+
+  /**
+   * stop the thread. events still queued are thrown away
+   */
+  public void stop()
+  {
+    synchronized( queue )
+    {
+      done = true;
+      queue.removeAllElements();
+      queue.notifyAll();
+    }
+  }
+
+  /**
+   * @return e.g. "events=200 calls=3 highWater=180"
+   */
+  public String getStats()
+  {
+    synchronized( queue )
+    {
+      return "events="+eventCount+" calls="+callCount+" highWater="+highWater;
+    }
+  }
+
+  private static void log( String s )
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("EventDispatcher: "+s);
+  }
+}
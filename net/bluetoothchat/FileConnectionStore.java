@@ -0,0 +1,137 @@
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import javax.microedition.io.file.*;
+import java.io.*;
+
+/**
+ * TransferStore on the file system of the device (JSR-75).
+ * <p>Description: Outgoing files are given by their full file URL, e.g.
+ * file:///E:/Images/photo.jpg, or by a name relative to the directory. Incoming
+ * files are written to the directory under the name offered by the sender, or
+ * with a number added, e.g. photo(1).jpg, when a file of that name exists.
+ * Names are escaped before they go into a URL, so a space or '#' stays part
+ * of the name.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class FileConnectionStore implements TransferStore
+{
+  // most numbered names tried for an incoming file, see create()
+  private final static int MAX_COPIES = 100;
+  private final static String HEX = "0123456789ABCDEF";
+
+  // directory URL, ending with '/'
+  private String dir;
+
+  /**
+   * @param dir directory URL for incoming files, e.g. the value of the
+   * system property fileconn.dir.private
+   */
+  public FileConnectionStore( String dir )
+  {
+    this.dir = dir.endsWith( "/" ) ? dir : dir + "/";
+  }
+
+  public InputStream openRead( String name, long offset ) throws IOException
+  {
+    String url = name.startsWith( "file:" ) ? name : dir + escape( name );
+    FileConnection fc = (FileConnection) Connector.open( url, Connector.READ );
+    InputStream in;
+    try {
+      in = fc.openInputStream();
+    }
+    finally {
+      // the stream stays usable until it is closed itself
+      fc.close();
+    }
+    while ( offset > 0 )
+    {
+      long n = in.skip( offset );
+      if ( n <= 0 )
+      {
+        in.close();
+        throw new EOFException( name + " is shorter than " + offset );
+      }
+      offset -= n;
+    }
+    return in;
+  }
+
+  public String create( String name ) throws IOException
+  {
+    // the number goes in front of the extension
+    int dot = name.lastIndexOf( '.' );
+    if ( dot <= 0 )
+      dot = name.length();
+    for ( int i=0; i < MAX_COPIES; i++ )
+    {
+      String s = i == 0 ? name : name.substring( 0, dot ) + "(" + i + ")" + name.substring( dot );
+      FileConnection fc = (FileConnection) Connector.open( dir + escape( s ), Connector.READ_WRITE );
+      try {
+        if ( !fc.exists() )
+        {
+          fc.create();
+          log("create "+dir+s);
+          return s;
+        }
+      }
+      finally {
+        fc.close();
+      }
+    }
+    throw new IOException( "too many files named " + name );
+  }
+
+  public OutputStream openWrite( String name, long offset ) throws IOException
+  {
+    log("open "+dir+name+" at "+offset);
+    FileConnection fc = (FileConnection) Connector.open( dir + escape( name ), Connector.READ_WRITE );
+    try {
+      if ( !fc.exists() )
+        fc.create();
+      long size = fc.fileSize();
+      if ( size < offset )
+        throw new EOFException( name + " lost its last " + ( offset - size ) + " bytes" );
+      // the file is ours, see create(). what was not acknowledged comes again
+      if ( size > offset )
+        fc.truncate( offset );
+      return fc.openOutputStream( offset );
+    }
+    finally {
+      fc.close();
+    }
+  }
+
+  /**
+   * @return a file name as it goes into a file URL. the bytes of its UTF-8
+   * encoding other than letters, digits and -_.!~*'() are written as %XX
+   */
+  static String escape( String name ) throws IOException
+  {
+    byte[] b = name.getBytes( "UTF-8" );
+    StringBuffer sb = new StringBuffer( b.length );
+    for ( int i=0; i < b.length; i++ )
+    {
+      int c = b[i] & 0xFF;
+      if ( ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' )
+           || "-_.!~*'()".indexOf( c ) >= 0 )
+      {
+        sb.append( (char) c );
+      } else
+      {
+        sb.append( '%' );
+        sb.append( HEX.charAt( c >> 4 ) );
+        sb.append( HEX.charAt( c & 0x0F ) );
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void log( String s )
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("FileConnectionStore: "+s);
+  }
+}
@@ -0,0 +1,371 @@
+package net.bluetoothchat;
+
+import java.io.*;
+
+/**
+ * One file sent to or received from a v2 EndPoint.
+ * <p>Description: The sender offers the file with SIGNAL_FILE_OFFER. The receiver
+ * answers with SIGNAL_FILE_ACK holding the offset to start from: 0 for a new file,
+ * the number of bytes it already stored for a file whose transfer was interrupted,
+ * or -1 to refuse it. The file then goes out in SIGNAL_FILE_CHUNK frames of
+ * NetLayer.setTransfer() bytes, each holding its offset. Chunks are bulk packets,
+ * so chat messages and control signals go between them, see PacketQueue.</p>
+ * <p>Neither side holds the file in memory. The sender reads a chunk from its
+ * TransferStore when there is room in the window, i.e. when fewer than window
+ * chunks are unacknowledged; the receiver writes each chunk to its TransferStore
+ * as it arrives and acknowledges the bytes stored so far. A chunk that does not
+ * start at that offset means one went missing, e.g. a frame with a bad checksum.
+ * The receiver then asks for the rest to be sent again, and the sender reads it
+ * again from the store. Every time the sender goes back it counts up the pass
+ * number it puts in each chunk, so that the receiver asks once per pass and not
+ * for each chunk that was already on its way. A transfer that makes no progress for a while is
+ * restarted from the last acknowledged offset as well.</p>
+ * <p>When the link breaks the transfer is paused. When the node connects again,
+ * the sender offers the file again and goes on from the offset the receiver
+ * answers with. See NetLayer.sendFile().</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class FileTransfer
+{
+  // waiting for the receiver to answer the offer
+  public final static int STATE_OFFERED = 0;
+  // chunks are being sent
+  public final static int STATE_RUNNING = 1;
+  // the link broke, goes on when the node connects again
+  public final static int STATE_PAUSED = 2;
+  public final static int STATE_DONE = 3;
+  public final static int STATE_FAILED = 4;
+
+  // size of id, pass and offset in front of the bytes of a chunk
+  final static int CHUNK_HEADER = 16;
+
+  // SIGNAL_FILE_ACK flag: send again from the offset, instead of only
+  // acknowledging it
+  final static int ACK_RESEND = 0x01;
+
+  // chosen by the sender, unique among its transfers to the same node
+  int id;
+  boolean incoming;
+  String name;
+  // name in the TransferStore of a received file, see TransferStore.create()
+  String storedName;
+  long size;
+  // the remote node, and the link the transfer currently uses
+  String remoteAddress;
+  String remoteName;
+  EndPoint endpt;
+
+  int state;
+  // bytes acknowledged by the receiver, or stored by us when receiving
+  long acked = 0;
+  // bytes read from the store and queued, when sending
+  long sent = 0;
+  // number of times the sender went back to an earlier offset
+  int pass = 0;
+  // time of the last state change or progress, see NetLayer.checkTransfers()
+  long changedAt = System.currentTimeMillis();
+  // pass whose chunks we asked to be sent again, so a gap is asked for
+  // once per pass
+  int resendPass = -1;
+  // offers sent without an answer
+  int offers = 0;
+  String error;
+
+  InputStream in;
+  OutputStream out;
+
+  FileTransfer( int id, boolean incoming, String name, long size, EndPoint endpt )
+  {
+    this.id = id;
+    this.incoming = incoming;
+    this.name = name;
+    this.storedName = name;
+    this.size = size;
+    this.endpt = endpt;
+    this.remoteAddress = endpt.remoteAddress;
+    this.remoteName = endpt.remoteName;
+    this.state = STATE_OFFERED;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return name the received file is stored under, which may differ from
+   * the offered one when a file of that name existed
+   */
+  public String getStoredName()
+  {
+    return storedName;
+  }
+
+  public long getSize()
+  {
+    return size;
+  }
+
+  /**
+   * @return bytes acknowledged by the receiver, or stored when receiving
+   */
+  public synchronized long getTransferred()
+  {
+    return acked;
+  }
+
+  public boolean isIncoming()
+  {
+    return incoming;
+  }
+
+  public String getRemoteName()
+  {
+    return remoteName;
+  }
+
+  /**
+   * @return one of STATE_XXX
+   */
+  public synchronized int getState()
+  {
+    return state;
+  }
+
+  /**
+   * @return why the transfer failed, or null
+   */
+  public synchronized String getError()
+  {
+    return error;
+  }
+
+  /**
+   * @return key of a transfer in NetLayer.transfers
+   */
+  static String key( boolean incoming, String address, int id )
+  {
+    return ( incoming ? "in " : "out " ) + address + " " + id;
+  }
+
+  String key()
+  {
+    return key( incoming, remoteAddress, id );
+  }
+
+  /**
+   * queue the offer on a link. the answer decides where the chunks start
+   */
+  synchronized void offer( EndPoint endpt ) throws IOException
+  {
+    this.endpt = endpt;
+    remoteName = endpt.remoteName;
+    closeStreams();
+    setState( STATE_OFFERED );
+    offers++;
+
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream dout = new DataOutputStream( bout );
+    dout.writeInt( id );
+    dout.writeLong( size );
+    dout.writeUTF( name );
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_FILE_OFFER, null );
+    packet.data = bout.toByteArray();
+    endpt.putPacket( packet );
+  }
+
+  /**
+   * the receiver acknowledged up to offset, or asked for the chunks from
+   * offset on. queue the chunks that fit into the window
+   * @return true if the receiver has the whole file now
+   */
+  synchronized boolean ackReceived( TransferStore store, long offset, boolean resend, int chunkSize, int window ) throws IOException
+  {
+    if ( state != STATE_OFFERED && state != STATE_RUNNING )
+      return false;
+
+    offers = 0;
+    if ( resend || state == STATE_OFFERED )
+    {
+      // read again from the store, from offset on
+      closeStreams();
+      acked = sent = offset;
+      pass++;
+      if ( acked < size )
+        in = store.openRead( name, offset );
+      setState( STATE_RUNNING );
+    } else if ( offset > acked )
+    {
+      acked = offset;
+      changedAt = System.currentTimeMillis();
+    }
+
+    if ( acked >= size )
+    {
+      closeStreams();
+      setState( STATE_DONE );
+      return true;
+    }
+    fill( chunkSize, window );
+    return false;
+  }
+
+  /**
+   * read and queue chunks until window chunks are unacknowledged
+   */
+  private void fill( int chunkSize, int window ) throws IOException
+  {
+    while ( sent < size && sent - acked < (long) chunkSize * window )
+    {
+      int n = (int) Math.min( chunkSize, size - sent );
+      byte[] body = new byte[CHUNK_HEADER + n];
+      writeInt( body, 0, id );
+      writeInt( body, 4, pass );
+      writeInt( body, 8, (int) ( sent >>> 32 ) );
+      writeInt( body, 12, (int) sent );
+      for ( int pos = 0; pos < n; )
+      {
+        int r = in.read( body, CHUNK_HEADER + pos, n - pos );
+        if ( r < 0 )
+          throw new EOFException( name + " ends at " + ( sent + pos ) + " of " + size + " bytes" );
+        pos += r;
+      }
+
+      ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_FILE_CHUNK, null );
+      packet.data = body;
+      endpt.putPacket( packet );
+      sent += n;
+    }
+  }
+
+  /**
+   * nothing was acknowledged for a while. send again from the last
+   * acknowledged offset, or offer again if the offer got no answer
+   */
+  synchronized void restart( TransferStore store, int chunkSize, int window ) throws IOException
+  {
+    if ( state == STATE_OFFERED )
+      offer( endpt );
+    else if ( state == STATE_RUNNING )
+      ackReceived( store, acked, true, chunkSize, window );
+  }
+
+  /**
+   * the file is offered, on a new link or again on the same one. open it at
+   * the offset stored so far, or from the start if that is lost
+   * @return the offset to ask the sender for
+   */
+  synchronized long accept( EndPoint endpt, TransferStore store ) throws IOException
+  {
+    this.endpt = endpt;
+    remoteName = endpt.remoteName;
+    resendPass = -1;
+    if ( state == STATE_DONE )
+      return size;
+
+    closeStreams();
+    try {
+      out = store.openWrite( storedName, acked );
+    }
+    catch (IOException ex) {
+      if ( acked == 0 )
+        throw ex;
+      // the part stored is gone. start again
+      acked = 0;
+      out = store.openWrite( storedName, 0 );
+    }
+    setState( STATE_RUNNING );
+    if ( acked >= size )
+    {
+      closeStreams();
+      setState( STATE_DONE );
+    }
+    return acked;
+  }
+
+  /**
+   * a chunk arrived. it is stored if it starts where the stored part ends
+   * @return the offset to acknowledge, or -1 to send no ACK
+   */
+  synchronized long chunkReceived( int pass, long offset, byte[] data, int off, int len ) throws IOException
+  {
+    if ( state == STATE_DONE )
+      return size;
+    if ( state != STATE_RUNNING || offset < acked )
+      return -1;
+
+    if ( offset > acked )
+    {
+      // a chunk went missing. ask for the rest, unless we did already
+      // and this chunk was sent before the sender went back
+      if ( pass <= resendPass )
+        return -1;
+      resendPass = pass;
+      return acked;
+    }
+
+    out.write( data, off, len );
+    acked += len;
+    changedAt = System.currentTimeMillis();
+    if ( acked >= size )
+    {
+      closeStreams();
+      setState( STATE_DONE );
+    }
+    return acked;
+  }
+
+  /**
+   * the link broke. the streams are closed until the transfer goes on
+   */
+  synchronized void pause()
+  {
+    if ( state != STATE_OFFERED && state != STATE_RUNNING )
+      return;
+    closeStreams();
+    setState( STATE_PAUSED );
+  }
+
+  synchronized void fail( String error )
+  {
+    closeStreams();
+    this.error = error;
+    setState( STATE_FAILED );
+  }
+
+  private void setState( int state )
+  {
+    this.state = state;
+    changedAt = System.currentTimeMillis();
+  }
+
+  private void closeStreams()
+  {
+    try {
+      if ( in != null )
+        in.close();
+    }
+    catch (IOException ex) {
+      // ignore
+    }
+    try {
+      if ( out != null )
+        out.close();
+    }
+    catch (IOException ex) {
+      // ignore
+    }
+    in = null;
+    out = null;
+  }
+
+  private static void writeInt( byte[] b, int pos, int v )
+  {
+    b[pos] = (byte) ( v >>> 24 );
+    b[pos + 1] = (byte) ( v >>> 16 );
+    b[pos + 2] = (byte) ( v >>> 8 );
+    b[pos + 3] = (byte) v;
+  }
+}
@@ -0,0 +1,52 @@
+package net.bluetoothchat;
+
+/**
+ * Interfaces of a publisher and its subscribers with demand driven flow control.
+ * <p>Description: The same contract as java.util.concurrent.Flow, which CLDC
+ * does not have, without generics: the items are ChatEvents. A Subscriber gets
+ * onSubscribe() first, then at most as many onNext() calls as it requested with
+ * Subscription.request(), one at a time, and finally onComplete() or onError()
+ * unless it cancelled. See NetLayer.getPublisher().</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public final class Flow
+{
+  private Flow()
+  {
+  }
+
+  public static interface Publisher
+  {
+    /**
+     * add a Subscriber. it gets onSubscribe(), or onError() if it is
+     * subscribed already
+     */
+    public void subscribe( Subscriber subscriber );
+  }
+
+  public static interface Subscriber
+  {
+    public void onSubscribe( Subscription subscription );
+
+    public void onNext( ChatEvent item );
+
+    public void onError( Throwable throwable );
+
+    public void onComplete();
+  }
+
+  public static interface Subscription
+  {
+    /**
+     * allow n more onNext() calls. n must be positive
+     */
+    public void request( long n );
+
+    /**
+     * stop the onNext() calls. some may still arrive
+     */
+    public void cancel();
+  }
+}
@@ -0,0 +1,760 @@
+package net.bluetoothchat;
+
+import java.io.*;
+
+/**
+ * Encoder and decoder of the BlueChat wire format.
+ * <p>Description: Two frame formats exist on the wire.</p>
+ * <p>v1: writeInt(signal) followed by writeUTF(msg). Signals above
+ * SIGNAL_TERMINATE_ACK carry no string. Because signals are small numbers the
+ * first byte of a v1 frame is always 0.</p>
+ * <p>v2: a length prefixed binary frame
+ * <pre>
+ *   byte   MAGIC (0xB2)
+ *   byte   type, one of NetLayer.SIGNAL_XXX
+ *   byte   flags, FLAG_XXX
+ *   int    length of the body
+ *   byte   CRC-8 of type, flags and length, so that a corrupt length is
+ *          caught before the body is waited for
+ *   int    sequence number, only if FLAG_SEQ is set. see ReliableChannel
+ *   short  logical channel, only if FLAG_CHANNEL is set. see ChannelMux
+ *   short  length of the room name, and the name in UTF-8, only if FLAG_ROOM
+ *          is set. see RoomIndex
+ *   short  length of the recipient addresses, and the addresses separated by
+ *          ',' in UTF-8, only if FLAG_TO is set. see NetLayer.sendTo()
+ *   long   message id, byte hops left, and two strings as above holding the
+ *          address and name of the origin, only if FLAG_RELAY is set. see
+ *          NetLayer.setRelay()
+ *   byte[] body, raw payload bytes (UTF-8 for string signals)
+ *   int    CRC-32C of everything after MAGIC, only if FLAG_CRC is set. the
+ *          sequence number is left out of its place and covered last, so
+ *          that the frame of a broadcast is encoded and summed once and only
+ *          the sequence number is added per EndPoint, see writeSeq()
+ * </pre>
+ * The body is not limited to 64KB and is not decoded by the codec, so a Reader
+ * can skip or forward frames it does not understand.</p>
+ * <p>A node that speaks v2 announces it with a bare v1 SIGNAL_VERSION int right
+ * after its HANDSHAKE or HANDSHAKE_ACK. v1 nodes log it as an unknown signal and
+ * carry on, v2 nodes switch their Sender to v2 frames. The reading side always
+ * accepts both formats, it tells them apart by the first byte. When a frame has
+ * a bad header check, length or checksum, the reader scans forward for the next
+ * MAGIC byte instead of losing the connection. The header check is always
+ * there, so a corrupt length never makes the reader wait for a body that is
+ * not coming, even without FLAG_CRC.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class FrameCodec
+{
+  public final static int MAGIC = 0xB2;
+  // size of type, flags, length and header check following the MAGIC byte
+  private final static int HEADER_SIZE = 7;
+  // bytes covered by the header check
+  private final static int CHECKED_SIZE = 6;
+  // offset of the sequence number in a frame, and its size
+  private final static int SEQ_POS = 1 + HEADER_SIZE;
+  private final static int SEQ_SIZE = 4;
+
+  // body is followed by a CRC-32C
+  public final static int FLAG_CRC = 0x01;
+  // header is followed by a sequence number
+  public final static int FLAG_SEQ = 0x02;
+  // header is followed by a logical channel number
+  public final static int FLAG_CHANNEL = 0x04;
+  // header is followed by the name of a chat room
+  public final static int FLAG_ROOM = 0x08;
+  // header is followed by the addresses a message was sent to
+  public final static int FLAG_TO = 0x10;
+  // header is followed by the id and origin of a relayed message
+  public final static int FLAG_RELAY = 0x20;
+
+  // longest room name in bytes. a longer one is treated as corrupt
+  public final static int MAX_ROOM = 64;
+  // longest recipient list in bytes, enough for 7 slaves of 3 piconets
+  // with bluetooth addresses. NetLayer.sendTo() rejects a longer one
+  public final static int MAX_TO = 21 * 13;
+  // longest origin address or name in bytes
+  public final static int MAX_NAME = 64;
+
+  // default upper limit of a v2 body. a larger length is treated as corrupt
+  public final static int DEFAULT_MAX_FRAME = 1 << 20;
+  // most bytes of a v2 frame besides the body: MAGIC, header, sequence and
+  // channel numbers, room, recipients, relay origin and checksum
+  public final static int MAX_OVERHEAD = 1 + HEADER_SIZE + 4 + 2 + ( 2 + MAX_ROOM ) + ( 2 + MAX_TO )
+                                         + ( 9 + 2 + MAX_NAME + 2 + MAX_NAME ) + 4;
+  // most bytes of a v1 frame, the signal and a writeUTF() string
+  public final static int MAX_V1_FRAME = 4 + 2 + 65535;
+
+  // stream we decode from
+  private DataInputStream in;
+  private int maxFrame;
+
+  // bytes of a rejected frame that must be scanned again for the next frame
+  private byte[] replay = null;
+  private int replayPos = 0;
+
+  // number of times we lost and found the frame boundary,
+  // and number of bytes thrown away while doing so
+  private int resyncCount = 0;
+  private int skippedBytes = 0;
+
+  public FrameCodec( DataInputStream in, int maxFrame )
+  {
+    this.in = in;
+    this.maxFrame = maxFrame;
+  }
+
+  /**
+   * @return the most bytes a frame takes on the link
+   * @param maxFrame upper limit of a v2 body
+   */
+  public static int maxFrameBytes( int maxFrame )
+  {
+    return Math.max( maxFrame + MAX_OVERHEAD, MAX_V1_FRAME );
+  }
+
+  /**
+   * @return number of bytes that can be read without blocking
+   */
+  public int available() throws IOException
+  {
+    return replayLeft() + in.available();
+  }
+
+  /**
+   * read the next v1 or v2 frame. this will block until a complete frame is read.
+   * @return packet with signal set, and msg (v1) or data (v2) set
+   */
+  public ChatPacket read() throws IOException
+  {
+    boolean lost = false;
+    while ( true )
+    {
+      int b = readByte();
+      if ( b == MAGIC )
+      {
+        ChatPacket p = readV2();
+        if ( p != null )
+          return p;
+        // corrupt frame, keep scanning right after this MAGIC byte
+        lost = true;
+      } else if ( b == 0 && !lost )
+      {
+        return readV1();
+      } else
+      {
+        // not at a frame boundary. skip until the next MAGIC byte
+        if ( !lost )
+        {
+          resyncCount++;
+          log("lost frame boundary, scanning for next frame");
+        }
+        lost = true;
+        skippedBytes++;
+      }
+    }
+  }
+
+  /**
+   * read the next frame if all of it has arrived, without blocking. the
+   * stream must be an InputBuffer; when the frame is not complete, the bytes
+   * read so far are put back and tried again by the next call
+   * @return the packet, or null if the frame is not complete
+   */
+  public ChatPacket poll() throws IOException
+  {
+    byte[] r = replay;
+    int rp = replayPos;
+    int rc = resyncCount;
+    int sb = skippedBytes;
+    in.mark( Integer.MAX_VALUE );
+    try {
+      return read();
+    }
+    catch (InputBuffer.Underflow ex) {
+      in.reset();
+      replay = r;
+      replayPos = rp;
+      resyncCount = rc;
+      skippedBytes = sb;
+      return null;
+    }
+  }
+
+  private ChatPacket readV1() throws IOException
+  {
+    byte[] b = new byte[3];
+    readFully( b, 0, 3 );
+    int signal = ( (b[0] & 0xFF) << 16 ) | ( (b[1] & 0xFF) << 8 ) | (b[2] & 0xFF);
+
+    ChatPacket p = new ChatPacket();
+    p.signal = signal;
+    if ( hasV1String( signal ) )
+    {
+      // read the writeUTF() length and bytes, and let DataInputStream decode it
+      byte[] utf = new byte[2];
+      readFully( utf, 0, 2 );
+      int len = ( (utf[0] & 0xFF) << 8 ) | (utf[1] & 0xFF);
+      byte[] all = new byte[2 + len];
+      all[0] = utf[0];
+      all[1] = utf[1];
+      readFully( all, 2, len );
+      p.msg = new DataInputStream( new ByteArrayInputStream( all ) ).readUTF();
+    }
+    return p;
+  }
+
+  /**
+   * read the rest of a v2 frame after the MAGIC byte
+   * @return the packet, or null if the frame is corrupt
+   */
+  private ChatPacket readV2() throws IOException
+  {
+    byte[] header = new byte[HEADER_SIZE];
+    readFully( header, 0, HEADER_SIZE );
+    int type = header[0] & 0xFF;
+    int flags = header[1] & 0xFF;
+    int length = ( (header[2] & 0xFF) << 24 ) | ( (header[3] & 0xFF) << 16 )
+               | ( (header[4] & 0xFF) << 8 ) | (header[5] & 0xFF);
+
+    if ( ( header[CHECKED_SIZE] & 0xFF ) != crc8( header, 0, CHECKED_SIZE ) )
+    {
+      log("bad frame header check, length "+length);
+      reject( header, null, null );
+      return null;
+    }
+    if ( length < 0 || length > maxFrame )
+    {
+      log("bad frame length "+length);
+      reject( header, null, null );
+      return null;
+    }
+
+    // the sequence and channel numbers are checked along with the header
+    int extra = ( (flags & FLAG_SEQ) != 0 ? 4 : 0 ) + ( (flags & FLAG_CHANNEL) != 0 ? 2 : 0 );
+    if ( extra > 0 )
+    {
+      byte[] longHeader = new byte[HEADER_SIZE + extra];
+      System.arraycopy( header, 0, longHeader, 0, HEADER_SIZE );
+      readFully( longHeader, HEADER_SIZE, extra );
+      header = longHeader;
+    }
+    int roomPos = header.length;
+    if ( (flags & FLAG_ROOM) != 0 )
+    {
+      header = readString( header, MAX_ROOM );
+      if ( header == null )
+        return null;
+    }
+    int toPos = header.length;
+    if ( (flags & FLAG_TO) != 0 )
+    {
+      header = readString( header, MAX_TO );
+      if ( header == null )
+        return null;
+    }
+    int relayPos = header.length;
+    int namePos = 0;
+    if ( (flags & FLAG_RELAY) != 0 )
+    {
+      byte[] longHeader = new byte[header.length + 9];
+      System.arraycopy( header, 0, longHeader, 0, header.length );
+      readFully( longHeader, header.length, 9 );
+      header = readString( longHeader, MAX_NAME );
+      if ( header == null )
+        return null;
+      namePos = header.length;
+      header = readString( header, MAX_NAME );
+      if ( header == null )
+        return null;
+    }
+
+    byte[] body = new byte[length];
+    readFully( body, 0, length );
+
+    if ( (flags & FLAG_CRC) != 0 )
+    {
+      byte[] crc = new byte[4];
+      readFully( crc, 0, 4 );
+      int expect = ( (crc[0] & 0xFF) << 24 ) | ( (crc[1] & 0xFF) << 16 )
+                 | ( (crc[2] & 0xFF) << 8 ) | (crc[3] & 0xFF);
+      int actual = checksum( header, body, length, (flags & FLAG_SEQ) != 0 );
+      if ( actual != expect )
+      {
+        log("bad frame checksum, type "+type);
+        reject( header, body, crc );
+        return null;
+      }
+    }
+
+    ChatPacket p = new ChatPacket();
+    p.signal = type;
+    p.data = body;
+    int pos = HEADER_SIZE;
+    if ( (flags & FLAG_SEQ) != 0 )
+    {
+      p.seq = ( (header[pos] & 0xFF) << 24 ) | ( (header[pos + 1] & 0xFF) << 16 )
+            | ( (header[pos + 2] & 0xFF) << 8 ) | (header[pos + 3] & 0xFF);
+      pos += 4;
+    }
+    if ( (flags & FLAG_CHANNEL) != 0 )
+    {
+      p.channel = ( (header[pos] & 0xFF) << 8 ) | (header[pos + 1] & 0xFF);
+      pos += 2;
+    }
+    if ( (flags & FLAG_ROOM) != 0 )
+      p.room = decode( header, roomPos + 2, toPos - roomPos - 2 );
+    if ( (flags & FLAG_TO) != 0 )
+      p.to = split( decode( header, toPos + 2, relayPos - toPos - 2 ) );
+    if ( (flags & FLAG_RELAY) != 0 )
+    {
+      for ( int i=0; i < 8; i++ )
+      {
+        p.id = ( p.id << 8 ) | (header[relayPos + i] & 0xFF);
+      }
+      p.hops = header[relayPos + 8] & 0xFF;
+      p.from = decode( header, relayPos + 11, namePos - relayPos - 11 );
+      p.sender = decode( header, namePos + 2, header.length - namePos - 2 );
+    }
+    return p;
+  }
+
+  /**
+   * read a string of the header, its short length and UTF-8 bytes, and
+   * append them to the header so they are covered by the checksum
+   * @param max longest valid length
+   * @return the longer header, or null if the length is corrupt
+   */
+  private byte[] readString( byte[] header, int max ) throws IOException
+  {
+    byte[] len = new byte[2];
+    readFully( len, 0, 2 );
+    int n = ( (len[0] & 0xFF) << 8 ) | (len[1] & 0xFF);
+    if ( n > max )
+    {
+      log("bad header string length "+n);
+      reject( header, len, null );
+      return null;
+    }
+    byte[] longHeader = new byte[header.length + 2 + n];
+    System.arraycopy( header, 0, longHeader, 0, header.length );
+    System.arraycopy( len, 0, longHeader, header.length, 2 );
+    readFully( longHeader, header.length + 2, n );
+    return longHeader;
+  }
+
+  /**
+   * encode a packet into a complete frame. the result is kept in the packet,
+   * so a packet queued on many EndPoints, e.g. a broadcast, is encoded once
+   * per format and every Sender writes the same bytes. the packet must not be
+   * changed after it is queued.
+   * @param version 1 or 2
+   * @param crc true to append a checksum to a v2 frame
+   */
+  public static byte[] encode( ChatPacket p, int version, boolean crc ) throws IOException
+  {
+    synchronized( p )
+    {
+      if ( version >= 2 )
+      {
+        if ( p.frameV2 == null || p.frameV2Crc != crc )
+        {
+          ByteArrayOutputStream bout = new ByteArrayOutputStream();
+          writeV2( new DataOutputStream( bout ), p, crc );
+          p.frameV2 = bout.toByteArray();
+          p.frameV2Crc = crc;
+        }
+        return p.frameV2;
+      } else
+      {
+        if ( p.frameV1 == null )
+        {
+          ByteArrayOutputStream bout = new ByteArrayOutputStream();
+          writeV1( new DataOutputStream( bout ), p );
+          p.frameV1 = bout.toByteArray();
+        }
+        return p.frameV1;
+      }
+    }
+  }
+
+  /**
+   * encode a packet into a v2 frame with a sequence number. unlike
+   * encode(), the result is not cached, since the sequence number belongs
+   * to one EndPoint. a packet on a logical channel gets its number within
+   * the channel. a chat message queued on many EndPoints uses
+   * encodeTemplate() instead
+   */
+  public static byte[] encodeSeq( ChatPacket p, int seq, boolean crc ) throws IOException
+  {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    writeV2( new DataOutputStream( bout ), p, crc, seq );
+    return bout.toByteArray();
+  }
+
+  /**
+   * encode a packet into a v2 frame whose sequence number is filled in by
+   * writeSeq(). like encode(), the result is kept in the packet, so a
+   * broadcast chat message is encoded and summed once; each EndPoint only
+   * adds its ReliableChannel sequence number. the frame is as long as the
+   * frames written from it
+   */
+  public static byte[] encodeTemplate( ChatPacket p, boolean crc ) throws IOException
+  {
+    synchronized( p )
+    {
+      if ( p.frameSeq == null || p.frameSeqCrc != crc )
+      {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        writeV2( new DataOutputStream( bout ), p, crc, 0, true );
+        p.frameSeq = bout.toByteArray();
+        p.frameSeqCrc = crc;
+      }
+      return p.frameSeq;
+    }
+  }
+
+  /**
+   * write a frame of encodeTemplate() with its sequence number. only the
+   * sequence number is summed, the template holds the sum of the rest
+   */
+  public static void writeSeq( OutputStream out, byte[] template, int seq ) throws IOException
+  {
+    byte[] b = new byte[SEQ_SIZE];
+    putInt( b, 0, seq );
+    boolean crc = ( template[2] & FLAG_CRC ) != 0;
+    int end = template.length - ( crc ? 4 : 0 );
+    out.write( template, 0, SEQ_POS );
+    out.write( b, 0, SEQ_SIZE );
+    out.write( template, SEQ_POS + SEQ_SIZE, end - SEQ_POS - SEQ_SIZE );
+    if ( crc )
+    {
+      int sum = ( (template[end] & 0xFF) << 24 ) | ( (template[end + 1] & 0xFF) << 16 )
+              | ( (template[end + 2] & 0xFF) << 8 ) | (template[end + 3] & 0xFF);
+      putInt( b, 0, Crc32c.update( sum, b, 0, SEQ_SIZE ) );
+      out.write( b, 0, 4 );
+    }
+  }
+
+  /**
+   * write a packet as v1 frame
+   */
+  public static void writeV1( DataOutputStream out, ChatPacket p ) throws IOException
+  {
+    out.writeInt( p.signal );
+    if ( hasV1String( p.signal ) )
+    {
+      String msg = p.getMsg();
+      out.writeUTF( msg != null ? msg : "" );
+    }
+  }
+
+  /**
+   * write a packet as v2 frame
+   * @param crc true to append a checksum
+   */
+  public static void writeV2( DataOutputStream out, ChatPacket p, boolean crc ) throws IOException
+  {
+    writeV2( out, p, crc, -1 );
+  }
+
+  /**
+   * write a packet as v2 frame
+   * @param crc true to append a checksum
+   * @param seq sequence number, -1 for none
+   */
+  public static void writeV2( DataOutputStream out, ChatPacket p, boolean crc, int seq ) throws IOException
+  {
+    writeV2( out, p, crc, seq, false );
+  }
+
+  /**
+   * @param template true to leave the sequence number out of the checksum,
+   * see encodeTemplate()
+   */
+  private static void writeV2( DataOutputStream out, ChatPacket p, boolean crc, int seq,
+                               boolean template ) throws IOException
+  {
+    byte[] body = p.getData();
+    int length = body != null ? body.length : 0;
+    boolean channel = p.channel != 0;
+    byte[] room = p.room != null ? encode( p.room ) : null;
+    byte[] to = p.to != null ? encode( join( p.to ) ) : null;
+    byte[] from = p.id != 0 ? encode( p.from ) : null;
+    byte[] sender = p.id != 0 ? encode( p.sender ) : null;
+    byte[] header = new byte[HEADER_SIZE + ( seq >= 0 ? 4 : 0 ) + ( channel ? 2 : 0 )
+                             + ( room != null ? 2 + room.length : 0 )
+                             + ( to != null ? 2 + to.length : 0 )
+                             + ( from != null ? 13 + from.length + sender.length : 0 )];
+    header[0] = (byte) p.signal;
+    header[1] = (byte) ( ( crc ? FLAG_CRC : 0 ) | ( seq >= 0 ? FLAG_SEQ : 0 )
+                       | ( channel ? FLAG_CHANNEL : 0 ) | ( room != null ? FLAG_ROOM : 0 )
+                       | ( to != null ? FLAG_TO : 0 ) | ( from != null ? FLAG_RELAY : 0 ) );
+    header[2] = (byte) ( length >>> 24 );
+    header[3] = (byte) ( length >>> 16 );
+    header[4] = (byte) ( length >>> 8 );
+    header[5] = (byte) length;
+    header[CHECKED_SIZE] = (byte) crc8( header, 0, CHECKED_SIZE );
+    int pos = HEADER_SIZE;
+    if ( seq >= 0 )
+    {
+      header[pos++] = (byte) ( seq >>> 24 );
+      header[pos++] = (byte) ( seq >>> 16 );
+      header[pos++] = (byte) ( seq >>> 8 );
+      header[pos++] = (byte) seq;
+    }
+    if ( channel )
+    {
+      header[pos++] = (byte) ( p.channel >>> 8 );
+      header[pos++] = (byte) p.channel;
+    }
+    if ( room != null )
+    {
+      header[pos++] = (byte) ( room.length >>> 8 );
+      header[pos++] = (byte) room.length;
+      System.arraycopy( room, 0, header, pos, room.length );
+      pos += room.length;
+    }
+    if ( to != null )
+    {
+      header[pos++] = (byte) ( to.length >>> 8 );
+      header[pos++] = (byte) to.length;
+      System.arraycopy( to, 0, header, pos, to.length );
+      pos += to.length;
+    }
+    if ( from != null )
+    {
+      for ( int i=0; i < 8; i++ )
+      {
+        header[pos++] = (byte) ( p.id >>> ( 56 - 8 * i ) );
+      }
+      header[pos++] = (byte) p.hops;
+      header[pos++] = (byte) ( from.length >>> 8 );
+      header[pos++] = (byte) from.length;
+      System.arraycopy( from, 0, header, pos, from.length );
+      pos += from.length;
+      header[pos++] = (byte) ( sender.length >>> 8 );
+      header[pos++] = (byte) sender.length;
+      System.arraycopy( sender, 0, header, pos, sender.length );
+    }
+
+    out.write( MAGIC );
+    out.write( header, 0, header.length );
+    if ( length > 0 )
+      out.write( body, 0, length );
+    if ( crc )
+    {
+      if ( template )
+        out.writeInt( checksumWithoutSeq( header, body, length, seq >= 0 ) );
+      else
+        out.writeInt( checksum( header, body, length, seq >= 0 ) );
+    }
+  }
+
+  /**
+   * @return CRC-32C of a frame after MAGIC. the sequence number, if any,
+   * is summed after the body
+   */
+  private static int checksum( byte[] header, byte[] body, int length, boolean seq )
+  {
+    int sum = checksumWithoutSeq( header, body, length, seq );
+    return seq ? Crc32c.update( sum, header, HEADER_SIZE, SEQ_SIZE ) : sum;
+  }
+
+  /**
+   * @return CRC-32C of a frame after MAGIC, without its sequence number
+   * @param seq true if the header holds a sequence number
+   */
+  private static int checksumWithoutSeq( byte[] header, byte[] body, int length, boolean seq )
+  {
+    int skip = seq ? SEQ_SIZE : 0;
+    int sum = Crc32c.compute( header, 0, HEADER_SIZE );
+    sum = Crc32c.update( sum, header, HEADER_SIZE + skip, header.length - HEADER_SIZE - skip );
+    return Crc32c.update( sum, body, 0, length );
+  }
+
+  /**
+   * @return CRC-8 (polynomial 0x07) of len bytes, for the header check
+   */
+  static int crc8( byte[] b, int off, int len )
+  {
+    int crc = 0;
+    for ( int i = off; i < off + len; i++ )
+    {
+      crc ^= b[i] & 0xFF;
+      for ( int k=0; k < 8; k++ )
+      {
+        crc = ( crc & 0x80 ) != 0 ? ( ( crc << 1 ) ^ 0x07 ) & 0xFF : ( crc << 1 ) & 0xFF;
+      }
+    }
+    return crc;
+  }
+
+  private static void putInt( byte[] b, int pos, int v )
+  {
+    b[pos] = (byte) ( v >>> 24 );
+    b[pos + 1] = (byte) ( v >>> 16 );
+    b[pos + 2] = (byte) ( v >>> 8 );
+    b[pos + 3] = (byte) v;
+  }
+
+  private static String join( String[] s )
+  {
+    StringBuffer sb = new StringBuffer();
+    for ( int i=0; i < s.length; i++ )
+    {
+      if ( i > 0 )
+        sb.append( ',' );
+      sb.append( s[i] );
+    }
+    return sb.toString();
+  }
+
+  private static String[] split( String s )
+  {
+    int n = 1;
+    for ( int i = s.indexOf( ',' ); i >= 0; i = s.indexOf( ',', i + 1 ) )
+      n++;
+    String[] r = new String[n];
+    int start = 0;
+    for ( int i=0; i < n - 1; i++ )
+    {
+      int end = s.indexOf( ',', start );
+      r[i] = s.substring( start, end );
+      start = end + 1;
+    }
+    r[n - 1] = s.substring( start );
+    return r;
+  }
+
+  /**
+   * @return the number of bytes a string takes in a frame header, to be
+   * checked against MAX_ROOM, MAX_TO and MAX_NAME before it is sent. a
+   * longer one would be taken for a corrupt frame by every receiver
+   */
+  public static int headerLength( String s )
+  {
+    return encode( s ).length;
+  }
+
+  /**
+   * @return s, shortened to at most max bytes in a frame header
+   */
+  public static String truncate( String s, int max )
+  {
+    // no character takes less than a byte
+    if ( s.length() > max )
+      s = s.substring( 0, max );
+    while ( encode( s ).length > max )
+    {
+      s = s.substring( 0, s.length() - 1 );
+    }
+    return s;
+  }
+
+  private static byte[] encode( String s )
+  {
+    try {
+      return s.getBytes( "UTF-8" );
+    }
+    catch (UnsupportedEncodingException ex) {
+      return s.getBytes();
+    }
+  }
+
+  private static String decode( byte[] b, int off, int len )
+  {
+    try {
+      return new String( b, off, len, "UTF-8" );
+    }
+    catch (UnsupportedEncodingException ex) {
+      return new String( b, off, len );
+    }
+  }
+
+  /**
+   * @return true if a v1 frame of this signal is followed by a writeUTF() string
+   */
+  static boolean hasV1String( int signal )
+  {
+    return signal >= NetLayer.SIGNAL_HANDSHAKE && signal <= NetLayer.SIGNAL_TERMINATE_ACK;
+  }
+
+  public int getResyncCount()
+  {
+    return resyncCount;
+  }
+
+  public int getSkippedBytes()
+  {
+    return skippedBytes;
+  }
+
+  /**
+   * put the bytes of a rejected frame back, so that they are scanned again
+   */
+  private void reject( byte[] a, byte[] b, byte[] c )
+  {
+    int left = replayLeft();
+    int n = a.length + ( b != null ? b.length : 0 ) + ( c != null ? c.length : 0 );
+    byte[] r = new byte[n + left];
+    int pos = 0;
+    System.arraycopy( a, 0, r, pos, a.length );
+    pos += a.length;
+    if ( b != null )
+    {
+      System.arraycopy( b, 0, r, pos, b.length );
+      pos += b.length;
+    }
+    if ( c != null )
+    {
+      System.arraycopy( c, 0, r, pos, c.length );
+      pos += c.length;
+    }
+    if ( left > 0 )
+      System.arraycopy( replay, replayPos, r, pos, left );
+    replay = r;
+    replayPos = 0;
+    resyncCount++;
+  }
+
+  private int replayLeft()
+  {
+    return replay != null ? replay.length - replayPos : 0;
+  }
+
+  private int readByte() throws IOException
+  {
+    if ( replayLeft() > 0 )
+      return replay[replayPos++] & 0xFF;
+
+    int b = in.read();
+    if ( b < 0 )
+      throw new EOFException();
+    return b;
+  }
+
+  private void readFully( byte[] b, int off, int len ) throws IOException
+  {
+    int n = Math.min( len, replayLeft() );
+    if ( n > 0 )
+    {
+      System.arraycopy( replay, replayPos, b, off, n );
+      replayPos += n;
+    }
+    if ( len > n )
+      in.readFully( b, off + n, len - n );
+  }
+
+  private static void log( String s)
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("FrameCodec: "+s);
+
+    // "F" means FrameCodec class
+    if ( ChatMain.isDebug )
+      ChatMain.instance.gui_log( "F", s );
+
+  }
+}
@@ -0,0 +1,149 @@
+package net.bluetoothchat;
+
+import java.io.*;
+
+/**
+ * Input stream of a link serviced by a PollingEngine, that never blocks.
+ * <p>Description: fill() moves the bytes that have arrived on the link into
+ * the buffer, reading no more than the link reports as available(). Reading
+ * from the buffer past its end throws Underflow instead of waiting for more,
+ * so FrameCodec.poll() can give up on a frame that has not fully arrived, go
+ * back to the mark and try again after the next fill(). need tells how many
+ * bytes from the mark the failed attempt asked for, so the next attempt is
+ * made only when they are there.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class InputBuffer extends InputStream
+{
+  // initial size of the buffer. it grows up to limit
+  private final static int INITIAL_SIZE = 256;
+
+  /**
+   * thrown when a read needs more bytes than the buffer holds
+   */
+  public static class Underflow extends IOException
+  {
+    public Underflow()
+    {
+      super( "frame not complete" );
+    }
+  }
+
+  // the link
+  private InputStream in;
+  // most bytes held. a frame that does not fit never completes
+  private int limit;
+
+  private byte[] buf = new byte[INITIAL_SIZE];
+  // next byte to read, and end of the bytes held
+  private int pos = 0;
+  private int count = 0;
+  private int markPos = 0;
+
+  // bytes from the mark the last read attempt asked for
+  int need = 0;
+
+  /**
+   * @param limit most bytes held, enough for the longest frame
+   */
+  public InputBuffer( InputStream in, int limit )
+  {
+    this.in = in;
+    this.limit = limit;
+  }
+
+  /**
+   * read the bytes that have arrived on the link, without blocking
+   * @return number of bytes read
+   * @throws IOException if the buffer is full without holding a frame
+   */
+  public int fill() throws IOException
+  {
+    int n = in.available();
+    if ( n <= 0 )
+      return 0;
+
+    // the bytes before pos are done with
+    if ( pos > 0 )
+    {
+      System.arraycopy( buf, pos, buf, 0, count - pos );
+      count -= pos;
+      markPos = Math.max( 0, markPos - pos );
+      pos = 0;
+    }
+    if ( count + n > buf.length )
+    {
+      if ( count >= limit )
+        throw new IOException( "frame longer than " + limit + " bytes" );
+      byte[] b = new byte[Math.min( limit, Math.max( count + n, 2 * buf.length ) )];
+      System.arraycopy( buf, 0, b, 0, count );
+      buf = b;
+    }
+    n = in.read( buf, count, Math.min( n, buf.length - count ) );
+    if ( n < 0 )
+      throw new EOFException();
+    count += n;
+    return n;
+  }
+
+  /**
+   * @return true if the bytes the last attempt asked for have arrived
+   */
+  public boolean isReady()
+  {
+    return count - markPos >= need;
+  }
+
+  public int read() throws IOException
+  {
+    if ( pos >= count )
+      underflow( 1 );
+    return buf[pos++] & 0xFF;
+  }
+
+  public int read( byte[] b, int off, int len ) throws IOException
+  {
+    if ( len == 0 )
+      return 0;
+    if ( pos >= count )
+      underflow( len );
+    int n = Math.min( len, count - pos );
+    System.arraycopy( buf, pos, b, off, n );
+    pos += n;
+    return n;
+  }
+
+  private void underflow( int len ) throws IOException
+  {
+    need = pos - markPos + len;
+    throw new Underflow();
+  }
+
+  public int available()
+  {
+    return count - pos;
+  }
+
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  public synchronized void mark( int readlimit )
+  {
+    markPos = pos;
+    need = 0;
+  }
+
+  public synchronized void reset()
+  {
+    pos = markPos;
+  }
+
+  public void close() throws IOException
+  {
+    in.close();
+  }
+}
@@ -0,0 +1,249 @@
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import java.io.*;
+
+/**
+ * In-process StreamConnection used by LoopbackTransport.
+ * <p>Description: A LoopbackConnection is one end of a pair of connected pipes.
+ * Bytes written to the output stream of one end can be read from the input
+ * stream of the other end. Each pipe has a fixed size buffer, a writer blocks
+ * when the buffer is full just like a real socket or RFCOMM link does when
+ * the remote side does not read.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class LoopbackConnection implements StreamConnection
+{
+  // default size of each pipe buffer in bytes
+  public final static int DEFAULT_BUFFER_SIZE = 8192;
+
+  // bytes written to all connections of this VM, the airtime used by a
+  // simulation. see SimBench gossip
+  private static long bytesWritten = 0;
+
+  // address of the node at the other end of this connection
+  String remoteAddress;
+
+  // pipe we read from
+  Pipe in;
+  // pipe we write to
+  Pipe out;
+
+  private LoopbackConnection( String remoteAddress, Pipe in, Pipe out )
+  {
+    this.remoteAddress = remoteAddress;
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * Create a pair of connected LoopbackConnection.
+   * @param addressA address of the node owning the first connection
+   * @param addressB address of the node owning the second connection
+   * @return array of two connections, the first one is owned by node A
+   */
+  public static LoopbackConnection[] createPair( String addressA, String addressB, int bufferSize )
+  {
+    Pipe atob = new Pipe( bufferSize );
+    Pipe btoa = new Pipe( bufferSize );
+    return new LoopbackConnection[] {
+        new LoopbackConnection( addressB, btoa, atob ),
+        new LoopbackConnection( addressA, atob, btoa ) };
+  }
+
+  public String getRemoteAddress()
+  {
+    return remoteAddress;
+  }
+
+  /**
+   * @return bytes written to all connections so far
+   */
+  public static synchronized long getBytesWritten()
+  {
+    return bytesWritten;
+  }
+
+  private static synchronized void countWritten( int n )
+  {
+    bytesWritten += n;
+  }
+
+  public InputStream openInputStream() throws IOException
+  {
+    return new PipeInputStream( in );
+  }
+
+  public DataInputStream openDataInputStream() throws IOException
+  {
+    return new DataInputStream( openInputStream() );
+  }
+
+  public OutputStream openOutputStream() throws IOException
+  {
+    return new PipeOutputStream( out );
+  }
+
+  public DataOutputStream openDataOutputStream() throws IOException
+  {
+    return new DataOutputStream( openOutputStream() );
+  }
+
+  /**
+   * close both directions. the other end will read end of stream
+   * and fail on write.
+   */
+  public void close() throws IOException
+  {
+    in.close();
+    out.close();
+  }
+
+  /**
+   * A bounded byte ring buffer shared by a writer and a reader.
+   */
+  static class Pipe
+  {
+    private byte[] buf;
+    // index of the first readable byte
+    private int head = 0;
+    // number of readable bytes
+    private int count = 0;
+    private boolean closed = false;
+
+    Pipe( int size )
+    {
+      buf = new byte[size];
+    }
+
+    synchronized void write( byte[] b, int off, int len ) throws IOException
+    {
+      while ( len > 0 )
+      {
+        // wait until there is room in the buffer
+        while ( count == buf.length && !closed )
+        {
+          try {
+            wait();
+          }
+          catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+          }
+        }
+        if ( closed )
+          throw new IOException("pipe closed");
+
+        int tail = ( head + count ) % buf.length;
+        int n = Math.min( len, buf.length - count );
+        // copy in at most two pieces because of wrap around
+        int first = Math.min( n, buf.length - tail );
+        System.arraycopy( b, off, buf, tail, first );
+        System.arraycopy( b, off + first, buf, 0, n - first );
+        countWritten( n );
+        count += n;
+        off += n;
+        len -= n;
+        notifyAll();
+      }
+    }
+
+    synchronized int read( byte[] b, int off, int len ) throws IOException
+    {
+      // wait until there is data to read
+      while ( count == 0 && !closed )
+      {
+        try {
+          wait();
+        }
+        catch (InterruptedException ex) {
+          throw new InterruptedIOException();
+        }
+      }
+      if ( count == 0 )
+        return -1; // closed and drained, end of stream
+
+      int n = Math.min( len, count );
+      int first = Math.min( n, buf.length - head );
+      System.arraycopy( buf, head, b, off, first );
+      System.arraycopy( buf, 0, b, off + first, n - first );
+      head = ( head + n ) % buf.length;
+      count -= n;
+      notifyAll();
+      return n;
+    }
+
+    synchronized int available()
+    {
+      return count;
+    }
+
+    synchronized void close()
+    {
+      closed = true;
+      notifyAll();
+    }
+  }
+
+  static class PipeInputStream extends InputStream
+  {
+    private Pipe pipe;
+    private byte[] one = new byte[1];
+
+    PipeInputStream( Pipe pipe )
+    {
+      this.pipe = pipe;
+    }
+
+    public int read() throws IOException
+    {
+      int n = pipe.read( one, 0, 1 );
+      return n < 0 ? -1 : ( one[0] & 0xFF );
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+      if ( len == 0 )
+        return 0;
+      return pipe.read( b, off, len );
+    }
+
+    public int available() throws IOException
+    {
+      return pipe.available();
+    }
+
+    public void close() throws IOException
+    {
+      pipe.close();
+    }
+  }
+
+  static class PipeOutputStream extends OutputStream
+  {
+    private Pipe pipe;
+    private byte[] one = new byte[1];
+
+    PipeOutputStream( Pipe pipe )
+    {
+      this.pipe = pipe;
+    }
+
+    public void write( int b ) throws IOException
+    {
+      one[0] = (byte) b;
+      pipe.write( one, 0, 1 );
+    }
+
+    public void write( byte[] b, int off, int len ) throws IOException
+    {
+      pipe.write( b, off, len );
+    }
+
+    public void close() throws IOException
+    {
+      pipe.close();
+    }
+  }
+}
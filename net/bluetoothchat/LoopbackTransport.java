@@ -0,0 +1,180 @@
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * In-process Transport implementation.
+ * <p>Description: All LoopbackTransport instances in the same VM form one virtual
+ * piconet. Every listening instance is visible to discover() of all other instances,
+ * and connect() hands one end of a LoopbackConnection pair to the accept() of the
+ * target instance. This allow us to run many simulated BlueChat nodes in one VM
+ * without any radio, e.g. to measure Reader/Sender throughput and latency.</p>
+ * <p>To simulate several piconets, e.g. for NetLayer.setRelay(), the range of a
+ * node can be limited with addInRange(). It then only sees and reaches the nodes
+ * added.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class LoopbackTransport implements Transport
+{
+  // url scheme of loopback connection urls
+  public final static String SCHEME = "loopback://";
+
+  // all listening LoopbackTransport in this VM, keyed by address
+  private static Hashtable nodes = new Hashtable();
+  // used to generate unique addresses
+  private static int nextId = 0;
+
+  // address of this node
+  String address;
+  // display name of this node
+  String name;
+  // size of each pipe buffer of the connections we create
+  int bufferSize = LoopbackConnection.DEFAULT_BUFFER_SIZE;
+  // addresses of the nodes in range, null if all are
+  private Vector range = null;
+
+  // connections waiting to be returned by accept()
+  private Vector acceptQueue = new Vector();
+  private boolean closed = false;
+
+  public LoopbackTransport( String name )
+  {
+    synchronized( nodes )
+    {
+      this.address = "loop" + (nextId++);
+    }
+    this.name = name;
+  }
+
+  public LoopbackTransport( String name, int bufferSize )
+  {
+    this( name );
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * put a node in range of this one, and this one in range of the node.
+   * once called, nodes not added are out of range
+   */
+  public void addInRange( LoopbackTransport node )
+  {
+    synchronized( nodes )
+    {
+      if ( range == null )
+        range = new Vector();
+      if ( node.range == null )
+        node.range = new Vector();
+      range.addElement( node.address );
+      node.range.addElement( address );
+    }
+  }
+
+  private boolean isInRange( String address )
+  {
+    synchronized( nodes )
+    {
+      return range == null || range.contains( address );
+    }
+  }
+
+  public void init() throws IOException
+  {
+  }
+
+  public void listen() throws IOException
+  {
+    // make this node visible to other nodes
+    nodes.put( address, this );
+  }
+
+  public synchronized StreamConnection accept() throws IOException
+  {
+    while ( acceptQueue.isEmpty() && !closed )
+    {
+      try {
+        wait();
+      }
+      catch (InterruptedException ex) {
+        throw new InterruptedIOException();
+      }
+    }
+    if ( closed )
+      throw new IOException("transport closed");
+
+    StreamConnection c = (StreamConnection) acceptQueue.firstElement();
+    acceptQueue.removeElementAt( 0 );
+    return c;
+  }
+
+  public StreamConnection connect( String url ) throws IOException
+  {
+    String target = url.startsWith( SCHEME ) ? url.substring( SCHEME.length() ) : url;
+    LoopbackTransport remote = (LoopbackTransport) nodes.get( target );
+    if ( remote == null || !isInRange( target ) )
+      throw new ConnectionNotFoundException( url );
+
+    LoopbackConnection[] pair = LoopbackConnection.createPair( address, remote.address, bufferSize );
+    remote.enqueue( pair[1] );
+    return pair[0];
+  }
+
+  private synchronized void enqueue( StreamConnection c ) throws IOException
+  {
+    if ( closed )
+      throw new ConnectionNotFoundException( SCHEME + address );
+    acceptQueue.addElement( c );
+    notifyAll();
+  }
+
+  /**
+   * report every other listening node. like a bluetooth inquiry, the result
+   * is delivered from another thread.
+   */
+  public void discover( final TransportListener listener ) throws IOException
+  {
+    new Thread() {
+      public void run()
+      {
+        for ( Enumeration e = nodes.elements(); e.hasMoreElements(); )
+        {
+          LoopbackTransport node = (LoopbackTransport) e.nextElement();
+          if ( node != LoopbackTransport.this && isInRange( node.address ) )
+            listener.peerDiscovered( node.address, node.name, SCHEME + node.address );
+        }
+        listener.discoveryCompleted();
+      }
+    }.start();
+  }
+
+  public String getRemoteAddress( StreamConnection c ) throws IOException
+  {
+    return ((LoopbackConnection) c).getRemoteAddress();
+  }
+
+  public String getRemoteName( StreamConnection c )
+  {
+    LoopbackTransport node = (LoopbackTransport) nodes.get( ((LoopbackConnection) c).getRemoteAddress() );
+    return node != null ? node.name : "Unknown";
+  }
+
+  public String getLocalAddress()
+  {
+    return address;
+  }
+
+  public boolean isPollable()
+  {
+    return true;
+  }
+
+  public synchronized void close()
+  {
+    nodes.remove( address );
+    closed = true;
+    notifyAll();
+  }
+}
@@ -0,0 +1,364 @@
+package net.bluetoothchat;
+
+import java.util.*;
+
+/**
+ * Flow.Publisher of the chat messages received by a NetLayer.
+ * <p>Description: Each message received, of any EndPoint, is offered to every
+ * Subscriber as a ChatEvent of TYPE_RECEIVED, in addition to the BTListener. A
+ * Subscriber gets it in onNext() only when it requested more; until then the
+ * message waits in a buffer of its own. When the buffer of any Subscriber holds
+ * bufferSize messages, the chat messages still arriving are held by the Reader
+ * of their EndPoint, see Reader.received(). The other frames, e.g. ACKs, file
+ * chunks and heartbeats, are read and handled as usual. A held message from a
+ * v2 node is not acknowledged until it is delivered, so the send window of the
+ * remote node fills and holds its Sender back, see ReliableChannel. Only a
+ * node that sends without acknowledgements can fill the Reader, which then
+ * stops reading that link until there is room again. So a slow Subscriber holds
+ * the remote senders back instead of being flooded. When it makes room, the
+ * held messages are delivered.</p>
+ * <p>onNext() runs on the thread that made the message available: a Reader, the
+ * PollingEngine, or the thread calling request(). A Subscriber that takes its time
+ * holds up that thread, and should hand the item on, e.g. to an
+ * EventDispatcher.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class MessagePublisher implements Flow.Publisher
+{
+  public final static int DEFAULT_BUFFER_SIZE = 64;
+
+  private int bufferSize;
+  // the active subscriptions. like EndPointRegistry, the array is replaced,
+  // never changed
+  private Sub[] subs = new Sub[0];
+  private boolean closed = false;
+  // told when a subscriber made room, to deliver the held messages
+  private NetLayer btnet;
+
+  public MessagePublisher()
+  {
+    this( DEFAULT_BUFFER_SIZE );
+  }
+
+  MessagePublisher( NetLayer btnet )
+  {
+    this( DEFAULT_BUFFER_SIZE );
+    this.btnet = btnet;
+  }
+
+  /**
+   * @param bufferSize messages kept per Subscriber before reading stops
+   */
+  public MessagePublisher( int bufferSize )
+  {
+    this.bufferSize = bufferSize;
+  }
+
+  public void subscribe( Flow.Subscriber subscriber )
+  {
+    if ( subscriber == null )
+      throw new NullPointerException();
+
+    Sub s = new Sub( this, subscriber );
+    boolean known = false;
+    synchronized( this )
+    {
+      for ( int i=0; i < subs.length; i++ )
+      {
+        if ( subs[i].subscriber == subscriber )
+          known = true;
+      }
+      if ( !known && !closed )
+      {
+        Sub[] a = new Sub[subs.length + 1];
+        System.arraycopy( subs, 0, a, 0, subs.length );
+        a[subs.length] = s;
+        subs = a;
+      }
+    }
+    if ( known )
+    {
+      subscriber.onSubscribe( new Sub( this, subscriber ) );
+      subscriber.onError( new IllegalStateException( "subscribed already" ) );
+      return;
+    }
+    subscriber.onSubscribe( s );
+    if ( closed )
+      subscriber.onComplete();
+  }
+
+  /**
+   * offer a received message to the subscribers. called by Reader
+   */
+  void publish( EndPoint endpt, ChatPacket packet )
+  {
+    Sub[] a = subs;
+    if ( a.length == 0 )
+      return;
+    ChatEvent e = new ChatEvent( BTListener.EVENT_RECEIVED, endpt, packet );
+    for ( int i=0; i < a.length; i++ )
+    {
+      a[i].offer( e );
+    }
+  }
+
+  /**
+   * @return true if a subscriber has a full buffer, so no more messages
+   * should be delivered
+   */
+  public boolean isPaused()
+  {
+    Sub[] a = subs;
+    for ( int i=0; i < a.length; i++ )
+    {
+      if ( a[i].isFull() )
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * wait until no subscriber has a full buffer. called by a Reader that
+   * holds as many messages as it may
+   * @param timeout most time to wait in ms
+   * @return false if reading is still paused
+   */
+  synchronized boolean awaitRoom( long timeout )
+  {
+    if ( isPaused() )
+    {
+      try {
+        wait( timeout );
+      }
+      catch (InterruptedException ex) {
+        // check again
+      }
+    }
+    return !isPaused();
+  }
+
+  /**
+   * the messages are over, e.g. because NetLayer disconnected. the
+   * subscribers get onComplete() after the messages still buffered
+   */
+  public void close()
+  {
+    Sub[] a;
+    synchronized( this )
+    {
+      closed = true;
+      a = subs;
+      notifyAll();
+    }
+    for ( int i=0; i < a.length; i++ )
+    {
+      a[i].complete();
+    }
+  }
+
+  /**
+   * a subscriber made room, deliver the held messages and wake the
+   * paused Readers
+   */
+  private void resumed()
+  {
+    synchronized( this )
+    {
+      notifyAll();
+    }
+    if ( btnet != null )
+      btnet.deliveryResumed();
+  }
+
+  private synchronized void remove( Sub s )
+  {
+    int n = 0;
+    for ( int i=0; i < subs.length; i++ )
+    {
+      if ( subs[i] != s )
+        n++;
+    }
+    if ( n == subs.length )
+      return;
+    Sub[] a = new Sub[n];
+    n = 0;
+    for ( int i=0; i < subs.length; i++ )
+    {
+      if ( subs[i] != s )
+        a[n++] = subs[i];
+    }
+    subs = a;
+  }
+
+  /**
+   * the subscription of one Subscriber: its demand and buffered messages
+   */
+  static class Sub implements Flow.Subscription
+  {
+    MessagePublisher publisher;
+    Flow.Subscriber subscriber;
+    // number of onNext() calls allowed, Long.MAX_VALUE for no limit
+    long demand = 0;
+    Vector buffer = new Vector();
+    boolean cancelled = false;
+    // no more messages come, onComplete() follows the buffered ones
+    boolean completing = false;
+    boolean terminated = false;
+    // a thread is calling the subscriber, see drain()
+    boolean draining = false;
+    // passed to onError() by drain(), after which nothing is passed
+    Throwable error = null;
+
+    Sub( MessagePublisher publisher, Flow.Subscriber subscriber )
+    {
+      this.publisher = publisher;
+      this.subscriber = subscriber;
+    }
+
+    public void request( long n )
+    {
+      if ( n <= 0 )
+      {
+        // the subscription ends, the error comes from drain() so that it
+        // is not passed while an onNext() call is running
+        fail( new IllegalArgumentException( "request " + n ) );
+        return;
+      }
+      synchronized( this )
+      {
+        demand += n;
+        // overflow means no limit
+        if ( demand <= 0 )
+          demand = Long.MAX_VALUE;
+      }
+      drain();
+    }
+
+    public void cancel()
+    {
+      synchronized( this )
+      {
+        cancelled = true;
+        buffer.removeAllElements();
+      }
+      publisher.remove( this );
+      // it may have been the one holding the messages back
+      publisher.resumed();
+    }
+
+    /**
+     * cancel, and pass the error to the subscriber
+     */
+    private void fail( Throwable t )
+    {
+      synchronized( this )
+      {
+        if ( error == null && !cancelled )
+          error = t;
+      }
+      cancel();
+      drain();
+    }
+
+    synchronized boolean isFull()
+    {
+      return !cancelled && buffer.size() >= publisher.bufferSize;
+    }
+
+    void offer( ChatEvent e )
+    {
+      synchronized( this )
+      {
+        if ( cancelled || completing )
+          return;
+        buffer.addElement( e );
+      }
+      drain();
+    }
+
+    void complete()
+    {
+      synchronized( this )
+      {
+        completing = true;
+      }
+      drain();
+    }
+
+    /**
+     * call the subscriber for the buffered messages it asked for. one
+     * thread at a time does it, a request() from within onNext() only adds
+     * to the demand, so the calls never nest
+     */
+    private void drain()
+    {
+      synchronized( this )
+      {
+        if ( draining )
+          return;
+        draining = true;
+      }
+      boolean wasFull = false;
+      while ( true )
+      {
+        ChatEvent e = null;
+        boolean done = false;
+        Throwable t = null;
+        synchronized( this )
+        {
+          if ( buffer.size() >= publisher.bufferSize )
+            wasFull = true;
+          if ( error != null && !terminated )
+          {
+            t = error;
+            terminated = true;
+          } else if ( cancelled || terminated )
+          {
+            draining = false;
+            break;
+          } else if ( !buffer.isEmpty() && demand > 0 )
+          {
+            e = (ChatEvent) buffer.elementAt( 0 );
+            buffer.removeElementAt( 0 );
+            if ( demand != Long.MAX_VALUE )
+              demand--;
+          } else if ( buffer.isEmpty() && completing )
+          {
+            terminated = done = true;
+          } else
+          {
+            draining = false;
+            break;
+          }
+        }
+        if ( t != null )
+        {
+          subscriber.onError( t );
+          continue;
+        }
+        if ( done )
+        {
+          subscriber.onComplete();
+          continue;
+        }
+        try {
+          subscriber.onNext( e );
+        }
+        catch (RuntimeException ex) {
+          // a broken subscriber is cancelled, so it cannot hold the
+          // messages back. the error is passed in the next round
+          synchronized( this )
+          {
+            if ( error == null && !cancelled )
+              error = ex;
+          }
+          cancel();
+        }
+      }
+      if ( wasFull )
+        publisher.resumed();
+    }
+  }
+}
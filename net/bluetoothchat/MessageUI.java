@@ -37,6 +37,7 @@ public class MessageUI extends Canvas
   {
     addCommand(new Command("Write", Command.SCREEN, 1));
     addCommand(new Command("Clear", Command.SCREEN, 2));
+    addCommand(new Command("Rooms", Command.SCREEN, 2));
     addCommand(new Command("About Bluetooth Chat", Command.SCREEN, 3));
     addCommand(new Command("Exit", Command.SCREEN, 4));
     setCommandListener( ChatMain.instance );
@@ -77,6 +78,10 @@ public class MessageUI extends Canvas
     {
       ChatPacket p = (ChatPacket)msgs.elementAt(i);
       String s = p.sender+": "+p.msg;
+      if ( p.room != null )
+        s = "["+p.room+"] "+s;
+      if ( p.to != null )
+        s = "(private) "+s;
       g.drawString( s, 0, y, Graphics.BASELINE | Graphics.LEFT );
       y += fh;
     }
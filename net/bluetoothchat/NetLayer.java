@@ -1,593 +1,2181 @@
-package net.bluetoothchat;
-
-import javax.microedition.io.*;
-import javax.bluetooth.*;
-import java.io.*;
-import java.util.*;
-import javax.bluetooth.RemoteDevice;
-import javax.bluetooth.DeviceClass;
-import javax.bluetooth.ServiceRecord;
-
-/**
- * This is the main class for handling bluetooth connectivity and
- * device/service discovery process. This class does many things, including
- * - search for bluetooth devices (query())
- * - create a local BlueChat server and register it with bluetooth (run())
- * - search for remote BlueChat services using searchServices()
- * - handle incoming connection request from remote BlueChat
- * - establish connection to remote BlueChat
- *
- * @author P Coder
- * @version 1.0
- */
-public class NetLayer implements Runnable
-{
-  public final static int SIGNAL_HANDSHAKE = 0;
-  public final static int SIGNAL_MESSAGE = 1;
-  public final static int SIGNAL_TERMINATE = 3;
-  public final static int SIGNAL_HANDSHAKE_ACK = 4;
-  public final static int SIGNAL_TERMINATE_ACK = 5;
-
-  // BlueChat specific service UUID
-  // note: this UUID must be a string of 32 char
-  // do not use the 0x???? constructor because it won't
-  // work. not sure if it is a N6600 bug or not
-  private final static UUID uuid = new UUID("102030405060708090A0B0C0D0E0F010", false);
-
-  //
-  // major service class as SERVICE_TELEPHONY
-  private final static int SERVICE_TELEPHONY = 0x400000;
-
-  // reference to local bluetooth device singleton
-  LocalDevice localDevice = null;
-  // reference to local discovery agent singleton
-  DiscoveryAgent agent = null;
-  // local BlueChat service server object
-  StreamConnectionNotifier server;
-  // reference to BListener implementation. for BlueChat event callback
-  BTListener callback = null;
-
-  boolean done = false;
-
-  String localName = "";
-
-  // list of active EndPoints. all messages will be sent to all
-  // active EndPoints
-  Vector endPoints = new Vector();
-
-  // list of pending EndPoints. this is used to keep track of
-  // discovered devices waiting for service discovery. When all the near-by
-  // BlueChat service has been discovered, this list will be cleared until the
-  // next inquiry
-  Vector pendingEndPoints = new Vector();
-
-
-  // map ServiceRecord to EndPoint
-  // see DoServiceDiscovery and serviceSearchCompleted
-  Hashtable serviceRecordToEndPoint = new Hashtable();
-
-  // synchronization lock
-  // see DoServiceDiscovery and serviceSearchCompleted
-  Object lock = new Object();
-
-  // timer to schedule task to do service discovery
-  // see inquiryCompleted
-  Timer timer = new Timer();
-
-  public NetLayer()
-  {
-  }
-
-  public void init(String name, BTListener callback)
-  {
-    log( "invoke init()" );
-    try {
-      this.localName = name;
-      this.callback = callback;
-
-      //
-      // initialize the JABWT stack
-      localDevice = LocalDevice.getLocalDevice(); // obtain reference to singleton
-      localDevice.setDiscoverable(DiscoveryAgent.GIAC); // set Discover mode to GIAC
-      agent = localDevice.getDiscoveryAgent(); // obtain reference to singleton
-
-      // print local device information
-      Util.printLocalDevice( localDevice );
-
-
-      // start bluetooth server socket
-      // see run() for implementation of local BlueChat service
-      Thread thread = new Thread( this );
-      thread.start();
-
-
-    }
-    catch (BluetoothStateException e) {
-      e.printStackTrace();
-      log(e.getClass().getName()+" "+e.getMessage());
-
-    }
-    catch (IOException e) {
-      e.printStackTrace();
-      log(e.getClass().getName()+" "+e.getMessage());
-
-    }
-  }
-
-  public void disconnect()
-  {
-    log("invoke disconnect()");
-
-    // stop server socket, not longer accept client connection
-    done = true;
-    try {
-      // this close will interrupt server.acceptAndOpen()
-      // wake it up to exit
-      server.close();
-    }
-    catch (IOException ex) {
-    }
-
-    // stop each EndPoint reader and sender threads
-    // and send TERMINATE signal to other connected
-    // BlueChat peers
-    for ( int i=0; i < endPoints.size(); i++ )
-    {
-      EndPoint endpt = (EndPoint) endPoints.elementAt( i );
-      endpt.putString( NetLayer.SIGNAL_TERMINATE, "end" );
-      endpt.sender.stop();
-      endpt.reader.stop();
-
-    }
-  }
-
-  public void query()
-  {
-    try {
-      log("invoke query()");
-      // although JSR-82 provides the ability to lookup
-      // cached and preknown devices, we intentionally by-pass
-      // them and go to discovery mode directly.
-      // this allow us to retrieve the latest active BlueChat parties
-      agent.startInquiry(DiscoveryAgent.GIAC, new Listener());
-    }
-    catch (BluetoothStateException e)
-    {
-      e.printStackTrace();
-      log(e.getClass().getName()+" "+e.getMessage());
-
-    }
-  }
-
-
-  public EndPoint findEndPointByRemoteDevice( RemoteDevice rdev )
-  {
-    for ( int i=0; i < endPoints.size(); i++ )
-    {
-      EndPoint endpt = (EndPoint) endPoints.elementAt( i );
-      if ( endpt.remoteDev.equals( rdev ) )
-      {
-        return endpt;
-      }
-    }
-    return null; // not found, return null
-  }
-
-  public EndPoint findEndPointByTransId( int id )
-  {
-    for ( int i=0; i < pendingEndPoints.size(); i++ )
-    {
-      EndPoint endpt = (EndPoint) pendingEndPoints.elementAt( i );
-      if ( endpt.transId == id )
-      {
-        return endpt;
-      }
-    }
-    return null; // not found, return null
-  }
-
-  /**
-   * Send a string message to all active EndPoints
-   * @param s
-   */
-  public void sendString( String s )
-  {
-    log("invoke sendString string="+s);
-    for ( int i=0; i < endPoints.size(); i++ )
-    {
-      EndPoint endpt = (EndPoint) endPoints.elementAt( i );
-      // put the string on EndPoint, so sender will send the message
-      endpt.putString( NetLayer.SIGNAL_MESSAGE, s );
-    }
-  }
-
-  /**
-   * Clean up the resource for a EndPoint, remove it from the active list.
-   * This is triggered by a remote EndPoint leaving the network
-   * @param endpt
-   */
-  public void cleanupRemoteEndPoint( EndPoint endpt )
-  {
-    log("invoke cleanupRemoteEndPoint()");
-    // set 'done' flag to true to exit the run loop
-    endpt.reader.stop();
-    endpt.sender.stop();
-
-    // remove this end point from the active end point list
-    endPoints.removeElement( endpt );
-
-  }
-
-  /**
-   * Implement local BlueChat service.
-   */
-  public void run()
-  {
-    // connection to remote device
-    StreamConnection c = null;
-    try
-    {
-      // Create a server connection object, using a
-      // Serial Port Profile URL syntax and our specific UUID
-      // and set the service name to BlueChatApp
-      server =  (StreamConnectionNotifier)Connector.open(
-          "btspp://localhost:" + uuid.toString() +";name=BlueChatApp");
-
-      // Retrieve the service record template
-      ServiceRecord rec = localDevice.getRecord( server );
-
-      // set ServiceRecrod ServiceAvailability (0x0008) attribute to indicate our service is available
-      // 0xFF indicate fully available status
-      // This operation is optional
-      rec.setAttributeValue( 0x0008, new DataElement( DataElement.U_INT_1, 0xFF ) );
-
-      // Print the service record, which already contains
-      // some default values
-      Util.printServiceRecord( rec );
-
-      // Set the Major Service Classes flag in Bluetooth stack.
-      // We choose Object Transfer Service
-      rec.setDeviceServiceClasses(
-          SERVICE_TELEPHONY  );
-
-
-
-    } catch (Exception e)
-    {
-      e.printStackTrace();
-      log(e.getClass().getName()+" "+e.getMessage());
-    }
-
-    while( !done)
-    {
-      try {
-        ///////////////////////////////
-        log("local service waiting for client connection");
-
-        // this message is to inform user that the server is up and ready
-        ChatMain.instance.gui_log( "", "Getting Started. Please Wait..." );
-
-        //
-        // start accepting client connection.
-        // This method will block until a client
-        // connected
-        c = server.acceptAndOpen();
-
-        log("local service accept a new client connection");
-
-
-        //
-        // retrieve the remote device object
-        RemoteDevice rdev = RemoteDevice.getRemoteDevice( c );
-        //
-        // check to see if the EndPoint already exist
-        EndPoint endpt = findEndPointByRemoteDevice( rdev );
-        if ( endpt != null )
-        {
-          // this is a safe guard to assure that this client
-          // has not been connected before
-          log("client connection end point already exist.. ignore this connection");
-        } else
-        {
-          // - create a new EndPoint object
-          // - initialize the member variables
-          // - start the data reader and sender threads.
-          endpt = new EndPoint( this, rdev, c);
-
-          Thread t1 = new Thread( endpt.sender );
-          t1.start();
-
-          Thread t2 = new Thread( endpt.reader );
-          t2.start();
-
-          // add this EndPoint to the active list
-          endPoints.addElement( endpt );
-
-          log("a new active EndPoint is established. name=" + endpt.remoteName);
-
-        }
-
-
-      }
-      catch (IOException e) {
-        e.printStackTrace();
-        log(e.getClass().getName()+" "+e.getMessage());
-
-        // if any exception happen, we assume this connection is
-        // failed and close it. closing the connection will cause
-        // the reader and sender thread to exit (because they will got
-        // exception as well).
-        if (c != null)
-          try {
-            c.close();
-          }
-          catch (IOException e2) {
-            // ignore
-          }
-
-      }
-      finally {
-        // nothing to do here
-      }
-    } // while !done
-  } // end run()
-
-  public static void log( String s)
-  {
-    System.out.println("NetLayer: "+s);
-
-    // "N" means NetLayer
-    if ( ChatMain.isDebug )
-      ChatMain.instance.gui_log( "N", s );
-
-  }
-
-
-  /**
-   * Internal discovery listener class for handling device & service discovery events.
-   * @author P Coder
-   * @version 1.0
-   */
-  class Listener implements DiscoveryListener
-  {
-
-    /**
-     * A device is discovered.
-     * Create a EndPoint for the device discovered and put it on the pending list.
-     * A service search will happen when all the qualifying devices are discovered.
-     *
-     * @param remoteDevice
-     * @param deviceClass
-     */
-    public void deviceDiscovered(RemoteDevice remoteDevice,
-                                 DeviceClass deviceClass)
-    {
-      try {
-        log("invoke deviceDiscovered name=" + remoteDevice.getFriendlyName(false));
-      }
-      catch (IOException ex) {
-      }
-
-      // only device of SERVICE_OBJECT_TRANSFER will be considered as candidate device
-      // because in our BlueChat service, we explicitly set the service class to
-      // SERVICE_OBJECT_TRANSFER. see the run() method
-//      if ( (deviceClass.getServiceClasses() & SERVICE_OBJECT_TRANSFER) != 0 )
-//      {
-        try
-        {
-          // create a inactive EndPoint and put it on the pending list
-          EndPoint endpt = new EndPoint(NetLayer.this, remoteDevice, null);
-          pendingEndPoints.addElement( endpt );
-
-        } catch (Exception e)
-        {
-          e.printStackTrace();
-          log(e.getClass().getName()+" "+e.getMessage());
-
-        }
-//      } else
-//      {
-//        log("found device that is not Object Transfer Service, ignore this device...");
-//      }
-    }
-
-    /**
-     * device discovery completed.
-     * After device inquery completed, we start to search for BlueChat services.
-     * We loop through all the pending EndPoints and request agent.searchServices
-     * on each of the remote device.
-     * @param transId
-     */
-    public void inquiryCompleted(int transId)
-    {
-      log( "invoke inqueryCompleted" );
-
-      // wait 100ms and start doing service discovery
-      // the choice of 100ms is really just a guess
-      timer.schedule( new DoServiceDiscovery(), 100 );
-    }
-
-    /**
-     * a service is discovered from a remote device.
-     * when a BlueChat service is discovered, we establish a connection to
-     * this service. This signal joining the existing virtual chat room.
-     * @param transId
-     * @param svcRec
-     */
-    public void servicesDiscovered(int transId, ServiceRecord[] svcRec)
-    {
-      log( "invoke servicesDiscovered:"+transId+","+svcRec.length);
-      try {
-
-        for ( int i=0; i< svcRec.length; i++ )
-        {
-          Util.printServiceRecord( svcRec[i] );
-
-
-          EndPoint endpt = findEndPointByTransId( transId );
-
-          serviceRecordToEndPoint.put( svcRec[i], endpt );
-
-        }
-
-      }
-      catch (Exception e) {
-        e.printStackTrace();
-        log(e.getClass().getName());
-        log(e.getMessage());
-
-      }
-    }
-
-    /**
-     * service discovery is completed.
-     * @param int0
-     * @param int1
-     */
-    public void serviceSearchCompleted(int transID, int respCode)
-    {
-      log("invoke serviceSearchCompleted: "+transID);
-      // print response code
-      if ( respCode == SERVICE_SEARCH_COMPLETED )
-        log("SERVICE_SEARCH_COMPLETED");
-      else if ( respCode == SERVICE_SEARCH_TERMINATED )
-        log("SERVICE_SEARCH_TERMINATED");
-      else if ( respCode == SERVICE_SEARCH_ERROR )
-        log("SERVICE_SEARCH_ERROR");
-      else if ( respCode == SERVICE_SEARCH_NO_RECORDS )
-        log("SERVICE_SEARCH_NO_RECORDS");
-      else if ( respCode == SERVICE_SEARCH_DEVICE_NOT_REACHABLE )
-        log("SERVICE_SEARCH_DEVICE_NOT_REACHABLE");
-
-
-      for ( Enumeration records = serviceRecordToEndPoint.keys(); records.hasMoreElements(); )
-      {
-        try {
-
-
-        ServiceRecord rec = (ServiceRecord) records.nextElement();
-
-        // We make an assumption that the first service is BlueChat. In fact, only one
-        // service record will be found on each device.
-        // Note: we know the found service is BlueChat service because we search on specific UUID,
-        // this UUID is unique to us.
-        String url  = rec.getConnectionURL( ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false );
-        log("BlueChat service url="+url);
-        StreamConnection con = (StreamConnection)Connector.open( url );
-
-        // retrieve the pending EndPoint and initialize the necessary member variables
-        // to activate the EndPoint. this includes
-        // - initialize connection
-        // - start sender and reader thread
-        EndPoint endpt = (EndPoint) serviceRecordToEndPoint.get( rec );
-        if ( endpt != null )
-        {
-          endpt.con = con;
-
-
-          Thread t1 = new Thread( endpt.sender );
-          t1.start();
-
-          Thread t2 = new Thread( endpt.reader );
-          t2.start();
-
-          endPoints.addElement( endpt );
-
-          log("a new active EndPoint is established. name=" + endpt.remoteName);
-
-          // once a EndPoint established, the BlueChat client is responsible to initiate the
-          // handshake protocol.
-          endpt.putString( NetLayer.SIGNAL_HANDSHAKE, localName );
-
-
-        } else
-        {
-          log("cannot find pending EndPoint when a service is discovered. ignore this service...");
-        }
-
-        } catch (Exception e)
-        {
-          e.printStackTrace();
-          log(e.getClass().getName()+" "+e.getMessage());
-
-        }
-      } // for
-
-      // finished process current batch of service record
-      // clear it and service discovery on next device
-      serviceRecordToEndPoint.clear();
-
-      synchronized( lock )
-      {
-        // unlock to proceed to service search on next device
-        // see DoServiceDiscovery.run()
-        lock.notifyAll();
-      }
-
-    }
-
-  } // inner class Listener
-
-  class DoServiceDiscovery extends TimerTask
-  {
-    public void run()
-    {
-      //
-      // for each EndPoint, we search for BlueChat service
-      for (int i = 0; i < pendingEndPoints.size(); i++)
-      {
-
-        EndPoint endpt = (EndPoint) pendingEndPoints.elementAt(i);
-
-        try {
-          log("search service on device " + endpt.remoteName);
-
-          //
-          // searchServices return a transaction id, which we will used to
-          // identify which remote device the service is found in our callback
-          // listener (class Listener)
-          //
-          // note: in theory, only one runtine instance of Listener is needed
-          // to handle all discovery callback. however, there is a bug in rococo
-          // simualtor that cause callback fails with one instance of used
-          // so we make a new Listener for every searchServices()
-          endpt.transId = agent.searchServices(null // null to indicate retrieve default attributes
-                                               ,
-                                               new UUID[] { uuid }  // BlueChat service UUID SerialPort
-                                               ,
-                                               endpt.remoteDev,
-                                               new Listener());
-
-          // wait until the above service discovery is completed
-          // because N6600 cannot handle more than one service discovery
-          // request at the same time
-          // see serviceSearchCompleted()
-          synchronized( lock )
-          {
-            try {
-              lock.wait();
-            }
-            catch (InterruptedException ex) {
-            }
-          }
-        }
-        catch (BluetoothStateException e) {
-          e.printStackTrace();
-          log(e.getClass().getName()+" "+e.getMessage());
-
-        }
-
-      } // for
-
-      // no more service to discovery. so any pending EndPoints
-      // will be ignored and removed
-      pendingEndPoints.removeAllElements();
-
-      // this message is to inform user that chatting can start
-      ChatMain.instance.gui_log( "", "Ready to chat. Please select write option from the menu to compose message");
-
-    }
-
-  }
-
-}
\ No newline at end of file
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * This is the main class for handling BlueChat connectivity and
+ * peer discovery process. This class does many things, including
+ * - create a local BlueChat server through the Transport (run())
+ * - search for remote BlueChat services through the Transport (query())
+ * - handle incoming connection request from remote BlueChat
+ * - establish connection to remote BlueChat (peerDiscovered())
+ *
+ * The link specific work is done by a Transport implementation. By default
+ * this is BluetoothTransport; LoopbackTransport and SocketTransport can be used
+ * to run many BlueChat nodes without a bluetooth radio.
+ *
+ * @author P Coder
+ * @version 1.0
+ */
+public class NetLayer implements Runnable, TransportListener
+{
+  public final static int SIGNAL_HANDSHAKE = 0;
+  public final static int SIGNAL_MESSAGE = 1;
+  public final static int SIGNAL_TERMINATE = 3;
+  public final static int SIGNAL_HANDSHAKE_ACK = 4;
+  public final static int SIGNAL_TERMINATE_ACK = 5;
+  // announce that we speak v2 frames. see FrameCodec
+  public final static int SIGNAL_VERSION = 6;
+  // keeps an idle link alive, see setHeartbeat(). only sent to v2 nodes
+  public final static int SIGNAL_HEARTBEAT = 7;
+  // acknowledges chat messages, see ReliableChannel. only sent to v2 nodes
+  public final static int SIGNAL_ACK = 8;
+  // session id and resume point, see sessionReceived(). only sent to v2 nodes
+  public final static int SIGNAL_SESSION = 9;
+  // file transfer frames, see FileTransfer. only sent to v2 nodes
+  public final static int SIGNAL_FILE_OFFER = 10;
+  public final static int SIGNAL_FILE_CHUNK = 11;
+  public final static int SIGNAL_FILE_ACK = 12;
+  // logical channel frames, see ChannelMux. only sent to v2 nodes
+  public final static int SIGNAL_CREDIT = 13;
+  public final static int SIGNAL_DATA = 14;
+  // the chat rooms a node is in, see joinRoom(). only sent to v2 nodes
+  public final static int SIGNAL_ROOMS = 15;
+  // the ids of the messages a node handled lately, and the ids a node
+  // misses. see setGossip()
+  public final static int SIGNAL_DIGEST = 16;
+  public final static int SIGNAL_PULL = 17;
+
+  // how often in ms the HeartbeatTask checks the EndPoints
+  private final static int HEARTBEAT_CHECK = 1000;
+  // ms between grants of the same channel credit when there is no
+  // heartbeat interval to go by, see HeartbeatTask
+  private final static int CREDIT_CHECK = 20000;
+  // time in ms a file transfer may go without progress before it is
+  // restarted from the last acknowledged offset, and the number of offers
+  // that may go unanswered
+  private final static int TRANSFER_TIMEOUT = 10000;
+  private final static int MAX_OFFERS = 3;
+
+  // mesh relay defaults, see setRelay()
+  public final static int DEFAULT_RELAY_HOPS = 4;
+  public final static int DEFAULT_SEEN_MAX = 512;
+  public final static int DEFAULT_SEEN_TTL = 120000;
+  // gossip defaults, see setGossip()
+  public final static int DEFAULT_FANOUT = 2;
+  public final static int DEFAULT_DIGEST_PERIOD = 2000;
+  // most messages offered in a digest. must stay well below the size of
+  // the SeenSet, or a node pulls a message it has forgotten it handled
+  private final static int GOSSIP_KEEP = 32;
+
+  // link layer used to listen, accept, connect and discover
+  Transport transport = null;
+  // reference to BListener implementation. for BlueChat event callback
+  BTListener callback = null;
+  // optional event loop servicing all EndPoints. when null, or when the
+  // transport is not pollable, each EndPoint gets its own reader and sender thread
+  PollingEngine engine = null;
+  // optional strategy to run EndPoint readers and senders. when null,
+  // each one is started in a new Thread
+  TaskRunner runner = null;
+
+  // write coalescing limits, see setBatching(). by default every
+  // packet is flushed on its own
+  int batchMaxPackets = 1;
+  int batchMaxBytes = 512;
+  int batchMaxDelay = 0;
+
+  // outbound queue limit of each EndPoint, see setQueueLimit()
+  int queueCapacity = 0;
+  int queuePolicy = PacketQueue.POLICY_BLOCK;
+  // how chat and bulk packets share each link, see setScheduling()
+  int scheduling = PacketQueue.SCHED_STRICT;
+  int chatWeight = 4;
+  int bulkWeight = 1;
+
+  // optional cache of known peers, see setPeerCache()
+  PeerCache peerCache = null;
+
+  // discovered peers waiting to be connected, as String[] { address, name, url }.
+  // see peerDiscovered() and Connector
+  Vector pendingConnects = new Vector();
+  // cached peers waiting to be connected, after the discovered ones. see query()
+  Vector pendingCached = new Vector();
+  // max number of Connector threads, and number running
+  int maxConnects = 1;
+  int connectors = 0;
+
+  // start of the last query(), and time the first peer completed the handshake
+  long queryStart = 0;
+  long firstPeerTime = 0;
+
+  // send chat messages to v2 nodes with acknowledged delivery, see setReliable()
+  boolean reliable = true;
+
+  // heartbeat settings in ms, see setHeartbeat()
+  int heartbeatMin = 5000;
+  int heartbeatMax = 20000;
+  int livenessTimeout = 60000;
+  Timer heartbeatTimer = null;
+
+  // id of this run of the node, so that a peer can tell a reconnect
+  // from a restart. see sessionReceived()
+  long sessionId = 0;
+  // state of the v2 EndPoints whose link broke, map address to RetainedSession.
+  // see setSessionRetention()
+  Hashtable sessions = new Hashtable();
+  int retainMessages = 256;
+  int retainTime = 300000;
+
+  // storage of sent and received files, see setTransferStore()
+  TransferStore transferStore = null;
+  int chunkSize = 1024;
+  int transferWindow = 8;
+  // transfers not finished yet, and received ones kept for retainTime in
+  // case the last ACK got lost. map FileTransfer.key() to FileTransfer
+  Hashtable transfers = new Hashtable();
+  Random random = new Random();
+
+  // listeners of the logical channels opened here, map Integer channel to
+  // BTListener. see openChannel()
+  Hashtable channelListeners = new Hashtable();
+  int channelWindow = 8;
+  int channelBacklog = 64;
+
+  // the rooms we are in, and the rooms each EndPoint announced
+  Vector rooms = new Vector();
+  RoomIndex roomIndex = new RoomIndex();
+
+  // mesh relay, see setRelay(). messages are not relayed with 0 hops, but
+  // relayed ones are still handled once
+  int relayHops = 0;
+  SeenSet seen = new SeenSet( DEFAULT_SEEN_MAX, DEFAULT_SEEN_TTL );
+  // our address, the origin of the messages we send
+  String localAddress = "";
+  // the last message id we gave out, its high half is random per run
+  long lastMessageId;
+  // updated by every Reader, under the lock of seen
+  int relayCount = 0;
+  int duplicateCount = 0;
+
+  // gossip instead of flooding, see setGossip(). 0 fanout floods
+  int gossipFanout = 0;
+  int digestPeriod = 0;
+  long lastDigest = 0;
+  // the last messages handled, the ones offered in a digest. of Recent
+  Vector recent = new Vector();
+  int pullCount = 0;
+
+  // the received messages for Flow subscribers, see getPublisher()
+  MessagePublisher publisher = new MessagePublisher( this );
+
+  // links closed because the node was connected already, see addEndPoint()
+  int duplicateLinkCount = 0;
+  // addresses we are connecting to, and the EndPoints of those addresses
+  // dropped meanwhile whose LEAVE event waits for the connect. map address
+  // to EndPoint
+  Vector connecting = new Vector();
+  Hashtable quietDrops = new Hashtable();
+  // duplicate links opened by the remote node, left for it to close. map
+  // address to StreamConnection
+  Hashtable parked = new Hashtable();
+
+  // wire protocol settings, see setProtocol()
+  int protocolVersion = 2;
+  boolean useChecksum = false;
+  int maxFrameLength = FrameCodec.DEFAULT_MAX_FRAME;
+
+  boolean done = false;
+
+  String localName = "";
+
+  // active EndPoints. all messages will be sent to all
+  // active EndPoints
+  EndPointRegistry endPoints = new EndPointRegistry();
+
+  public NetLayer()
+  {
+  }
+
+  public void init(String name, BTListener callback)
+  {
+    init( name, callback, new BluetoothTransport() );
+  }
+
+  /**
+   * Service the EndPoints with a PollingEngine instead of two threads
+   * per EndPoint. Must be called before init(). This only takes effect
+   * if the transport is pollable.
+   */
+  public void setPollingEngine( PollingEngine engine )
+  {
+    this.engine = engine;
+  }
+
+  /**
+   * Run EndPoint readers and senders with the given TaskRunner instead of
+   * new threads, e.g. on virtual threads. Must be called before init().
+   * Ignored when a PollingEngine is in use.
+   */
+  public void setTaskRunner( TaskRunner runner )
+  {
+    this.runner = runner;
+  }
+
+  /**
+   * Let each Sender write all pending packets with one flush, instead of
+   * one flush per packet. A batch ends when it holds maxPackets packets or
+   * maxBytes bytes, or when no more packet is queued within maxDelay ms
+   * after the first one. A Sender serviced by a PollingEngine never waits.
+   * See Sender.getStats() for the batch sizes achieved.
+   */
+  public void setBatching( int maxPackets, int maxBytes, int maxDelay )
+  {
+    batchMaxPackets = maxPackets;
+    batchMaxBytes = maxBytes;
+    batchMaxDelay = maxDelay;
+  }
+
+  /**
+   * Choose the wire protocol. With version 2, v2 frames are used towards
+   * every node that announces v2 support; version 1 only speaks v1 frames.
+   * @param version 1 or 2
+   * @param checksum true to append a CRC-32C to every v2 frame
+   * @param maxFrameLength largest v2 frame body we accept
+   */
+  public void setProtocol( int version, boolean checksum, int maxFrameLength )
+  {
+    this.protocolVersion = version;
+    this.useChecksum = checksum;
+    this.maxFrameLength = maxFrameLength;
+  }
+
+  /**
+   * Limit the number of messages waiting to be sent to each EndPoint, so
+   * that a slow peer cannot make the queue grow without limit. Control
+   * signals are not limited. Messages relayed for other nodes never wait
+   * for room, with POLICY_BLOCK they are dropped instead. Must be called
+   * before init().
+   * See EndPoint.getQueueDepth() and getDropCount() to size the queues.
+   * @param capacity max number of queued messages, 0 for no limit
+   * @param policy what to do when the queue is full, PacketQueue.POLICY_XXX
+   */
+  public void setQueueLimit( int capacity, int policy )
+  {
+    this.queueCapacity = capacity;
+    this.queuePolicy = policy;
+  }
+
+  /**
+   * Choose how chat messages and bulk transfers share each link. Control
+   * signals always go first. With PacketQueue.SCHED_STRICT chat messages go
+   * before bulk packets; with PacketQueue.SCHED_WEIGHTED up to chatWeight
+   * chat messages and then up to bulkWeight bulk packets are sent in turn.
+   * See EndPoint.getLatencyStats() for the time each class waits.
+   * Must be called before init().
+   */
+  public void setScheduling( int mode, int chatWeight, int bulkWeight )
+  {
+    this.scheduling = mode;
+    this.chatWeight = chatWeight;
+    this.bulkWeight = bulkWeight;
+  }
+
+  /**
+   * Remember discovered peers in a PeerCache. query() then queues the
+   * cached peers to be connected right away, and revalidates them with a
+   * discovery that runs meanwhile. Must be called before init().
+   */
+  public void setPeerCache( PeerCache cache )
+  {
+    this.peerCache = cache;
+  }
+
+  /**
+   * Connect to up to n discovered peers at the same time. Some bluetooth
+   * stacks cannot open more than one connection at a time, so the default is 1.
+   */
+  public void setMaxConnects( int n )
+  {
+    this.maxConnects = n;
+  }
+
+  /**
+   * @return time in ms from query() to the first peer that completed the
+   * handshake, or -1 if no peer has yet
+   */
+  public long getTimeToFirstPeer()
+  {
+    return firstPeerTime > 0 ? firstPeerTime - queryStart : -1;
+  }
+
+  /**
+   * Turn acknowledged delivery of chat messages to v2 nodes on or off.
+   * Messages from v2 nodes that use it are always acknowledged.
+   * See ReliableChannel. Must be called before init().
+   */
+  public void setReliable( boolean reliable )
+  {
+    this.reliable = reliable;
+  }
+
+  /**
+   * Detect dead links. A v2 EndPoint that has not sent anything for
+   * livenessTimeout ms is closed and removed, with a LEAVE event. To keep
+   * a healthy link alive, a heartbeat is sent when nothing was sent for a
+   * while. The heartbeat interval grows with the time since the last chat
+   * message, from minInterval up to maxInterval, so an idle link uses little
+   * airtime. maxInterval must be well below the livenessTimeout of the peers.
+   * v1 nodes send no heartbeats and are never timed out. Must be called
+   * before init().
+   * @param livenessTimeout 0 to turn heartbeats and timeouts off. the other
+   * periodic work goes on, e.g. the expiry of retained sessions, the restart
+   * of stalled file transfers, channel credit and gossip digests
+   */
+  public void setHeartbeat( int minInterval, int maxInterval, int livenessTimeout )
+  {
+    this.heartbeatMin = minInterval;
+    this.heartbeatMax = maxInterval;
+    this.livenessTimeout = livenessTimeout;
+  }
+
+  /**
+   * Keep the outbound state of a v2 EndPoint whose link broke, so that the
+   * messages it missed are sent when it connects again, and only those.
+   * Up to maxMessages messages sent meanwhile are kept, older ones are lost.
+   * After maxTime ms the state is thrown away. A peer that leaves with
+   * TERMINATE is not kept. Only used with acknowledged delivery, see
+   * setReliable(). Must be called before init().
+   * @param maxMessages 0 to turn session resumption off
+   */
+  public void setSessionRetention( int maxMessages, int maxTime )
+  {
+    this.retainMessages = maxMessages;
+    this.retainTime = maxTime;
+  }
+
+  /**
+   * Send and receive files, see sendFile(). Incoming files are written to
+   * the store; without a store they are refused. A transfer interrupted by a
+   * broken link is resumed when the node connects again within the time set
+   * by setSessionRetention(). Stalled transfers are detected by the
+   * heartbeat check, see setHeartbeat().
+   */
+  public void setTransferStore( TransferStore store )
+  {
+    this.transferStore = store;
+  }
+
+  /**
+   * Set the size of the chunks a file is sent in, and the number of chunks
+   * that may be unacknowledged. The window times the chunk size is the
+   * memory a transfer takes on the sending side. A chunk frame must not be
+   * larger than the maxFrameLength of the receiver, see setProtocol().
+   */
+  public void setTransfer( int chunkSize, int window )
+  {
+    this.chunkSize = chunkSize;
+    this.transferWindow = window;
+  }
+
+  /**
+   * Set the flow control of logical channels: the number of frames a peer
+   * may send on a channel ahead of their delivery, and the number of frames
+   * kept per channel and EndPoint while waiting for credit. See ChannelMux.
+   * Must be called before init().
+   */
+  public void setChannels( int window, int backlog )
+  {
+    this.channelWindow = window;
+    this.channelBacklog = backlog;
+  }
+
+  /**
+   * Relay messages across piconets. Each message we send gets a unique id,
+   * our address and name as origin, and a hop limit; a node passes a message
+   * it receives for the first time on to its other EndPoints, with one hop
+   * less, and drops the copies arriving over other paths. Room messages are
+   * passed on to the members of the room. A local name longer than
+   * FrameCodec.MAX_NAME bytes is shortened by init(). Must be called before
+   * init().
+   * @param hops number of links a message may travel, 0 to relay nothing
+   * @param seenMax most message ids kept to drop copies, see SeenSet
+   * @param seenTtl time in ms a message id is kept at most. must be longer
+   * than a message takes to cross the mesh
+   */
+  public void setRelay( int hops, int seenMax, long seenTtl )
+  {
+    this.relayHops = hops;
+    this.seen = new SeenSet( seenMax, seenTtl );
+  }
+
+  /**
+   * Gossip messages instead of flooding them, for rooms with many nodes.
+   * A node that handles a message for the first time pushes it on to fanout
+   * of its EndPoints, picked at random, for at most rounds links. Now and
+   * then a node sends one EndPoint, also picked at random, a digest of the
+   * ids of the messages it handled lately. The EndPoint pulls the ones it
+   * misses, and pushes the ones missing from the digest. A message reaches
+   * nearly every node at a fraction of the frames flooding takes, see
+   * SimBench gossip. Messages to given addresses are still relayed as by
+   * setRelay(), whose SeenSet is used. Must be called before init().
+   * @param fanout number of EndPoints a message is pushed to
+   * @param rounds number of links a message may travel
+   * @param digestPeriod time in ms between digests, 0 for none
+   */
+  public void setGossip( int fanout, int rounds, int digestPeriod )
+  {
+    this.gossipFanout = fanout;
+    this.relayHops = rounds;
+    this.digestPeriod = digestPeriod;
+  }
+
+  /**
+   * @return the publisher of the received messages. Unlike the BTListener,
+   * a Subscriber only gets as many as it requests, and the chat messages
+   * are held back while it does not keep up. See MessagePublisher.
+   */
+  public Flow.Publisher getPublisher()
+  {
+    return publisher;
+  }
+
+  /**
+   * a subscriber made room, deliver the chat messages the EndPoints held
+   */
+  void deliveryResumed()
+  {
+    EndPoint[] snapshot = endPoints.snapshot();
+    for ( int i=0; i < snapshot.length && !publisher.isPaused(); i++ )
+    {
+      snapshot[i].reader.flushHeld();
+    }
+  }
+
+  public void init(String name, BTListener callback, Transport transport)
+  {
+    log( "invoke init()" );
+    try {
+      // the name goes into the header of our relayed messages
+      this.localName = FrameCodec.truncate( name, FrameCodec.MAX_NAME );
+      this.callback = callback;
+      this.transport = transport;
+      sessionId = System.currentTimeMillis() ^ new Random().nextLong();
+      lastMessageId = sessionId << 32;
+
+      if ( peerCache != null )
+        peerCache.load();
+
+      //
+      // initialize the link layer, e.g. the JABWT stack
+      transport.init();
+      localAddress = transport.getLocalAddress();
+      if ( relayHops > 0 && FrameCodec.headerLength( localAddress ) > FrameCodec.MAX_NAME )
+      {
+        // every node would drop our relayed messages, send them direct only
+        log("address too long to relay: "+localAddress);
+        relayHops = 0;
+        gossipFanout = 0;
+      }
+
+      if ( engine != null && transport.isPollable() )
+        engine.start();
+      else
+        engine = null;
+
+      // runs also without heartbeats, for the other periodic work
+      heartbeatTimer = new Timer();
+      heartbeatTimer.schedule( new HeartbeatTask(), HEARTBEAT_CHECK, HEARTBEAT_CHECK );
+
+      // start server socket
+      // see run() for implementation of local BlueChat service
+      Thread thread = new Thread( this );
+      thread.start();
+
+
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+      log(e.getClass().getName()+" "+e.getMessage());
+
+    }
+  }
+
+  public void disconnect()
+  {
+    log("invoke disconnect()");
+
+    // stop server socket, not longer accept client connection
+    done = true;
+    // this close will interrupt transport.accept()
+    // wake it up to exit
+    transport.close();
+
+    if ( heartbeatTimer != null )
+      heartbeatTimer.cancel();
+
+    // stop each EndPoint reader and sender threads
+    // and send TERMINATE signal to other connected
+    // BlueChat peers
+    EndPoint[] snapshot = endPoints.snapshot();
+    for ( int i=0; i < snapshot.length; i++ )
+    {
+      EndPoint endpt = snapshot[i];
+      endpt.putString( NetLayer.SIGNAL_TERMINATE, "end" );
+      endpt.sender.stop();
+      endpt.reader.stop();
+
+    }
+
+    // let the engine write the TERMINATE signals and close the connections
+    if ( engine != null )
+      engine.stop();
+    publisher.close();
+
+    Vector addresses = new Vector();
+    synchronized( parked )
+    {
+      for ( Enumeration e = parked.keys(); e.hasMoreElements(); )
+      {
+        addresses.addElement( e.nextElement() );
+      }
+    }
+    for ( int i=0; i < addresses.size(); i++ )
+    {
+      closeParked( (String) addresses.elementAt( i ) );
+    }
+  }
+
+  public void query()
+  {
+    try {
+      log("invoke query()");
+      queryStart = System.currentTimeMillis();
+      firstPeerTime = 0;
+      if ( peerCache != null )
+      {
+        // the Connectors try the cached peers while the discovery runs, so
+        // one that is gone does not hold up the others
+        PeerCache.Entry[] entries = peerCache.getEntries();
+        for ( int i=0; i < entries.length; i++ )
+        {
+          PeerCache.Entry e = entries[i];
+          if ( findEndPointByAddress( e.address ) != null )
+            continue;
+          log("connect to cached peer "+e.name);
+          queueConnect( pendingCached, new String[] { e.address, e.name, e.url } );
+        }
+      }
+      transport.discover( this );
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      log(e.getClass().getName()+" "+e.getMessage());
+
+    }
+  }
+
+
+  public EndPoint findEndPointByAddress( String address )
+  {
+    return endPoints.get( address ); // null if not found
+  }
+
+  /**
+   * Send a string message to all active EndPoints.
+   * One packet is shared by all EndPoints, so the message is encoded
+   * once per wire format instead of once per EndPoint.
+   * @param s
+   */
+  public void sendString( String s )
+  {
+    log("invoke sendString string="+s);
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_MESSAGE, s );
+    stamp( packet );
+    // EndPoints joining or leaving meanwhile do not affect the snapshot
+    EndPoint[] snapshot = endPoints.snapshot();
+    if ( gossipFanout > 0 )
+      forward( packet, null );
+    else
+    {
+      for ( int i=0; i < snapshot.length; i++ )
+      {
+        EndPoint endpt = snapshot[i];
+        // put the packet on EndPoint, so sender will send the message
+        endpt.putPacket( packet );
+      }
+    }
+
+    if ( !sessions.isEmpty() )
+      retainMessage( packet, snapshot );
+  }
+
+  /**
+   * Send a string message to the EndPoints in a chat room. Only the ones
+   * that joined the room get it, see joinRoom().
+   * @param room name of the room, null to send to all active EndPoints
+   * @throws IllegalArgumentException if the name is longer than
+   * FrameCodec.MAX_ROOM bytes
+   */
+  public void sendString( String room, String s )
+  {
+    if ( room == null )
+    {
+      sendString( s );
+      return;
+    }
+    checkRoom( room );
+    log("invoke sendString room="+room+" string="+s);
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_MESSAGE, s );
+    packet.room = room;
+    stamp( packet );
+    EndPoint[] snapshot = roomIndex.get( room );
+    if ( gossipFanout > 0 )
+      forward( packet, null );
+    else
+    {
+      for ( int i=0; i < snapshot.length; i++ )
+      {
+        snapshot[i].putPacket( packet );
+      }
+    }
+
+    if ( !sessions.isEmpty() )
+      retainMessage( packet, snapshot );
+  }
+
+  /**
+   * Send a string message to one remote EndPoint, e.g. a private reply to
+   * ChatPacket.from.
+   * @param address remote address of the EndPoint
+   */
+  public void sendTo( String address, String s )
+  {
+    sendTo( new String[] { address }, s );
+  }
+
+  /**
+   * Send a string message to a group of remote EndPoints. Each is looked
+   * up by its address, so the cost grows with the group, not with the
+   * number of EndPoints connected. The receivers find the addresses in
+   * ChatPacket.to. A v1 node gets the message without them.
+   * @param addresses remote addresses of the EndPoints
+   * @throws IllegalArgumentException if the addresses, separated by ',',
+   * are longer than FrameCodec.MAX_TO bytes
+   */
+  public void sendTo( String[] addresses, String s )
+  {
+    // a longer list would make every v2 node drop the frames
+    int length = addresses.length - 1;
+    for ( int i=0; i < addresses.length; i++ )
+    {
+      length += FrameCodec.headerLength( addresses[i] );
+    }
+    if ( length > FrameCodec.MAX_TO )
+      throw new IllegalArgumentException( "recipients longer than " + FrameCodec.MAX_TO + " bytes" );
+
+    log("invoke sendTo "+addresses.length+" EndPoints string="+s);
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_MESSAGE, s );
+    packet.to = addresses;
+    stamp( packet );
+    Vector direct = new Vector();
+    boolean unknown = false;
+    for ( int i=0; i < addresses.length; i++ )
+    {
+      EndPoint endpt = endPoints.get( addresses[i] );
+      if ( endpt != null && !endpt.msgs.isClosed() )
+      {
+        direct.addElement( endpt );
+        continue;
+      }
+
+      // keep it for a peer whose link broke, see retainMessage()
+      RetainedSession r;
+      synchronized( sessions )
+      {
+        r = (RetainedSession) sessions.get( addresses[i] );
+      }
+      if ( r != null )
+        r.add( packet, retainMessages );
+      else
+      {
+        log("sendTo: no EndPoint "+addresses[i]);
+        unknown = true;
+      }
+    }
+
+    // not all of them are neighbours. the mesh may reach the others,
+    // and the message passes the neighbours on its way
+    if ( unknown && relayHops > 0 )
+    {
+      forward( packet, null );
+      return;
+    }
+    for ( int i=0; i < direct.size(); i++ )
+    {
+      ((EndPoint) direct.elementAt( i )).putPacket( packet );
+    }
+  }
+
+  /**
+   * give a message we send its id and origin, if messages are relayed
+   */
+  private void stamp( ChatPacket packet )
+  {
+    if ( relayHops == 0 )
+      return;
+    synchronized( seen )
+    {
+      packet.id = ++lastMessageId;
+    }
+    packet.hops = relayHops;
+    packet.sender = localName;
+    packet.from = localAddress;
+    // our own message coming back over the mesh is a copy
+    seen.add( packet.id );
+    remember( packet );
+  }
+
+  /**
+   * called by Reader for a message with an id. pass it on to our other
+   * EndPoints, unless it is a copy or ran out of hops
+   * @return true if the message arrived the first time
+   */
+  boolean relay( EndPoint endpt, ChatPacket packet )
+  {
+    synchronized( seen )
+    {
+      if ( !seen.add( packet.id ) )
+      {
+        duplicateCount++;
+        return false;
+      }
+    }
+    remember( packet );
+    if ( relayHops == 0 || packet.hops <= 1 )
+      return true;
+    // a message only for us goes no further
+    if ( packet.to != null && packet.to.length == 1 && packet.to[0].equals( localAddress ) )
+      return true;
+
+    forward( copy( packet, packet.hops - 1 ), endpt );
+    return true;
+  }
+
+  /**
+   * @return a relayed message to queue on, with hops left
+   */
+  private static ChatPacket copy( ChatPacket packet, int hops )
+  {
+    ChatPacket p = new ChatPacket( NetLayer.SIGNAL_MESSAGE, packet.sender, null );
+    p.data = packet.getData();
+    p.id = packet.id;
+    p.hops = hops;
+    p.from = packet.from;
+    p.room = packet.room;
+    p.to = packet.to;
+    return p;
+  }
+
+  /**
+   * keep a message to offer in digests, if we gossip
+   */
+  private void remember( ChatPacket packet )
+  {
+    if ( digestPeriod == 0 || packet.to != null )
+      return;
+    Recent r = new Recent();
+    r.packet = packet;
+    r.at = System.currentTimeMillis();
+    synchronized( recent )
+    {
+      recent.addElement( r );
+      if ( recent.size() > GOSSIP_KEEP )
+        recent.removeElementAt( 0 );
+    }
+  }
+
+  /**
+   * send a digest of the recent messages to an EndPoint picked at random.
+   * called by HeartbeatTask
+   */
+  private void sendDigest( long now )
+  {
+    lastDigest = now;
+    EndPoint[] snapshot = endPoints.snapshot();
+    Vector v2 = new Vector();
+    for ( int i=0; i < snapshot.length; i++ )
+    {
+      if ( snapshot[i].remoteVersion >= 2 )
+        v2.addElement( snapshot[i] );
+    }
+    if ( v2.isEmpty() )
+      return;
+    EndPoint endpt = (EndPoint) v2.elementAt( ( random.nextInt() & 0x7FFFFFFF ) % v2.size() );
+
+    long[] ids;
+    synchronized( recent )
+    {
+      // a message is offered for half the time its id is surely kept
+      while ( !recent.isEmpty() && now - ((Recent) recent.elementAt( 0 )).at > seen.getTtl() / 2 )
+        recent.removeElementAt( 0 );
+      ids = new long[recent.size()];
+      for ( int i=0; i < ids.length; i++ )
+      {
+        ids[i] = ((Recent) recent.elementAt( i )).packet.id;
+      }
+    }
+    endpt.putIds( SIGNAL_DIGEST, ids );
+  }
+
+  /**
+   * called by Reader when an EndPoint sent a digest. ask for the messages
+   * we miss, and send the ones it misses
+   */
+  void digestReceived( EndPoint endpt, long[] ids )
+  {
+    Vector missing = new Vector();
+    for ( int i=0; i < ids.length; i++ )
+    {
+      if ( !seen.contains( ids[i] ) )
+        missing.addElement( new Long( ids[i] ) );
+    }
+    if ( !missing.isEmpty() )
+    {
+      long[] pull = new long[missing.size()];
+      for ( int i=0; i < pull.length; i++ )
+      {
+        pull[i] = ((Long) missing.elementAt( i )).longValue();
+      }
+      endpt.putIds( SIGNAL_PULL, pull );
+    }
+
+    Recent[] mine;
+    synchronized( recent )
+    {
+      mine = new Recent[recent.size()];
+      recent.copyInto( mine );
+    }
+    for ( int i=0; i < mine.length; i++ )
+    {
+      boolean known = mine[i].packet.from.equals( endpt.remoteAddress );
+      for ( int j=0; j < ids.length && !known; j++ )
+      {
+        known = ids[j] == mine[i].packet.id;
+      }
+      if ( !known )
+        endpt.offerPacket( copy( mine[i].packet, 1 ) );
+    }
+  }
+
+  /**
+   * called by Reader when an EndPoint asked for messages of our digest
+   */
+  void pullReceived( EndPoint endpt, long[] ids )
+  {
+    synchronized( recent )
+    {
+      for ( int i=0; i < recent.size(); i++ )
+      {
+        ChatPacket p = ((Recent) recent.elementAt( i )).packet;
+        for ( int j=0; j < ids.length; j++ )
+        {
+          if ( ids[j] == p.id )
+          {
+            // it goes no further, the other nodes pull for themselves
+            endpt.offerPacket( copy( p, 1 ) );
+            pullCount++;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * queue a relayed message on the EndPoints that may lead on. a message
+   * to EndPoints that are all neighbours goes to them only
+   * @param source the EndPoint it came from, or null. a message that came
+   * from an EndPoint is dropped on a full queue rather than hold up its Reader
+   */
+  private void forward( ChatPacket p, EndPoint source )
+  {
+    EndPoint[] targets = null;
+    if ( p.to != null )
+    {
+      Vector direct = new Vector();
+      for ( int i=0; i < p.to.length && direct != null; i++ )
+      {
+        if ( p.to[i].equals( localAddress ) )
+          continue;
+        EndPoint endpt = endPoints.get( p.to[i] );
+        if ( endpt != null )
+          direct.addElement( endpt );
+        else
+          direct = null;
+      }
+      if ( direct != null )
+      {
+        targets = new EndPoint[direct.size()];
+        direct.copyInto( targets );
+      }
+    }
+    if ( targets == null )
+      targets = p.room != null ? roomIndex.get( p.room ) : endPoints.snapshot();
+
+    Vector v = new Vector( targets.length );
+    for ( int i=0; i < targets.length; i++ )
+    {
+      EndPoint endpt = targets[i];
+      if ( endpt != source && !endpt.remoteAddress.equals( p.from ) )
+        v.addElement( endpt );
+    }
+    // push a gossiped message to fanout of them, picked at random
+    if ( gossipFanout > 0 && p.to == null )
+    {
+      while ( v.size() > gossipFanout )
+        v.removeElementAt( ( random.nextInt() & 0x7FFFFFFF ) % v.size() );
+    }
+    for ( int i=0; i < v.size(); i++ )
+    {
+      EndPoint endpt = (EndPoint) v.elementAt( i );
+      if ( source != null )
+        endpt.offerPacket( p );
+      else
+        endpt.putPacket( p );
+    }
+    synchronized( seen )
+    {
+      relayCount += v.size();
+    }
+  }
+
+  /**
+   * @return true for a message to everyone, or one addressed to us
+   */
+  boolean isAddressedTo( String[] to )
+  {
+    if ( to == null )
+      return true;
+    for ( int i=0; i < to.length; i++ )
+    {
+      if ( to[i].equals( localAddress ) )
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return e.g. "relayed=120 duplicates=37 seen=98 pulled=3"
+   */
+  public String getRelayStats()
+  {
+    int pulled;
+    synchronized( recent )
+    {
+      pulled = pullCount;
+    }
+    synchronized( seen )
+    {
+      return "relayed="+relayCount+" duplicates="+duplicateCount+" seen="+seen.size()+" pulled="+pulled;
+    }
+  }
+
+  /**
+   * Join a chat room, so that the messages sent to it reach us. The v2
+   * peers are told, see RoomIndex. Messages to rooms we are not in are
+   * not delivered.
+   * @throws IllegalArgumentException if the name is longer than
+   * FrameCodec.MAX_ROOM bytes
+   */
+  public void joinRoom( String room )
+  {
+    checkRoom( room );
+    synchronized( rooms )
+    {
+      if ( rooms.contains( room ) )
+        return;
+      rooms.addElement( room );
+    }
+    announceRooms();
+  }
+
+  public void leaveRoom( String room )
+  {
+    synchronized( rooms )
+    {
+      if ( !rooms.removeElement( room ) )
+        return;
+    }
+    announceRooms();
+  }
+
+  /**
+   * @return the rooms we are in
+   */
+  public String[] getRooms()
+  {
+    synchronized( rooms )
+    {
+      String[] names = new String[rooms.size()];
+      rooms.copyInto( names );
+      return names;
+    }
+  }
+
+  /**
+   * a longer room name would make every v2 node drop the frames
+   */
+  private static void checkRoom( String room )
+  {
+    if ( FrameCodec.headerLength( room ) > FrameCodec.MAX_ROOM )
+      throw new IllegalArgumentException( "room name longer than " + FrameCodec.MAX_ROOM + " bytes" );
+  }
+
+  /**
+   * @return true for a message to everyone, or to a room we are in
+   */
+  boolean isInRoom( String room )
+  {
+    return room == null || rooms.contains( room );
+  }
+
+  /**
+   * tell the v2 peers the rooms we are in now
+   */
+  private void announceRooms()
+  {
+    EndPoint[] snapshot = endPoints.snapshot();
+    for ( int i=0; i < snapshot.length; i++ )
+    {
+      if ( snapshot[i].remoteVersion >= 2 )
+        snapshot[i].putRooms( false );
+    }
+  }
+
+  /**
+   * called by Reader when a v2 node announced the rooms it is in
+   */
+  void roomsReceived( EndPoint endpt, String[] names )
+  {
+    // the same lock as dropEndPoint(), so a link closed meanwhile is not
+    // put back into the rooms by a late frame
+    synchronized( sessions )
+    {
+      if ( findEndPointByAddress( endpt.remoteAddress ) != endpt )
+        return;
+      roomIndex.subscribe( endpt, names );
+    }
+  }
+
+  /**
+   * keep a message sent to all for the peers whose link broke. a peer
+   * that is connected again in the snapshot got the message there. the
+   * message is also kept for a peer whose link broke while it was sent,
+   * since the queue of that link may have been closed already
+   */
+  private void retainMessage( ChatPacket packet, EndPoint[] snapshot )
+  {
+    synchronized( sessions )
+    {
+      for ( Enumeration e = sessions.keys(); e.hasMoreElements(); )
+      {
+        String address = (String) e.nextElement();
+        RetainedSession r = (RetainedSession) sessions.get( address );
+        boolean connected = false;
+        for ( int i=0; i < snapshot.length; i++ )
+        {
+          if ( snapshot[i].remoteAddress.equals( address ) && !snapshot[i].msgs.isClosed() )
+            connected = true;
+        }
+        if ( !connected && r.isInRoom( packet.room ) )
+          r.add( packet, retainMessages );
+      }
+    }
+  }
+
+  /**
+   * Send a file to one v2 EndPoint. The file is read from the TransferStore
+   * in chunks as it goes out, and chat messages go on meanwhile. The
+   * listener gets EVENT_FILE_FINISHED when the receiver has it all, or when
+   * the transfer failed. See FileTransfer.
+   * @param address remote address of the EndPoint
+   * @param name name of the file in the TransferStore, given to the receiver
+   * without its path
+   * @param size length of the file in bytes
+   * @return the transfer, to watch its progress
+   */
+  public FileTransfer sendFile( String address, String name, long size ) throws IOException
+  {
+    log("invoke sendFile name="+name+" size="+size);
+    EndPoint endpt = findEndPointByAddress( address );
+    if ( endpt == null || endpt.remoteVersion < 2 )
+      throw new IOException( "cannot send files to " + address );
+    if ( transferStore == null )
+      throw new IOException( "no TransferStore set" );
+
+    FileTransfer t = new FileTransfer( random.nextInt() & 0x7FFFFFFF, false, name, size, endpt );
+    transfers.put( t.key(), t );
+    t.offer( endpt );
+    return t;
+  }
+
+  /**
+   * called by Reader when a file is offered. a file whose transfer was
+   * interrupted goes on from the part received so far
+   */
+  void fileOffered( EndPoint endpt, int id, long size, String name ) throws IOException
+  {
+    // store it under its name, not where the sender keeps it
+    name = name.substring( Math.max( name.lastIndexOf( '/' ), name.lastIndexOf( '\\' ) ) + 1 );
+    String key = FileTransfer.key( true, endpt.remoteAddress, id );
+    FileTransfer t = (FileTransfer) transfers.get( key );
+    if ( t != null && ( t.size != size || !t.name.equals( name ) ) )
+    {
+      // not the one we know, e.g. the sender was restarted
+      t.fail( "replaced" );
+      t = null;
+    }
+    boolean started = t == null;
+    if ( t == null )
+    {
+      if ( transferStore == null || !isFileName( name ) || size < 0 )
+      {
+        log("refuse file "+name+" from "+endpt.remoteName);
+        endpt.putFileAck( id, -1, false );
+        return;
+      }
+      t = new FileTransfer( id, true, name, size, endpt );
+      try {
+        // never over a file we have, e.g. one received earlier
+        t.storedName = transferStore.create( name );
+      }
+      catch (IOException ex) {
+        log("refuse file "+name+" from "+endpt.remoteName+": "+ex.getMessage());
+        endpt.putFileAck( id, -1, false );
+        return;
+      }
+      transfers.put( key, t );
+    }
+
+    long offset;
+    try {
+      offset = t.accept( endpt, transferStore );
+    }
+    catch (IOException ex) {
+      log(ex.getClass().getName()+" "+ex.getMessage());
+      transferFailed( t, ex.getMessage() );
+      endpt.putFileAck( id, -1, false );
+      return;
+    }
+    log("receive file "+name+" from "+endpt.remoteName+" at "+offset+" of "+size);
+    endpt.putFileAck( id, offset, true );
+    if ( started )
+    {
+      callback.handleAction( BTListener.EVENT_FILE_STARTED, endpt, t );
+      // nothing to wait for with an empty file
+      if ( t.getState() == FileTransfer.STATE_DONE )
+        transferDone( t );
+    }
+  }
+
+  /**
+   * @return true if a remote node may name a file so, once the path is gone.
+   * the characters that mean something in a file URL are refused, e.g.
+   * %2e%2e%2f would be ../ to the file system
+   */
+  static boolean isFileName( String name )
+  {
+    if ( name.length() == 0 || name.equals( "." ) || name.equals( ".." ) )
+      return false;
+    for ( int i=0; i < name.length(); i++ )
+    {
+      char c = name.charAt( i );
+      if ( c < ' ' || ":%#?/\\".indexOf( c ) >= 0 )
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * called by Reader when a chunk of a file arrived
+   */
+  void chunkReceived( EndPoint endpt, int id, int pass, long offset, byte[] data, int off, int len )
+  {
+    FileTransfer t = (FileTransfer) transfers.get( FileTransfer.key( true, endpt.remoteAddress, id ) );
+    if ( t == null || t.endpt != endpt )
+      return;
+
+    boolean done = t.getState() == FileTransfer.STATE_DONE;
+    long ack;
+    try {
+      ack = t.chunkReceived( pass, offset, data, off, len );
+    }
+    catch (IOException ex) {
+      log(ex.getClass().getName()+" "+ex.getMessage());
+      transferFailed( t, ex.getMessage() );
+      endpt.putFileAck( id, -1, false );
+      return;
+    }
+    if ( ack < 0 )
+      return;
+    // an offset that is not where the chunk ends asks for the rest again
+    endpt.putFileAck( id, ack, ack != offset + len && ack < t.size );
+    if ( !done && t.getState() == FileTransfer.STATE_DONE )
+      transferDone( t );
+  }
+
+  /**
+   * called by Reader when the receiver of a file acknowledged chunks, asked
+   * for them again, or refused the file (offset -1)
+   */
+  void fileAckReceived( EndPoint endpt, int id, long offset, boolean resend )
+  {
+    FileTransfer t = (FileTransfer) transfers.get( FileTransfer.key( false, endpt.remoteAddress, id ) );
+    if ( t == null || t.endpt != endpt )
+      return;
+
+    if ( offset < 0 )
+    {
+      transferFailed( t, "refused" );
+      return;
+    }
+    try {
+      if ( t.ackReceived( transferStore, offset, resend, chunkSize, transferWindow ) )
+        transferDone( t );
+    }
+    catch (IOException ex) {
+      log(ex.getClass().getName()+" "+ex.getMessage());
+      transferFailed( t, ex.getMessage() );
+      endpt.putFileAck( id, -1, false );
+    }
+  }
+
+  /**
+   * @return the file transfers going on, paused, or received lately
+   */
+  public FileTransfer[] getTransfers()
+  {
+    synchronized( transfers )
+    {
+      FileTransfer[] all = new FileTransfer[transfers.size()];
+      int n = 0;
+      for ( Enumeration e = transfers.elements(); e.hasMoreElements(); )
+      {
+        all[n++] = (FileTransfer) e.nextElement();
+      }
+      return all;
+    }
+  }
+
+  private void transferDone( FileTransfer t )
+  {
+    log("file "+t.name+" "+( t.incoming ? "received from " : "sent to " )+t.remoteName);
+    // a received one is kept for a while, in case our last ACK got lost
+    if ( !t.incoming )
+      transfers.remove( t.key() );
+    callback.handleAction( BTListener.EVENT_FILE_FINISHED, t.endpt, t );
+  }
+
+  private void transferFailed( FileTransfer t, String error )
+  {
+    log("file "+t.name+" failed, "+error);
+    t.fail( error );
+    transfers.remove( t.key() );
+    callback.handleAction( BTListener.EVENT_FILE_FINISHED, t.endpt, t );
+  }
+
+  /**
+   * pause the transfers on a link that is closed
+   */
+  private void pauseTransfers( EndPoint endpt )
+  {
+    FileTransfer[] all = getTransfers();
+    for ( int i=0; i < all.length; i++ )
+    {
+      FileTransfer t = all[i];
+      if ( t.endpt == endpt )
+        t.pause();
+    }
+  }
+
+  /**
+   * offer the files to a node that connected again. the receiver answers
+   * with the offset to go on from
+   */
+  private void resumeTransfers( EndPoint endpt )
+  {
+    FileTransfer[] all = getTransfers();
+    for ( int i=0; i < all.length; i++ )
+    {
+      FileTransfer t = all[i];
+      int state = t.getState();
+      if ( t.incoming || t.endpt == endpt || !t.remoteAddress.equals( endpt.remoteAddress )
+           || state == FileTransfer.STATE_DONE || state == FileTransfer.STATE_FAILED )
+        continue;
+      log("resume file "+t.name+" to "+endpt.remoteName);
+      try {
+        t.offer( endpt );
+      }
+      catch (IOException ex) {
+        transferFailed( t, ex.getMessage() );
+      }
+    }
+  }
+
+  /**
+   * restart the transfers that made no progress for a while, and throw
+   * away the paused ones that were not resumed in time
+   */
+  private void checkTransfers( long now )
+  {
+    FileTransfer[] all = getTransfers();
+    for ( int i=0; i < all.length; i++ )
+    {
+      FileTransfer t = all[i];
+      int state = t.getState();
+      long idle = now - t.changedAt;
+      if ( state == FileTransfer.STATE_PAUSED || state == FileTransfer.STATE_DONE )
+      {
+        if ( idle > retainTime )
+        {
+          if ( state == FileTransfer.STATE_DONE )
+            transfers.remove( t.key() );
+          else
+            transferFailed( t, "not resumed" );
+        }
+      } else if ( !t.incoming && idle > TRANSFER_TIMEOUT )
+      {
+        if ( state == FileTransfer.STATE_OFFERED && t.offers >= MAX_OFFERS )
+        {
+          transferFailed( t, "no answer" );
+          continue;
+        }
+        log("file "+t.name+" stalled, restart at "+t.getTransferred());
+        try {
+          t.restart( transferStore, chunkSize, transferWindow );
+        }
+        catch (IOException ex) {
+          transferFailed( t, ex.getMessage() );
+        }
+      }
+    }
+  }
+
+  /**
+   * Open a logical channel, so that peers can send on it. The frames that
+   * arrive on it are passed to the listener with EVENT_RECEIVED, as
+   * SIGNAL_DATA packets with the channel and raw data set. Every v2 peer is
+   * granted credit for the channel, now or when it connects.
+   * @param channel 1 to 65535
+   */
+  public void openChannel( int channel, BTListener listener )
+  {
+    log("invoke openChannel "+channel);
+    channelListeners.put( new Integer( channel ), listener );
+    EndPoint[] snapshot = endPoints.snapshot();
+    for ( int i=0; i < snapshot.length; i++ )
+    {
+      if ( snapshot[i].sessionReady )
+        snapshot[i].putCredit( channel, snapshot[i].mux.grant( channel ) );
+    }
+  }
+
+  /**
+   * Close a logical channel. Peers get no more credit for it, and the
+   * frames still arriving are thrown away.
+   */
+  public void closeChannel( int channel )
+  {
+    channelListeners.remove( new Integer( channel ) );
+  }
+
+  /**
+   * Send data on a logical channel to all active EndPoints. The packet is
+   * queued on an EndPoint once it has granted credit for the channel, see
+   * ChannelMux. The channel is opened by the receivers, not by us.
+   */
+  public void sendData( int channel, byte[] data )
+  {
+    ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_DATA, null );
+    packet.channel = channel;
+    packet.data = data;
+    EndPoint[] snapshot = endPoints.snapshot();
+    for ( int i=0; i < snapshot.length; i++ )
+    {
+      snapshot[i].putData( packet );
+    }
+  }
+
+  /**
+   * called by Reader when a frame on a logical channel arrived
+   */
+  void dataReceived( EndPoint endpt, ChatPacket packet )
+  {
+    BTListener l = (BTListener) channelListeners.get( new Integer( packet.channel ) );
+    int limit = endpt.mux.dataReceived( packet.channel, packet.seq );
+    if ( l == null )
+      return;
+    if ( limit >= 0 )
+      endpt.putCredit( packet.channel, limit );
+    packet.sender = endpt.remoteName;
+    l.handleAction( BTListener.EVENT_RECEIVED, endpt, packet );
+  }
+
+  /**
+   * grant credit for the open channels to a peer whose session is set up,
+   * or repeat it on channels where the peer has sent nothing for a while
+   * @param since repeat the grants made before this time, 0 for all
+   */
+  private void grantChannels( EndPoint endpt, long since )
+  {
+    for ( Enumeration e = channelListeners.keys(); e.hasMoreElements(); )
+    {
+      int channel = ((Integer) e.nextElement()).intValue();
+      if ( since == 0 || endpt.mux.getGrantedAt( channel ) < since )
+        endpt.putCredit( channel, endpt.mux.grant( channel ) );
+    }
+  }
+
+  /**
+   * Clean up the resource for a EndPoint, remove it from the active list.
+   * This is triggered by a remote EndPoint leaving the network
+   * @param endpt
+   */
+  public void cleanupRemoteEndPoint( EndPoint endpt )
+  {
+    log("invoke cleanupRemoteEndPoint()");
+    // set 'done' flag to true to exit the run loop
+    endpt.reader.stop();
+    endpt.sender.stop();
+
+    // remove this end point from the active end point list. see
+    // roomsReceived()
+    synchronized( sessions )
+    {
+      endPoints.remove( endpt );
+      roomIndex.remove( endpt );
+    }
+    pauseTransfers( endpt );
+
+  }
+
+  /**
+   * Disconnect an EndPoint whose link is dead or that does not keep up
+   * with its messages. Pending messages are thrown away and the link is
+   * closed without TERMINATE, since the peer is not reading anyway.
+   * The LEAVE event is only emitted once, however many threads notice.
+   * @param reason for the log
+   */
+  void dropEndPoint( EndPoint endpt, String reason )
+  {
+    // a message sent meanwhile goes either to the queue before it is
+    // taken, or to the retained session. see sendString()
+    synchronized( sessions )
+    {
+      // only the first caller does the cleanup
+      if ( done || !endPoints.remove( endpt ) )
+        return;
+
+      log("drop EndPoint "+endpt.remoteName+", "+reason+", queue="+endpt.getQueueDepth());
+      roomIndex.remove( endpt );
+      endpt.reader.stop();
+      endpt.sender.stop();
+      synchronized( endpt.msgs )
+      {
+        retainSession( endpt );
+        endpt.msgs.close();
+      }
+    }
+    pauseTransfers( endpt );
+    try {
+      endpt.con.close();
+    }
+    catch (IOException ex) {
+      // ignore
+    }
+    closeParked( endpt.remoteAddress );
+    synchronized( connecting )
+    {
+      // the remote node closed its link because it keeps the one we are
+      // opening, see addEndPoint(). the LEAVE only counts if that fails
+      if ( !endpt.outbound && connecting.contains( endpt.remoteAddress ) )
+      {
+        quietDrops.put( endpt.remoteAddress, endpt );
+        return;
+      }
+    }
+    callback.handleAction( BTListener.EVENT_LEAVE, endpt, null );
+  }
+
+  /**
+   * register the EndPoint of a new link. if the node is connected already,
+   * e.g. because both nodes found each other and connected at about the same
+   * time, only one link is kept: the one opened by the node with the smaller
+   * address. Both nodes decide the same, so they keep the same link. The
+   * other one is closed without a LEAVE event by the node that opened it.
+   * Its session is kept as if the link had broken, so the link kept resumes
+   * it: the messages sent on the old link but not acknowledged are sent
+   * again, and the ones not sent yet follow, see sessionReceived(). Without
+   * a session to keep, the messages not sent yet go to the link kept. The
+   * other node leaves it unread until the link kept is ready, so that the node that
+   * opened it does not take its close for a failure. see peerReady()
+   * @return false if the new link was closed
+   */
+  boolean addEndPoint( EndPoint endpt )
+  {
+    EndPoint old;
+    synchronized( sessions )
+    {
+      if ( endPoints.add( endpt ) )
+        return true;
+
+      old = endPoints.get( endpt.remoteAddress );
+      duplicateLinkCount++;
+      // a second link opened the same way is a stale one and a reconnect,
+      // we keep the first until it fails. see dropEndPoint()
+      boolean keepNew = old != null && old.outbound != endpt.outbound
+                        && endpt.outbound == ( localAddress.compareTo( endpt.remoteAddress ) < 0 );
+      if ( !keepNew || !endPoints.replace( old, endpt ) )
+      {
+        log("duplicate link to "+endpt.remoteName+", close the new one");
+        closeLink( endpt );
+        return false;
+      }
+
+      log("duplicate link to "+endpt.remoteName+", close the old one");
+      roomIndex.remove( old );
+      old.reader.stop();
+      old.sender.stop();
+      synchronized( old.msgs )
+      {
+        // the new link takes the session over when it starts its own,
+        // see EndPoint.getResumed()
+        retainSession( old );
+        for ( ChatPacket p = old.msgs.poll(); p != null; p = old.msgs.poll() )
+        {
+          // the handshake and the session are started again on the new link
+          if ( p.signal == SIGNAL_MESSAGE && !old.channel.isSent( p ) )
+            endpt.offerPacket( p );
+        }
+        old.msgs.close();
+      }
+    }
+    pauseTransfers( old );
+    closeLink( old );
+    return true;
+  }
+
+  /**
+   * close a duplicate link we opened, or park one the remote node opened
+   */
+  private void closeLink( EndPoint endpt )
+  {
+    StreamConnection c = endpt.con;
+    if ( !endpt.outbound )
+    {
+      synchronized( parked )
+      {
+        c = (StreamConnection) parked.put( endpt.remoteAddress, endpt.con );
+      }
+    }
+    try {
+      if ( c != null )
+        c.close();
+    }
+    catch (IOException ex) {
+      // ignore
+    }
+  }
+
+  /**
+   * close the duplicate link parked for an address, see addEndPoint()
+   */
+  private void closeParked( String address )
+  {
+    StreamConnection c;
+    synchronized( parked )
+    {
+      c = (StreamConnection) parked.remove( address );
+    }
+    try {
+      if ( c != null )
+        c.close();
+    }
+    catch (IOException ex) {
+      // ignore
+    }
+  }
+
+  /**
+   * @return number of links closed because the node was connected already
+   */
+  public int getDuplicateLinks()
+  {
+    return duplicateLinkCount;
+  }
+
+  /**
+   * keep the session of a dropped EndPoint: its ReliableChannel, which holds
+   * the unacknowledged messages, and the messages still queued for it
+   */
+  private void retainSession( EndPoint endpt )
+  {
+    if ( !endpt.sessionReady )
+    {
+      // the link broke during the session setup. keep what we had before
+      if ( endpt.resumed != null )
+        sessions.put( endpt.remoteAddress, endpt.resumed );
+      return;
+    }
+    if ( retainMessages <= 0 || !reliable )
+      return;
+
+    RetainedSession r = new RetainedSession();
+    r.remoteSession = endpt.remoteSession;
+    r.channel = endpt.channel;
+    r.rooms = endpt.rooms;
+    r.droppedAt = System.currentTimeMillis();
+    for ( ChatPacket p = endpt.msgs.poll(); p != null; p = endpt.msgs.poll() )
+    {
+      // sent ones are kept by the channel already
+      if ( p.signal == SIGNAL_MESSAGE && !r.channel.isSent( p ) )
+        r.add( p, retainMessages );
+    }
+    sessions.put( endpt.remoteAddress, r );
+    log("retain session of "+endpt.remoteName+", "+r.channel.getInFlight()
+        +" unacknowledged and "+r.pending.size()+" queued messages");
+  }
+
+  /**
+   * @return the session kept for a remote address, which is removed, or null
+   * if there is none or it has expired
+   */
+  RetainedSession takeSession( String address )
+  {
+    RetainedSession r = (RetainedSession) sessions.remove( address );
+    if ( r != null && System.currentTimeMillis() - r.droppedAt > retainTime )
+      return null;
+    return r;
+  }
+
+  /**
+   * called by Reader when the SESSION frame of a v2 node arrived. it holds
+   * the session id of the node, the session id it knew us by before the link
+   * was replaced (0 if none), and the next sequence number it expects from us
+   * in that session.
+   * <p>When the node knew us by our current session id and we kept the
+   * session, the messages from that sequence number on are sent again,
+   * followed by the messages sent while the link was down. Otherwise one of
+   * us has restarted or forgotten the other, and the sequence numbers start
+   * again at 0. The same is decided for each direction on its own.</p>
+   */
+  void sessionReceived( EndPoint endpt, long remoteSession, long seenSession, int expected )
+  {
+    RetainedSession r = endpt.getResumed();
+    ReliableChannel channel = r != null ? r.channel : endpt.channel;
+    if ( r == null || r.remoteSession != remoteSession )
+      channel.resetReceive();
+
+    Vector resend = null;
+    if ( r != null && seenSession == sessionId )
+      resend = channel.resumeSend( expected );
+    else
+      channel.resetSend();
+
+    PacketQueue q = endpt.msgs;
+    synchronized( q )
+    {
+      // our SESSION frame may still be queued. it is a control signal,
+      // so it goes before these messages. see PacketQueue. a closed queue
+      // stays closed while we hold its lock, and takes none of them, so
+      // the messages are left to the session kept for the next link
+      if ( resend != null && !q.isClosed() )
+      {
+        for ( int i = r.pending.size() - 1; i >= 0; i-- )
+        {
+          q.putFirst( (ChatPacket) r.pending.elementAt( i ) );
+        }
+        for ( int i = resend.size() - 1; i >= 0; i-- )
+        {
+          q.putFirst( (ChatPacket) resend.elementAt( i ) );
+        }
+        log("resume session of "+endpt.remoteName+", resend "+resend.size()
+            +" messages and "+r.pending.size()+" sent while away, "+r.dropCount+" lost");
+        r.pending.removeAllElements();
+      }
+
+      endpt.channel = channel;
+      endpt.remoteSession = remoteSession;
+      endpt.sessionReady = true;
+      q.signal();
+    }
+    if ( endpt.worker != null )
+      endpt.worker.wakeup();
+    grantChannels( endpt, 0 );
+    resumeTransfers( endpt );
+  }
+
+  /**
+   * Start reading from and writing to a new EndPoint, either by starting
+   * its reader and sender (in new threads or through the TaskRunner)
+   * or by registering it with the PollingEngine.
+   * @param endpt
+   */
+  void startEndPoint( EndPoint endpt ) throws IOException
+  {
+    if ( engine != null )
+    {
+      engine.register( endpt );
+    } else if ( runner != null )
+    {
+      runner.execute( endpt.sender );
+      runner.execute( endpt.reader );
+    } else
+    {
+      Thread t1 = new Thread( endpt.sender );
+      t1.start();
+
+      Thread t2 = new Thread( endpt.reader );
+      t2.start();
+    }
+  }
+
+  /**
+   * Implement local BlueChat service.
+   */
+  public void run()
+  {
+    // connection to remote device
+    StreamConnection c = null;
+    try
+    {
+      // create and publish the local BlueChat service
+      transport.listen();
+
+    } catch (Exception e)
+    {
+      e.printStackTrace();
+      log(e.getClass().getName()+" "+e.getMessage());
+    }
+
+    while( !done)
+    {
+      try {
+        ///////////////////////////////
+        log("local service waiting for client connection");
+
+        // this message is to inform user that the server is up and ready
+        status( "Getting Started. Please Wait..." );
+
+        //
+        // start accepting client connection.
+        // This method will block until a client
+        // connected
+        c = transport.accept();
+
+        log("local service accept a new client connection");
+
+        //
+        // the remote node address may take a while to learn, e.g.
+        // SocketTransport waits for the remote node to tell it. this
+        // is done by an Acceptor thread, so that we accept the next
+        // client meanwhile
+        new Thread( new Acceptor( c ) ).start();
+        c = null;
+
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+        log(e.getClass().getName()+" "+e.getMessage());
+
+        // if any exception happen, we assume this connection is
+        // failed and close it. closing the connection will cause
+        // the reader and sender thread to exit (because they will got
+        // exception as well).
+        if (c != null)
+          try {
+            c.close();
+          }
+          catch (IOException e2) {
+            // ignore
+          }
+
+      }
+      finally {
+        // nothing to do here
+      }
+    } // while !done
+  } // end run()
+
+  /**
+   * a peer is discovered. the connect is queued and done by a Connector
+   * thread, so that discovery goes on with the next device meanwhile.
+   */
+  public void peerDiscovered( String address, String name, String url )
+  {
+    log("invoke peerDiscovered url="+url);
+    queueConnect( pendingConnects, new String[] { address, name, url } );
+  }
+
+  /**
+   * queue a peer to be connected by a Connector. a peer queued already is
+   * taken out first, e.g. a cached peer that was discovered: it is in range,
+   * and its service may have moved
+   * @param queue pendingConnects or pendingCached
+   * @param peer { address, name, url }
+   */
+  private void queueConnect( Vector queue, String[] peer )
+  {
+    synchronized( pendingConnects )
+    {
+      removePeer( pendingConnects, peer[0] );
+      removePeer( pendingCached, peer[0] );
+      queue.addElement( peer );
+      if ( connectors < maxConnects )
+      {
+        connectors++;
+        new Thread( new Connector() ).start();
+      }
+    }
+  }
+
+  private static void removePeer( Vector queue, String address )
+  {
+    for ( int i = queue.size() - 1; i >= 0; i-- )
+    {
+      if ( ((String[]) queue.elementAt( i ))[0].equals( address ) )
+        queue.removeElementAt( i );
+    }
+  }
+
+  /**
+   * called by Reader when a peer completed the handshake
+   */
+  void peerReady( EndPoint endpt )
+  {
+    // the remote node answers on the link kept, so it has closed the other
+    closeParked( endpt.remoteAddress );
+
+    if ( firstPeerTime == 0 && queryStart > 0 )
+    {
+      firstPeerTime = System.currentTimeMillis();
+      log("time to first peer "+getTimeToFirstPeer()+"ms");
+    }
+  }
+
+  /**
+   * connect to a remote BlueChat service and start the handshake.
+   * the peer cache is updated with the result.
+   * @return true if connected
+   */
+  boolean connectPeer( String address, String name, String url )
+  {
+    synchronized( connecting )
+    {
+      connecting.addElement( address );
+    }
+    try {
+      return connect( address, name, url );
+    }
+    finally {
+      EndPoint dropped;
+      synchronized( connecting )
+      {
+        connecting.removeElement( address );
+        dropped = (EndPoint) quietDrops.remove( address );
+      }
+      if ( dropped != null && findEndPointByAddress( address ) == null )
+        callback.handleAction( BTListener.EVENT_LEAVE, dropped, null );
+    }
+  }
+
+  private boolean connect( String address, String name, String url )
+  {
+    try {
+      StreamConnection con = transport.connect( url );
+
+      // create the EndPoint and initialize the necessary member variables
+      // to activate the EndPoint. this includes
+      // - initialize connection
+      // - start sender and reader thread
+      EndPoint endpt = new EndPoint( this, address, name, con );
+      endpt.remoteUrl = url;
+      endpt.outbound = true;
+      if ( !addEndPoint( endpt ) )
+      {
+        // the peer connected to us meanwhile, and its link is kept
+        log("end point already exist.. close this connection");
+        return true;
+      }
+      startEndPoint( endpt );
+
+      log("a new active EndPoint is established. name=" + endpt.remoteName);
+
+      // once a EndPoint established, the BlueChat client is responsible to initiate the
+      // handshake protocol.
+      endpt.putString( NetLayer.SIGNAL_HANDSHAKE, localName );
+      endpt.announceVersion();
+
+      if ( peerCache != null )
+        peerCache.put( address, name, url );
+      return true;
+
+    } catch (Exception e)
+    {
+      e.printStackTrace();
+      log(e.getClass().getName()+" "+e.getMessage());
+
+      // the peer is gone or moved, do not try it again
+      if ( peerCache != null )
+        peerCache.remove( address );
+      return false;
+    }
+  }
+
+  /**
+   * peer discovery is completed.
+   */
+  public void discoveryCompleted()
+  {
+    // this message is to inform user that chatting can start
+    status( "Ready to chat. Please select write option from the menu to compose message");
+
+    if ( peerCache != null )
+      peerCache.save();
+  }
+
+  public static void log( String s)
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("NetLayer: "+s);
+
+    // "N" means NetLayer
+    if ( ChatMain.isDebug )
+      ChatMain.instance.gui_log( "N", s );
+
+  }
+
+  /**
+   * show a status message to the user. nothing is shown when NetLayer
+   * runs without the MIDlet, e.g. in a simulation.
+   */
+  static void status( String s )
+  {
+    if ( ChatMain.instance != null )
+      ChatMain.instance.gui_log( "", s );
+  }
+
+  /**
+   * Set up a connection a client opened: learn the remote node address, and
+   * start an EndPoint for it. see run()
+   */
+  class Acceptor implements Runnable
+  {
+    StreamConnection c;
+
+    Acceptor( StreamConnection c )
+    {
+      this.c = c;
+    }
+
+    public void run()
+    {
+      try {
+        //
+        // retrieve the remote node address
+        String address = transport.getRemoteAddress( c );
+        //
+        // - create a new EndPoint object
+        // - initialize the member variables
+        // - add it to the active list, unless the EndPoint already exist
+        // - start the data reader and sender.
+        EndPoint endpt = new EndPoint( NetLayer.this, address, transport.getRemoteName( c ), c);
+        if ( !addEndPoint( endpt ) )
+        {
+          // this is a safe guard to assure that this client
+          // has not been connected before
+          log("client connection end point already exist.. ignore this connection");
+        } else
+        {
+          startEndPoint( endpt );
+
+          log("a new active EndPoint is established. name=" + endpt.remoteName);
+
+        }
+      }
+      catch (IOException e) {
+        log(e.getClass().getName()+" "+e.getMessage());
+        try {
+          c.close();
+        }
+        catch (IOException e2) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * Connect to the discovered peers in pendingConnects, then to the cached
+   * ones in pendingCached, until there are none. see peerDiscovered()
+   */
+  class Connector implements Runnable
+  {
+    public void run()
+    {
+      while ( true )
+      {
+        String[] peer;
+        synchronized( pendingConnects )
+        {
+          // the discovered peers are in range, the cached ones may not be
+          Vector queue = pendingConnects.size() > 0 ? pendingConnects : pendingCached;
+          if ( queue.size() == 0 || done )
+          {
+            connectors--;
+            break;
+          }
+          peer = (String[]) queue.elementAt( 0 );
+          queue.removeElementAt( 0 );
+        }
+
+        if ( findEndPointByAddress( peer[0] ) != null )
+        {
+          // already connected, e.g. to a cached peer
+          if ( peerCache != null )
+            peerCache.put( peer[0], peer[1], peer[2] );
+          continue;
+        }
+        connectPeer( peer[0], peer[1], peer[2] );
+      }
+
+      // discovery may have completed before our connects did
+      if ( peerCache != null )
+        peerCache.save();
+    }
+  }
+
+  /**
+   * Send heartbeats on idle links and drop the EndPoints that went silent,
+   * if turned on, see setHeartbeat(). Also does the other periodic work:
+   * expire retained sessions, restart stalled transfers, send gossip
+   * digests and grant channel credit again.
+   */
+  class HeartbeatTask extends TimerTask
+  {
+    public void run()
+    {
+      long now = System.currentTimeMillis();
+      synchronized( sessions )
+      {
+        Vector expired = new Vector();
+        for ( Enumeration e = sessions.keys(); e.hasMoreElements(); )
+        {
+          Object address = e.nextElement();
+          if ( now - ((RetainedSession) sessions.get( address )).droppedAt > retainTime )
+            expired.addElement( address );
+        }
+        for ( int i=0; i < expired.size(); i++ )
+        {
+          sessions.remove( expired.elementAt( i ) );
+        }
+      }
+      checkTransfers( now );
+      if ( digestPeriod > 0 && now - lastDigest >= digestPeriod )
+        sendDigest( now );
+
+      EndPoint[] snapshot = endPoints.snapshot();
+      for ( int i=0; i < snapshot.length; i++ )
+      {
+        EndPoint endpt = snapshot[i];
+        // v1 nodes know no heartbeat, so their silence means nothing
+        if ( endpt.remoteVersion < 2 )
+          continue;
+
+        if ( livenessTimeout > 0 )
+        {
+          // while a subscriber holds the reads back, the heartbeats are not
+          // read either. the silence is ours, so it starts again afterwards
+          if ( endpt.reader.isHeldFull() )
+            endpt.lastReceived = now;
+
+          if ( now - endpt.lastReceived > livenessTimeout )
+          {
+            dropEndPoint( endpt, "no heartbeat for "+(now - endpt.lastReceived)+"ms" );
+            continue;
+          }
+
+          // the longer the link is idle, the less often we need to tell
+          long interval = ( now - endpt.lastActivity ) / 2;
+          if ( interval < heartbeatMin )
+            interval = heartbeatMin;
+          if ( interval > heartbeatMax )
+            interval = heartbeatMax;
+
+          // a packet still queued will do as well
+          if ( now - endpt.lastSent >= interval && !endpt.peekString() )
+            endpt.putString( SIGNAL_HEARTBEAT, "" );
+        }
+
+        // a lost SIGNAL_CREDIT would leave a channel stalled
+        if ( endpt.sessionReady )
+          grantChannels( endpt, now - ( heartbeatMax > 0 ? heartbeatMax : CREDIT_CHECK ) );
+      }
+    }
+  }
+
+  /**
+   * a message offered in digests, see setGossip()
+   */
+  static class Recent
+  {
+    ChatPacket packet;
+    long at;
+  }
+
+  /**
+   * the outbound state of a v2 EndPoint whose link broke. see retainSession()
+   */
+  static class RetainedSession
+  {
+    long remoteSession;
+    // holds the unacknowledged messages and the sequence numbers
+    ReliableChannel channel;
+    // messages not sent yet, in order
+    Vector pending = new Vector();
+    // messages thrown away because pending was full
+    int dropCount;
+    long droppedAt;
+    // the rooms the node was in, only their messages are kept
+    String[] rooms;
+
+    boolean isInRoom( String room )
+    {
+      if ( room == null )
+        return true;
+      for ( int i=0; i < rooms.length; i++ )
+      {
+        if ( rooms[i].equals( room ) )
+          return true;
+      }
+      return false;
+    }
+
+    synchronized void add( ChatPacket p, int max )
+    {
+      // taken from the queue of the broken link already
+      if ( pending.contains( p ) )
+        return;
+      if ( pending.size() >= max )
+      {
+        pending.removeElementAt( 0 );
+        dropCount++;
+      }
+      pending.addElement( p );
+    }
+  }
+
+}
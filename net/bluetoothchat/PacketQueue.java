@@ -0,0 +1,522 @@
+package net.bluetoothchat;
+
+/**
+ * Outbound queue of ChatPacket for one EndPoint.
+ * <p>Description: Singly linked FIFO lanes. put() and poll() are O(1), unlike
+ * Vector.removeElementAt(0) which shifts the whole array. Producers are the UI
+ * thread and any Reader echoing an ACK, the consumer is the Sender (or the
+ * PollingEngine worker). The consumer waits on the queue itself and re-checks
+ * the queue under the same monitor the producers notify on, so a put() that
+ * happens between a check and the wait cannot be lost. CLDC has no atomic
+ * compare-and-set, so instead of a lock free queue the monitor is only held for
+ * a couple of pointer updates, and producers only call notify() when the consumer
+ * is actually waiting.</p>
+ * <p>The queue may be given a capacity. Only chat messages count against it,
+ * control signals such as HANDSHAKE or TERMINATE are always queued, so a full
+ * queue can neither lose nor hold up the protocol. When a message is put on a
+ * full queue the policy decides: POLICY_BLOCK waits for room, POLICY_DROP_OLDEST
+ * and POLICY_DROP_NEWEST throw a message away, and POLICY_DISCONNECT refuses
+ * the message so that the caller can drop the slow peer. A Reader relaying a
+ * message must never wait for room, or two nodes relaying to each other can
+ * block each other's Readers for good, so put( p, false ) drops the new message
+ * instead of waiting.</p>
+ * <p>Packets are kept in one lane per priority class: control signals, chat
+ * messages and bulk transfers. Control signals always go first, so that a
+ * HANDSHAKE_ACK or TERMINATE never waits behind a burst of chat messages, and
+ * ACKs keep flowing. Chat and bulk share the rest either strictly, chat before
+ * bulk, or by weighted round robin, so that a large transfer still moves while
+ * people chat. Each lane is FIFO. The time each packet waited in its lane is
+ * recorded per class, see getLatencyStats().</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class PacketQueue
+{
+  // what put() does with a message when the queue is full
+  public final static int POLICY_BLOCK = 0;
+  public final static int POLICY_DROP_OLDEST = 1;
+  public final static int POLICY_DROP_NEWEST = 2;
+  public final static int POLICY_DISCONNECT = 3;
+
+  // priority classes, each has its own lane. see classOf()
+  public final static int CLASS_CONTROL = 0;
+  public final static int CLASS_CHAT = 1;
+  public final static int CLASS_BULK = 2;
+  public final static int CLASSES = 3;
+
+  // how chat and bulk share the link. control always goes first
+  public final static int SCHED_STRICT = 0;
+  public final static int SCHED_WEIGHTED = 1;
+
+  private final static String[] CLASS_NAMES = { "control", "chat", "bulk" };
+
+  // first and last packet of each lane
+  private Node[] heads = new Node[CLASSES];
+  private Node[] tails = new Node[CLASSES];
+  private int size = 0;
+  // number of threads waiting in take()
+  private int waiters = 0;
+
+  private int scheduling = SCHED_STRICT;
+  // packets taken from a lane in a row before the other gets its turn
+  private int[] weights = { 1, 4, 1 };
+  // lane that has the turn with SCHED_WEIGHTED, and the packets it has left
+  private int turn = CLASS_CHAT;
+  private int credit = 0;
+
+  // max number of queued messages, 0 for no limit
+  private int capacity;
+  private int policy;
+  // number of queued messages, i.e. packets that count against capacity
+  private int messages = 0;
+  // number of producers waiting in put() for room
+  private int blocked = 0;
+  private boolean closed = false;
+
+  // number of messages thrown away, and the largest size the queue reached
+  private int dropCount = 0;
+  private int highWater = 0;
+
+  // per class: packets taken, their total and longest wait in the queue in ms
+  private int[] taken = new int[CLASSES];
+  private long[] totalWait = new long[CLASSES];
+  private long[] maxWait = new long[CLASSES];
+
+  public PacketQueue()
+  {
+    this( 0, POLICY_BLOCK );
+  }
+
+  /**
+   * @param capacity max number of queued messages, 0 for no limit
+   * @param policy one of POLICY_XXX
+   */
+  public PacketQueue( int capacity, int policy )
+  {
+    this.capacity = capacity;
+    this.policy = policy;
+  }
+
+  /**
+   * choose how chat and bulk packets share the link. with SCHED_WEIGHTED,
+   * up to chatWeight chat packets are taken, then up to bulkWeight bulk
+   * packets, and so on. a lane that is empty or held back passes its turn
+   * @param mode SCHED_STRICT or SCHED_WEIGHTED
+   */
+  public synchronized void setScheduling( int mode, int chatWeight, int bulkWeight )
+  {
+    this.scheduling = mode;
+    weights[CLASS_CHAT] = Math.max( 1, chatWeight );
+    weights[CLASS_BULK] = Math.max( 1, bulkWeight );
+  }
+
+  /**
+   * append a packet at the end of its lane
+   * @return false if the packet was not queued, because the queue is full
+   * and the policy is POLICY_DROP_NEWEST or POLICY_DISCONNECT, or because
+   * the queue is closed
+   */
+  public boolean put( ChatPacket p )
+  {
+    return put( p, true );
+  }
+
+  /**
+   * append a packet at the end of its lane
+   * @param wait false to drop the packet rather than wait for room when the
+   * policy is POLICY_BLOCK
+   * @return false if the packet was not queued
+   */
+  public synchronized boolean put( ChatPacket p, boolean wait )
+  {
+    boolean counted = isDroppable( p );
+    if ( counted && capacity > 0 )
+    {
+      while ( messages >= capacity && !closed )
+      {
+        if ( policy == POLICY_DROP_OLDEST && removeOldest() )
+          break;
+        if ( policy != POLICY_BLOCK || !wait )
+        {
+          dropCount++;
+          return false;
+        }
+
+        blocked++;
+        try {
+          wait();
+        }
+        catch (InterruptedException ex) {
+        }
+        finally {
+          blocked--;
+        }
+      }
+    }
+    if ( closed )
+    {
+      dropCount++;
+      return false;
+    }
+
+    Node n = new Node( p );
+    n.counted = counted;
+    int lane = classOf( p );
+    if ( tails[lane] == null )
+    {
+      heads[lane] = n;
+    } else
+    {
+      tails[lane].next = n;
+    }
+    tails[lane] = n;
+    added();
+    if ( counted )
+      messages++;
+
+    if ( waiters > 0 )
+    {
+      // a blocked producer may be waiting on the same monitor
+      if ( blocked > 0 )
+        notifyAll();
+      else
+        notify();
+    }
+    return true;
+  }
+
+  /**
+   * insert a packet at the head of its lane, e.g. an ACK or a
+   * retransmission. it does not count against the capacity, and is only
+   * dropped once the queue is closed
+   * @return false if the packet was not queued, because the queue is closed
+   */
+  public synchronized boolean putFirst( ChatPacket p )
+  {
+    if ( closed )
+    {
+      if ( isDroppable( p ) )
+        dropCount++;
+      return false;
+    }
+    Node n = new Node( p );
+    int lane = classOf( p );
+    n.next = heads[lane];
+    heads[lane] = n;
+    if ( tails[lane] == null )
+      tails[lane] = n;
+    added();
+
+    if ( waiters > 0 )
+      notifyAll();
+    return true;
+  }
+
+  /**
+   * @return the packet poll() would take, without removing it, or null
+   */
+  public synchronized ChatPacket peek()
+  {
+    return peek( -1 );
+  }
+
+  /**
+   * @param skip a lane to leave alone, e.g. CLASS_CHAT while the send
+   * window is full, or -1
+   * @return the packet poll( skip ) would take, without removing it, or null
+   */
+  public synchronized ChatPacket peek( int skip )
+  {
+    int lane = select( skip );
+    return lane >= 0 ? heads[lane].packet : null;
+  }
+
+  /**
+   * wait until a packet is put, signal() is called or the timeout expires.
+   * the caller must hold the monitor of the queue while it checks whether it
+   * needs to wait, so that no put() or signal() is missed
+   */
+  public synchronized void await( long timeout )
+  {
+    if ( timeout <= 0 )
+      return;
+    waiters++;
+    try {
+      wait( timeout );
+    }
+    catch (InterruptedException ex) {
+    }
+    finally {
+      waiters--;
+    }
+  }
+
+  /**
+   * wake up the consumer waiting in await() or take(), e.g. because an
+   * ACK opened the send window
+   */
+  public synchronized void signal()
+  {
+    if ( waiters > 0 )
+      notifyAll();
+  }
+
+  /**
+   * remove the next packet: the first control signal, or else the first
+   * packet of the chat or bulk lane whose turn it is
+   * @return the packet, or null if the queue is empty
+   */
+  public synchronized ChatPacket poll()
+  {
+    return poll( -1 );
+  }
+
+  /**
+   * @param skip a lane to leave alone, or -1. see peek( int )
+   * @return the next packet of the other lanes, or null if they are empty
+   */
+  public synchronized ChatPacket poll( int skip )
+  {
+    int lane = select( skip );
+    if ( lane < 0 )
+      return null;
+
+    Node n = heads[lane];
+    heads[lane] = n.next;
+    if ( heads[lane] == null )
+      tails[lane] = null;
+    size--;
+    if ( n.counted )
+    {
+      messages--;
+      if ( blocked > 0 )
+        notifyAll();
+    }
+
+    if ( lane != CLASS_CONTROL )
+    {
+      if ( lane == turn )
+      {
+        credit--;
+      } else
+      {
+        turn = lane;
+        credit = weights[lane] - 1;
+      }
+    }
+
+    long wait = System.currentTimeMillis() - n.queuedAt;
+    taken[lane]++;
+    totalWait[lane] += wait;
+    if ( wait > maxWait[lane] )
+      maxWait[lane] = wait;
+    return n.packet;
+  }
+
+  /**
+   * remove the next packet, wait for one if the queue is empty.
+   * @param timeout max time to wait in ms
+   * @return the packet, or null if none arrived within the timeout
+   */
+  public synchronized ChatPacket take( long timeout ) throws InterruptedException
+  {
+    long end = System.currentTimeMillis() + timeout;
+    while ( size == 0 )
+    {
+      long left = end - System.currentTimeMillis();
+      if ( left <= 0 )
+        return null;
+
+      waiters++;
+      try {
+        wait( left );
+      }
+      finally {
+        waiters--;
+      }
+    }
+    return poll();
+  }
+
+  /**
+   * throw away all queued messages and refuse further packets. producers
+   * waiting for room return.
+   */
+  public synchronized void close()
+  {
+    dropCount += messages;
+    for ( int i=0; i < CLASSES; i++ )
+    {
+      heads[i] = null;
+      tails[i] = null;
+    }
+    size = 0;
+    messages = 0;
+    closed = true;
+    notifyAll();
+  }
+
+  public synchronized boolean isClosed()
+  {
+    return closed;
+  }
+
+  public synchronized boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  public synchronized int size()
+  {
+    return size;
+  }
+
+  public int getPolicy()
+  {
+    return policy;
+  }
+
+  public synchronized int getDropCount()
+  {
+    return dropCount;
+  }
+
+  public synchronized int getHighWater()
+  {
+    return highWater;
+  }
+
+  /**
+   * @return average time in ms the packets of a class waited in the queue
+   */
+  public synchronized long getAverageWait( int lane )
+  {
+    return taken[lane] > 0 ? totalWait[lane] / taken[lane] : 0;
+  }
+
+  /**
+   * @return longest time in ms a packet of a class waited in the queue
+   */
+  public synchronized long getMaxWait( int lane )
+  {
+    return maxWait[lane];
+  }
+
+  /**
+   * @return e.g. "control n=12 avg=0ms max=3ms, chat n=800 avg=41ms max=95ms,
+   * bulk n=0 avg=0ms max=0ms"
+   */
+  public synchronized String getLatencyStats()
+  {
+    StringBuffer sb = new StringBuffer();
+    for ( int i=0; i < CLASSES; i++ )
+    {
+      if ( i > 0 )
+        sb.append( ", " );
+      sb.append( CLASS_NAMES[i] ).append( " n=" ).append( taken[i] )
+        .append( " avg=" ).append( getAverageWait( i ) )
+        .append( "ms max=" ).append( maxWait[i] ).append( "ms" );
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the priority class of a packet: CLASS_CHAT for chat messages,
+   * CLASS_BULK for file chunks and logical channel data, CLASS_CONTROL for
+   * the protocol signals
+   */
+  static int classOf( ChatPacket p )
+  {
+    if ( p.signal == NetLayer.SIGNAL_MESSAGE )
+      return CLASS_CHAT;
+    if ( p.signal == NetLayer.SIGNAL_FILE_CHUNK || p.signal == NetLayer.SIGNAL_DATA )
+      return CLASS_BULK;
+    return CLASS_CONTROL;
+  }
+
+  /**
+   * @return true for chat messages. control signals never count against
+   * the capacity and are never dropped
+   */
+  static boolean isDroppable( ChatPacket p )
+  {
+    return p.signal == NetLayer.SIGNAL_MESSAGE;
+  }
+
+  /**
+   * @return the lane to take the next packet from, or -1 if all lanes
+   * but skip are empty
+   */
+  private int select( int skip )
+  {
+    if ( heads[CLASS_CONTROL] != null && skip != CLASS_CONTROL )
+      return CLASS_CONTROL;
+
+    boolean chat = heads[CLASS_CHAT] != null && skip != CLASS_CHAT;
+    boolean bulk = heads[CLASS_BULK] != null && skip != CLASS_BULK;
+    if ( chat && bulk && scheduling == SCHED_WEIGHTED )
+    {
+      // the lane whose turn it is keeps it until its credit is used up
+      if ( credit > 0 )
+        return turn;
+      return turn == CLASS_CHAT ? CLASS_BULK : CLASS_CHAT;
+    }
+    if ( chat )
+      return CLASS_CHAT;
+    if ( bulk )
+      return CLASS_BULK;
+    return -1;
+  }
+
+  private void added()
+  {
+    size++;
+    if ( size > highWater )
+      highWater = size;
+  }
+
+  /**
+   * remove the oldest message, skipping control signals
+   * @return false if the queue holds no message
+   */
+  private boolean removeOldest()
+  {
+    for ( int lane=0; lane < CLASSES; lane++ )
+    {
+      Node prev = null;
+      for ( Node n = heads[lane]; n != null; prev = n, n = n.next )
+      {
+        if ( n.counted )
+        {
+          if ( prev == null )
+            heads[lane] = n.next;
+          else
+            prev.next = n.next;
+          if ( tails[lane] == n )
+            tails[lane] = prev;
+          size--;
+          messages--;
+          dropCount++;
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  static class Node
+  {
+    ChatPacket packet;
+    Node next;
+    // counts against the capacity, see isDroppable()
+    boolean counted;
+    // time the packet was queued, for the latency statistics
+    long queuedAt = System.currentTimeMillis();
+
+    Node( ChatPacket packet )
+    {
+      this.packet = packet;
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package net.bluetoothchat;
+
+import javax.microedition.rms.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Persistent cache of discovered BlueChat peers.
+ * <p>Description: Maps the address of each remote node to its BlueChat service
+ * URL, friendly name and the time it was last seen. The cache is kept in a RMS
+ * record store, so that on the next start NetLayer can connect to the known peers
+ * right away instead of waiting for a full inquiry and service search. Entries
+ * older than the TTL are dropped, and NetLayer removes an entry when a connect
+ * to it fails.</p>
+ * <p>All entries are stored in a single record, since a chat room only has
+ * a handful of peers.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class PeerCache
+{
+  // default time in ms an entry is kept after the peer was last seen
+  public final static long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000;
+
+  // name of the RMS record store
+  private String storeName;
+  // time in ms an entry is kept after the peer was last seen
+  private long ttl;
+
+  // map address to Entry
+  private Hashtable entries = new Hashtable();
+
+  public PeerCache( String storeName, long ttl )
+  {
+    this.storeName = storeName;
+    this.ttl = ttl;
+  }
+
+  /**
+   * read the entries from the record store. a missing or unreadable
+   * store gives an empty cache
+   */
+  public synchronized void load()
+  {
+    entries.clear();
+    RecordStore rs = null;
+    try {
+      rs = RecordStore.openRecordStore( storeName, true );
+      if ( rs.getNumRecords() == 0 )
+        return;
+
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( rs.getRecord( 1 ) ) );
+      int n = in.readInt();
+      for ( int i=0; i < n; i++ )
+      {
+        Entry e = new Entry();
+        e.address = in.readUTF();
+        e.name = in.readUTF();
+        e.url = in.readUTF();
+        e.lastSeen = in.readLong();
+        entries.put( e.address, e );
+      }
+      log("loaded "+n+" cached peers");
+    }
+    catch (Exception e) {
+      log(e.getClass().getName()+" "+e.getMessage());
+      entries.clear();
+    }
+    finally {
+      close( rs );
+    }
+  }
+
+  /**
+   * write the entries to the record store
+   */
+  public synchronized void save()
+  {
+    RecordStore rs = null;
+    try {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream( bout );
+      out.writeInt( entries.size() );
+      for ( Enumeration e = entries.elements(); e.hasMoreElements(); )
+      {
+        Entry entry = (Entry) e.nextElement();
+        out.writeUTF( entry.address );
+        out.writeUTF( entry.name );
+        out.writeUTF( entry.url );
+        out.writeLong( entry.lastSeen );
+      }
+      byte[] b = bout.toByteArray();
+
+      rs = RecordStore.openRecordStore( storeName, true );
+      if ( rs.getNumRecords() == 0 )
+        rs.addRecord( b, 0, b.length );
+      else
+        rs.setRecord( 1, b, 0, b.length );
+    }
+    catch (Exception e) {
+      log(e.getClass().getName()+" "+e.getMessage());
+    }
+    finally {
+      close( rs );
+    }
+  }
+
+  /**
+   * remember a peer, or refresh its last seen time
+   */
+  public synchronized void put( String address, String name, String url )
+  {
+    Entry e = new Entry();
+    e.address = address;
+    e.name = name != null ? name : "Unknown";
+    e.url = url;
+    e.lastSeen = System.currentTimeMillis();
+    entries.put( address, e );
+  }
+
+  public synchronized void remove( String address )
+  {
+    entries.remove( address );
+  }
+
+  /**
+   * @return the entries seen within the TTL. older entries are removed
+   */
+  public synchronized Entry[] getEntries()
+  {
+    long now = System.currentTimeMillis();
+    Vector fresh = new Vector();
+    Vector expired = new Vector();
+    for ( Enumeration e = entries.elements(); e.hasMoreElements(); )
+    {
+      Entry entry = (Entry) e.nextElement();
+      if ( now - entry.lastSeen <= ttl )
+        fresh.addElement( entry );
+      else
+        expired.addElement( entry.address );
+    }
+    for ( int i=0; i < expired.size(); i++ )
+    {
+      entries.remove( expired.elementAt( i ) );
+    }
+    Entry[] result = new Entry[fresh.size()];
+    fresh.copyInto( result );
+    return result;
+  }
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  private static void close( RecordStore rs )
+  {
+    try {
+      if ( rs != null )
+        rs.closeRecordStore();
+    }
+    catch (RecordStoreException ex) {
+      // ignore
+    }
+  }
+
+  private static void log( String s)
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("PeerCache: "+s);
+
+    // "C" means PeerCache class
+    if ( ChatMain.isDebug )
+      ChatMain.instance.gui_log( "C", s );
+
+  }
+
+  /**
+   * a cached peer
+   */
+  public static class Entry
+  {
+    public String address;
+    public String name;
+    public String url;
+    public long lastSeen;
+  }
+}
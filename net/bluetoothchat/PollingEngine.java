@@ -0,0 +1,317 @@
+package net.bluetoothchat;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Event loop that services many EndPoints with a fixed number of threads.
+ * <p>Description: In the default mode every EndPoint has its own Reader and Sender
+ * thread, so a node with N peers runs 2N threads that mostly sit in readInt() or
+ * wait(). CLDC has no non-blocking socket API, so instead of a selector this engine
+ * polls: each worker thread loops over its EndPoints, moves the bytes that have
+ * already arrived (InputStream.available()) into an InputBuffer of the EndPoint,
+ * processes the signals that are complete in it and writes the pending
+ * packets. When a pass finds nothing to do the worker sleeps until putString()
+ * wakes it up or the poll interval expires. The thread count stays constant
+ * as the number of peers grows, and the BTListener callbacks are unchanged because
+ * the same Reader.readSignal() and Sender.send() code is used.</p>
+ * <p>Only transports that report Transport.isPollable() can be serviced this way.
+ * A signal that has only partly arrived waits in the buffer, so a slow or
+ * stalled peer does not hold up the other EndPoints of the worker; a peer
+ * that sends more than the longest frame without completing one is dropped.
+ * A worker may still block when the remote side stops reading and the link
+ * buffer is full.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class PollingEngine
+{
+  // default number of worker threads
+  public final static int DEFAULT_THREADS = 1;
+  // default time in ms a worker sleeps when none of its EndPoints is busy
+  public final static int DEFAULT_POLL_INTERVAL = 10;
+  // max signals read, and max packets written, per EndPoint in one pass,
+  // so a busy EndPoint cannot starve the others
+  private final static int MAX_PER_PASS = 16;
+
+  Worker[] workers;
+  int pollInterval;
+
+  public PollingEngine()
+  {
+    this( DEFAULT_THREADS, DEFAULT_POLL_INTERVAL );
+  }
+
+  public PollingEngine( int threads, int pollInterval )
+  {
+    this.pollInterval = pollInterval;
+    workers = new Worker[threads];
+    for ( int i=0; i < threads; i++ )
+    {
+      workers[i] = new Worker( this );
+    }
+  }
+
+  /**
+   * start the worker threads
+   */
+  public void start()
+  {
+    for ( int i=0; i < workers.length; i++ )
+    {
+      new Thread( workers[i] ).start();
+    }
+  }
+
+  /**
+   * stop the worker threads. pending packets, e.g. TERMINATE, are still
+   * written before the connections are closed.
+   */
+  public void stop()
+  {
+    for ( int i=0; i < workers.length; i++ )
+    {
+      workers[i].stop();
+    }
+  }
+
+  /**
+   * Let this engine do the reading and writing for an EndPoint.
+   * The EndPoint is given to the worker with the least EndPoints.
+   */
+  public void register( EndPoint endpt ) throws IOException
+  {
+    Slot slot = new Slot();
+    slot.endpt = endpt;
+    slot.input = new InputBuffer( endpt.con.openInputStream(),
+                                  FrameCodec.maxFrameBytes( endpt.btnet.maxFrameLength ) );
+    slot.datain = new DataInputStream( slot.input );
+    slot.dataout = endpt.con.openDataOutputStream();
+
+    Worker worker = workers[0];
+    for ( int i=1; i < workers.length; i++ )
+    {
+      if ( workers[i].size() < worker.size() )
+        worker = workers[i];
+    }
+    endpt.worker = worker;
+    worker.add( slot );
+  }
+
+  /**
+   * @return number of EndPoints currently serviced by this engine
+   */
+  public int getEndPointCount()
+  {
+    int n = 0;
+    for ( int i=0; i < workers.length; i++ )
+    {
+      n += workers[i].size();
+    }
+    return n;
+  }
+
+  private static void log( String s)
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("PollingEngine: "+s);
+
+    // "P" means PollingEngine class
+    if ( ChatMain.isDebug )
+      ChatMain.instance.gui_log( "P", s );
+
+  }
+
+  /**
+   * connection state of one EndPoint serviced by a worker
+   */
+  static class Slot
+  {
+    EndPoint endpt;
+    // the bytes arrived and not processed yet, read through datain
+    InputBuffer input;
+    DataInputStream datain;
+    DataOutputStream dataout;
+  }
+
+  /**
+   * A worker thread servicing a subset of the EndPoints.
+   */
+  static class Worker implements Runnable
+  {
+    PollingEngine engine;
+
+    // Slot objects serviced by this worker
+    private Vector slots = new Vector();
+
+    private boolean done = false;
+    // set by wakeup(), so that a wakeup between a pass and the wait is not lost
+    private boolean signalled = false;
+
+    Worker( PollingEngine engine )
+    {
+      this.engine = engine;
+    }
+
+    void add( Slot slot )
+    {
+      slots.addElement( slot );
+      wakeup();
+    }
+
+    int size()
+    {
+      return slots.size();
+    }
+
+    /**
+     * tell the worker that there is something to write
+     */
+    synchronized void wakeup()
+    {
+      signalled = true;
+      notify();
+    }
+
+    synchronized void stop()
+    {
+      done = true;
+      notify();
+    }
+
+    public void run()
+    {
+      while ( !done )
+      {
+        boolean busy = false;
+
+        // take a snapshot so that EndPoints can be added while we loop
+        Slot[] snapshot;
+        synchronized( slots )
+        {
+          snapshot = new Slot[slots.size()];
+          slots.copyInto( snapshot );
+        }
+
+        for ( int i=0; i < snapshot.length; i++ )
+        {
+          if ( service( snapshot[i] ) )
+            busy = true;
+        }
+
+        if ( !busy )
+        {
+          synchronized( this )
+          {
+            // nothing happened in this pass. wait for a putString() or
+            // for the poll interval, to check the input streams again
+            if ( !signalled && !done )
+            {
+              try {
+                wait( engine.pollInterval );
+              }
+              catch (InterruptedException ex) {
+              }
+            }
+            signalled = false;
+          }
+        }
+      } // while !done
+
+      // write what is left, e.g. TERMINATE signals, and close everything
+      Slot[] snapshot;
+      synchronized( slots )
+      {
+        snapshot = new Slot[slots.size()];
+        slots.copyInto( snapshot );
+      }
+      for ( int i=0; i < snapshot.length; i++ )
+      {
+        try {
+          flush( snapshot[i] );
+        }
+        catch (IOException e) {
+          // ignore, we are closing anyway
+        }
+        close( snapshot[i] );
+      }
+    }
+
+    /**
+     * read the arrived signals and write the pending packets of one EndPoint.
+     * @return true if anything was read or written
+     */
+    private boolean service( Slot slot )
+    {
+      EndPoint endpt = slot.endpt;
+      boolean busy = false;
+      try
+      {
+        // a node that sends without acknowledgements is held back while
+        // the subscribers have no room, see MessagePublisher
+        if ( endpt.reader.isHeldFull() )
+          endpt.reader.flushHeld();
+        if ( !endpt.reader.isHeldFull() && slot.input.fill() > 0 )
+          busy = true;
+        // process only the signals that have fully arrived, a blocking
+        // read would hold up the whole worker
+        for ( int n=0; n < MAX_PER_PASS && !endpt.reader.isDone()
+              && !endpt.reader.isHeldFull()
+              && endpt.reader.available( slot.datain ) > 0 && slot.input.isReady(); n++ )
+        {
+          if ( !endpt.reader.pollSignal( slot.datain ) )
+            break;
+          busy = true;
+        }
+
+        for ( int n=0; n < MAX_PER_PASS && !endpt.sender.isDone(); n++ )
+        {
+          ChatPacket s = endpt.sender.nextPacket( 0 );
+          if ( s == null )
+            break;
+          endpt.sender.send( slot.dataout, s );
+          busy = true;
+        }
+
+        if ( endpt.reader.isDone() || endpt.sender.isDone() )
+        {
+          // EndPoint is leaving. send what is still pending, e.g. TERMINATE_ACK
+          flush( slot );
+          close( slot );
+          busy = true;
+        }
+      } catch (Exception e)
+      {
+        e.printStackTrace();
+        log(e.getClass().getName()+" "+e.getMessage());
+        close( slot );
+        if ( !endpt.reader.isDone() && !endpt.sender.isDone() )
+          endpt.btnet.dropEndPoint( endpt, "link failed" );
+      }
+      return busy;
+    }
+
+    private void flush( Slot slot ) throws IOException
+    {
+      for ( ChatPacket s = slot.endpt.getString(); s != null; s = slot.endpt.getString() )
+      {
+        slot.endpt.sender.send( slot.dataout, s );
+      }
+    }
+
+    private void close( Slot slot )
+    {
+      slots.removeElement( slot );
+      try {
+        slot.datain.close();
+        slot.dataout.close();
+        slot.endpt.con.close();
+      }
+      catch (IOException ex) {
+        // ignore
+      }
+      log("EndPoint removed from engine. name=" + slot.endpt.remoteName);
+    }
+  }
+}
@@ -9,6 +9,7 @@ package net.bluetoothchat;
  * @version 1.0
  */
 import java.io.*;
+import java.util.*;
 
 public class Reader implements Runnable
 {
@@ -16,6 +17,21 @@ public class Reader implements Runnable
   public EndPoint endpt;
 
   private boolean done = false;
+  // ms between the checks of done while a subscriber holds the reads back
+  private final static long PAUSE_CHECK = 1000;
+  // most chat messages without a sequence number held, before the reads stop
+  private final static int MAX_HELD = ReliableChannel.MAX_WINDOW;
+
+  // chat messages read while a subscriber held the delivery back, in the
+  // order read. see MessagePublisher
+  private Vector held = new Vector();
+  // number of them without a sequence number
+  private int heldPlain = 0;
+  // a thread is delivering the held messages, see flushHeld()
+  private boolean flushing = false;
+
+  // decoder of the incoming frames, created on first read
+  private FrameCodec codec = null;
 
   public Reader() {
   }
@@ -28,6 +44,11 @@ public class Reader implements Runnable
     done = true;
   }
 
+  public boolean isDone()
+  {
+    return done;
+  }
+
   public void run()
   {
     try
@@ -36,85 +57,373 @@ public class Reader implements Runnable
 
       while ( !done )
       {
+        // a node that sends without acknowledgements is held back by
+        // not reading its link any more. see MessagePublisher
+        if ( isHeldFull() )
+        {
+          flushHeld();
+          if ( isHeldFull() )
+            endpt.btnet.publisher.awaitRoom( PAUSE_CHECK );
+          continue;
+        }
+
         log("waiting for next signal from "+endpt.remoteName);
-        // read in the next signal (an integer)
         // this will block until there is data to read
-        int signal = datain.readInt();
+        readSignal( datain );
+      } // while !done
 
-        if ( signal == NetLayer.SIGNAL_MESSAGE )
-        {
-          String s = datain.readUTF();
+      datain.close();
+    } catch (Exception e)
+    {
+      e.printStackTrace();
+      log(e.getClass().getName()+" "+e.getMessage());
 
-          ChatPacket packet = new ChatPacket( NetLayer.SIGNAL_MESSAGE, endpt.remoteName, s );
+      // the link is broken, e.g. the peer walked out of range,
+      // unless we are closing it anyway
+      if ( !done )
+        endpt.btnet.dropEndPoint( endpt, "read failed" );
+    }
+    log("reader thread exit for "+endpt.remoteName);
 
-          log("read in MESSAGE string '"+s+"' from "+endpt.remoteName);
+  }
 
-          // read in a string message. emit RECEIVED event to BTListener implementation
-          endpt.callback.handleAction( BTListener.EVENT_RECEIVED, endpt, packet );
+  /**
+   * @return number of bytes that can be read without blocking
+   */
+  public int available( DataInputStream datain ) throws IOException
+  {
+    return codec != null ? codec.available() : datain.available();
+  }
 
-        } else if ( signal == NetLayer.SIGNAL_HANDSHAKE )
-        {
-          String s = datain.readUTF();
-          log("read in HANDSHAKE name "+s+" from "+endpt.remoteName);
-          // update the remote user nick name
-          endpt.remoteName = s;
+  /**
+   * read in one signal and its data, and process it.
+   * this will block until a complete signal is read.
+   * @param datain stream connected to the remote EndPoint
+   */
+  public void readSignal( DataInputStream datain ) throws IOException
+  {
+    if ( codec == null )
+      codec = new FrameCodec( datain, endpt.btnet.maxFrameLength );
+
+    // read in the next frame, v1 or v2
+    // this will block until there is data to read
+    process( codec.read() );
+  }
+
+  /**
+   * read in one signal and its data if it has fully arrived, and process
+   * it. used by PollingEngine, it never blocks
+   * @param datain stream of an InputBuffer
+   * @return false if the signal has not fully arrived yet
+   */
+  public boolean pollSignal( DataInputStream datain ) throws IOException
+  {
+    if ( codec == null )
+      codec = new FrameCodec( datain, endpt.btnet.maxFrameLength );
+
+    ChatPacket packet = codec.poll();
+    if ( packet == null )
+      return false;
+    process( packet );
+    return true;
+  }
 
-          // echo acknowledgment and local user friendly name back to remote device
-          endpt.putString( NetLayer.SIGNAL_HANDSHAKE_ACK, endpt.localName );
+  /**
+   * process a signal read in
+   */
+  private void process( ChatPacket packet ) throws IOException
+  {
+    int signal = packet.signal;
+    // any frame shows that the peer is alive. see NetLayer.HeartbeatTask
+    endpt.lastReceived = System.currentTimeMillis();
 
+    if ( signal == NetLayer.SIGNAL_MESSAGE )
+    {
+      endpt.lastActivity = endpt.lastReceived;
+      received( packet );
 
-          endpt.callback.handleAction( BTListener.EVENT_JOIN, endpt, null );
+    } else if ( signal == NetLayer.SIGNAL_ACK )
+    {
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet.data ) );
+      int cum = in.readInt();
+      long sack = in.readLong();
+      endpt.ackReceived( cum, sack );
 
-        } else if ( signal == NetLayer.SIGNAL_TERMINATE )
-        {
-          log("read in TERMINATE from "+endpt.remoteName);
+    } else if ( signal == NetLayer.SIGNAL_HANDSHAKE )
+    {
+      String s = packet.getMsg();
+      log("read in HANDSHAKE name "+s+" from "+endpt.remoteName);
+      // update the remote user nick name
+      endpt.remoteName = s;
 
-          // echo acknowledgment and local friendly name back to remote device
-          endpt.putString( NetLayer.SIGNAL_TERMINATE_ACK, "end" );
+      // echo acknowledgment and local user friendly name back to remote device
+      endpt.putString( NetLayer.SIGNAL_HANDSHAKE_ACK, endpt.localName );
+      endpt.announceVersion();
 
-          // emit LEAVE event to BTListener implementation
-          endpt.callback.handleAction( BTListener.EVENT_LEAVE, endpt, null );
 
-          // clean up end point resources and associated connections
-          endpt.btnet.cleanupRemoteEndPoint( endpt );
+      endpt.btnet.peerReady( endpt );
+      endpt.callback.handleAction( BTListener.EVENT_JOIN, endpt, null );
 
-          // stop this reader, no need to read any more signal
-          stop();
+    } else if ( signal == NetLayer.SIGNAL_TERMINATE )
+    {
+      log("read in TERMINATE from "+endpt.remoteName);
 
-        } else if ( signal == NetLayer.SIGNAL_HANDSHAKE_ACK )
-        {
-          // the string data is the remote user nick name
-          String s = datain.readUTF();
-          log("read in  HANDSHAKE_ACK name "+s+" from "+endpt.remoteName);
-          // update remote user nick name
-          endpt.remoteName = s;
+      // echo acknowledgment and local friendly name back to remote device
+      endpt.putString( NetLayer.SIGNAL_TERMINATE_ACK, "end" );
 
-        } else if ( signal == NetLayer.SIGNAL_TERMINATE_ACK )
-        {
+      // emit LEAVE event to BTListener implementation
+      endpt.callback.handleAction( BTListener.EVENT_LEAVE, endpt, null );
+
+      // clean up end point resources and associated connections
+      endpt.btnet.cleanupRemoteEndPoint( endpt );
+
+      // stop this reader, no need to read any more signal
+      stop();
+
+    } else if ( signal == NetLayer.SIGNAL_HANDSHAKE_ACK )
+    {
+      // the string data is the remote user nick name
+      String s = packet.getMsg();
+      log("read in  HANDSHAKE_ACK name "+s+" from "+endpt.remoteName);
+      // update remote user nick name
+      endpt.remoteName = s;
+      endpt.btnet.peerReady( endpt );
+
+    } else if ( signal == NetLayer.SIGNAL_TERMINATE_ACK )
+    {
+
+      log("read in TERMINATE_ACK from "+endpt.remoteName);
+      // doesn't do anything, just wake up from readInt() so that the thread can stop
+
+
+    } else if ( signal == NetLayer.SIGNAL_HEARTBEAT )
+    {
+      // nothing to do, lastReceived is already updated
+
+    } else if ( signal == NetLayer.SIGNAL_VERSION )
+    {
+      // remote node speaks v2 frames. from now on, send v2 frames to it
+      // unless we are configured to speak v1 only
+      endpt.remoteVersion = Math.min( 2, endpt.btnet.protocolVersion );
+      log("read in VERSION from "+endpt.remoteName+", using protocol v"+endpt.remoteVersion);
+      if ( endpt.remoteVersion >= 2 )
+        endpt.sendSession();
+
+    } else if ( signal == NetLayer.SIGNAL_SESSION )
+    {
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet.data ) );
+      long remoteSession = in.readLong();
+      long seenSession = in.readLong();
+      int expected = in.readInt();
+      log("read in SESSION from "+endpt.remoteName+", expects "+expected);
+      // only v2 nodes send it, and it may overtake their VERSION
+      endpt.remoteVersion = Math.min( 2, endpt.btnet.protocolVersion );
+      // ours must be on its way before any message with a sequence number
+      endpt.sendSession();
+      endpt.btnet.sessionReceived( endpt, remoteSession, seenSession, expected );
+
+    } else if ( signal == NetLayer.SIGNAL_ROOMS )
+    {
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet.data ) );
+      String[] names = new String[in.readUnsignedShort()];
+      for ( int i=0; i < names.length; i++ )
+      {
+        names[i] = in.readUTF();
+      }
+      log("read in ROOMS from "+endpt.remoteName+", "+names.length+" rooms");
+      endpt.btnet.roomsReceived( endpt, names );
+
+    } else if ( signal == NetLayer.SIGNAL_DIGEST || signal == NetLayer.SIGNAL_PULL )
+    {
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet.data ) );
+      long[] ids = new long[in.readUnsignedShort()];
+      for ( int i=0; i < ids.length; i++ )
+      {
+        ids[i] = in.readLong();
+      }
+      if ( signal == NetLayer.SIGNAL_DIGEST )
+        endpt.btnet.digestReceived( endpt, ids );
+      else
+        endpt.btnet.pullReceived( endpt, ids );
+
+    } else if ( signal == NetLayer.SIGNAL_DATA )
+    {
+      endpt.btnet.dataReceived( endpt, packet );
 
-          System.out.println("read in TERMINATE_ACK from "+endpt.remoteName);
-          // doesn't do anything, just wake up from readInt() so that the thread can stop
+    } else if ( signal == NetLayer.SIGNAL_CREDIT )
+    {
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet.data ) );
+      int channel = in.readUnsignedShort();
+      int limit = in.readInt();
+      endpt.mux.creditReceived( channel, limit );
 
+    } else if ( signal == NetLayer.SIGNAL_FILE_OFFER )
+    {
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet.data ) );
+      int id = in.readInt();
+      long size = in.readLong();
+      String name = in.readUTF();
+      log("read in FILE_OFFER "+name+" from "+endpt.remoteName+", "+size+" bytes");
+      endpt.btnet.fileOffered( endpt, id, size, name );
+
+    } else if ( signal == NetLayer.SIGNAL_FILE_CHUNK )
+    {
+      // the bytes are passed on without copying them
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet.data ) );
+      int id = in.readInt();
+      int pass = in.readInt();
+      long offset = in.readLong();
+      int len = packet.data.length - FileTransfer.CHUNK_HEADER;
+      endpt.lastActivity = endpt.lastReceived;
+      endpt.btnet.chunkReceived( endpt, id, pass, offset, packet.data, FileTransfer.CHUNK_HEADER, len );
+
+    } else if ( signal == NetLayer.SIGNAL_FILE_ACK )
+    {
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet.data ) );
+      int id = in.readInt();
+      long offset = in.readLong();
+      int flags = in.readByte();
+      endpt.btnet.fileAckReceived( endpt, id, offset, ( flags & FileTransfer.ACK_RESEND ) != 0 );
 
+    } else
+    {
+      // the codec has consumed the whole frame, so we can simply skip it
+      log("Unkonwn signal "+signal+" from "+endpt.remoteName+", skipped");
+    }
+  }
+
+  /**
+   * a chat message was read. it waits behind the held ones, and is held
+   * itself while a subscriber asks for no more. the other signals go on
+   */
+  private void received( ChatPacket packet )
+  {
+    synchronized( held )
+    {
+      if ( packet.seq >= 0 )
+      {
+        // a message sent again while it was held
+        if ( packet.seq < endpt.channel.getExpected() )
+        {
+          endpt.requestAck();
+          return;
+        }
+        for ( int i=0; i < held.size(); i++ )
+        {
+          if ( ((ChatPacket) held.elementAt( i )).seq == packet.seq )
+            return;
+        }
+      } else
+      {
+        heldPlain++;
+      }
+      held.addElement( packet );
+    }
+    flushHeld();
+  }
+
+  /**
+   * deliver the held chat messages while the subscribers have room.
+   * called by the reading thread, and by MessagePublisher when a subscriber
+   * made room. one thread at a time delivers, in the order read, and the
+   * others return at once, so a thread delivering for two EndPoints cannot
+   * wait for another one
+   */
+  void flushHeld()
+  {
+    synchronized( held )
+    {
+      if ( flushing )
+        return;
+      flushing = true;
+    }
+    while ( true )
+    {
+      ChatPacket[] ready;
+      synchronized( held )
+      {
+        if ( held.isEmpty() || endpt.btnet.publisher.isPaused() )
+        {
+          flushing = false;
+          return;
+        }
+        ChatPacket packet = (ChatPacket) held.elementAt( 0 );
+        held.removeElementAt( 0 );
+        if ( packet.seq >= 0 )
+        {
+          // deliver in sequence order, and acknowledge. a held message is
+          // acknowledged only now, so the remote window holds its sender
+          // back meanwhile. see ReliableChannel
+          ready = endpt.channel.receive( packet );
+          endpt.requestAck();
         } else
         {
-          log("Unkonwn signal, probably connection closed");
+          heldPlain--;
+          ready = new ChatPacket[] { packet };
+        }
+      }
+      try {
+        for ( int i=0; i < ready.length; i++ )
+        {
+          deliver( ready[i] );
+        }
+      }
+      catch (RuntimeException ex) {
+        synchronized( held )
+        {
+          flushing = false;
         }
+        throw ex;
+      }
+    }
+  }
 
-      } // while !done
+  /**
+   * @return true if the link should not be read until the subscribers
+   * make room
+   */
+  boolean isHeldFull()
+  {
+    synchronized( held )
+    {
+      return heldPlain >= MAX_HELD;
+    }
+  }
 
-      datain.close();
-    } catch (Exception e)
+  /**
+   * emit RECEIVED event for a chat message to BTListener implementation
+   */
+  private void deliver( ChatPacket packet )
+  {
+    if ( packet.id != 0 )
     {
-      e.printStackTrace();
-      log(e.getClass().getName()+" "+e.getMessage());
+      // a relayed message, it names the node it came from first
+      if ( !endpt.btnet.relay( endpt, packet ) )
+        return;
+    } else
+    {
+      packet.sender = endpt.remoteName;
+      packet.from = endpt.remoteAddress;
     }
-    log("reader thread exit for "+endpt.remoteName);
 
+    // sent before the remote node learnt that we left the room, or relayed
+    // past us to another node
+    if ( !endpt.btnet.isInRoom( packet.room ) || !endpt.btnet.isAddressedTo( packet.to ) )
+      return;
+
+    String s = packet.getMsg();
+
+    log("read in MESSAGE string '"+s+"' from "+endpt.remoteName);
+
+    // read in a string message. emit RECEIVED event to BTListener implementation
+    endpt.callback.handleAction( BTListener.EVENT_RECEIVED, endpt, packet );
+    endpt.btnet.publisher.publish( endpt, packet );
   }
+
   private static void log( String s)
   {
-    System.out.println("Reader: "+s);
+    if ( ChatMain.isLogging )
+      System.out.println("Reader: "+s);
 
     // "R" means Reader class
     if ( ChatMain.isDebug )
@@ -0,0 +1,396 @@
+package net.bluetoothchat;
+
+import java.util.*;
+
+/**
+ * Acknowledged delivery of chat messages to and from one v2 EndPoint.
+ * <p>Description: Every chat message sent to a v2 node gets a sequence number
+ * (FrameCodec.FLAG_SEQ). The receiver delivers messages in sequence order and
+ * answers with SIGNAL_ACK frames holding the next expected sequence number
+ * (cumulative ACK) and a bitmap of the MAX_WINDOW sequence numbers above it that
+ * arrived early (selective ACK). A frame can go missing although the link is a
+ * stream, e.g. when the reader drops a frame with a bad checksum.</p>
+ * <p>The sender keeps up to window unacknowledged messages in flight instead
+ * of waiting for each ACK. The link is first in first out, so a message that is
+ * not acknowledged while a message sent after it is, is lost and is sent again
+ * right away; only the missing messages are sent again. A message whose ACK does
+ * not arrive within the retransmission timeout, computed from the measured round
+ * trip time as in RFC 2988, is sent again as well. The window is sized to twice
+ * the measured delivery rate times the round trip time, so that the link is kept
+ * busy without queueing more than necessary.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class ReliableChannel
+{
+  // width of the selective ACK bitmap, and the largest send window
+  public final static int MAX_WINDOW = 64;
+  public final static int MIN_WINDOW = 4;
+  private final static int INITIAL_WINDOW = 8;
+
+  // bounds of the retransmission timeout in ms
+  private final static int MIN_RTO = 200;
+  private final static int MAX_RTO = 10000;
+  private final static int INITIAL_RTO = 1000;
+
+  //
+  // send side
+
+  private int nextSeq = 0;
+  // unacknowledged messages, map ChatPacket to Entry
+  private Hashtable inFlight = new Hashtable();
+  // same Entry objects, in sequence order
+  private Vector order = new Vector();
+  // packets acknowledged while queued for retransmission, so not to be sent
+  private Hashtable stale = new Hashtable();
+  // number of transmissions so far, gives the order frames went on the link
+  private long sendCount = 0;
+
+  private int window = INITIAL_WINDOW;
+  // smoothed round trip time and its variation, and the retransmission timeout
+  private int srtt = 0;
+  private int rttvar = 0;
+  private int rto = INITIAL_RTO;
+  // bytes acknowledged since rateStart, to measure the delivery rate
+  private long rateStart = System.currentTimeMillis();
+  private long rateBytes = 0;
+  // average frame size, to turn bytes into a window in messages
+  private int avgFrame = 64;
+
+  private int retransmitCount = 0;
+  private int ackedCount = 0;
+
+  //
+  // receive side
+
+  // next sequence number to deliver
+  private int expected = 0;
+  // messages that arrived ahead of expected, map Integer to ChatPacket
+  private Hashtable early = new Hashtable();
+  private int duplicateCount = 0;
+
+  public ReliableChannel()
+  {
+  }
+
+  /**
+   * @return true if p is a message that is not sent yet and must wait for
+   * room in the window. retransmissions never wait
+   */
+  public synchronized boolean mustWait( ChatPacket p )
+  {
+    return inFlight.size() >= window && inFlight.get( p ) == null && stale.get( p ) == null;
+  }
+
+  /**
+   * a message is about to be written. a new message gets the next sequence
+   * number, a retransmission keeps its number.
+   * @param frameBytes size of the frame on the link
+   * @return the sequence number, or -1 if the message was acknowledged
+   * while it waited for retransmission and must not be sent
+   */
+  public synchronized int prepare( ChatPacket p, int frameBytes )
+  {
+    if ( stale.remove( p ) != null )
+      return -1;
+
+    Entry e = (Entry) inFlight.get( p );
+    if ( e == null )
+    {
+      e = new Entry();
+      e.packet = p;
+      e.seq = nextSeq++;
+      e.bytes = frameBytes;
+      inFlight.put( p, e );
+      order.addElement( e );
+      avgFrame = ( 7 * avgFrame + frameBytes ) / 8;
+    } else
+    {
+      e.retransmits++;
+      retransmitCount++;
+    }
+    e.queued = false;
+    e.sentAt = System.currentTimeMillis();
+    e.sendOrder = ++sendCount;
+    return e.seq;
+  }
+
+  /**
+   * process an ACK from the receiver
+   * @param cum all messages below this sequence number arrived
+   * @param sack bit i set if message cum + 1 + i arrived
+   * @return packets found lost, in sequence order, to be sent again
+   */
+  public synchronized Vector ackReceived( int cum, long sack )
+  {
+    long now = System.currentTimeMillis();
+    long lastSacked = 0;
+    for ( int i=0; i < order.size(); )
+    {
+      Entry e = (Entry) order.elementAt( i );
+      if ( e.seq < cum )
+      {
+        order.removeElementAt( i );
+        inFlight.remove( e.packet );
+        if ( e.queued )
+          stale.put( e.packet, e.packet );
+        // Karn: a retransmitted message gives no reliable sample
+        if ( e.retransmits == 0 )
+          rttSample( (int) ( now - e.sentAt ) );
+        rateBytes += e.bytes;
+        ackedCount++;
+        continue;
+      }
+      int bit = e.seq - cum - 1;
+      if ( bit >= 0 && bit < MAX_WINDOW && ( sack & ( 1L << bit ) ) != 0 )
+      {
+        e.sacked = true;
+        if ( e.sendOrder > lastSacked )
+          lastSacked = e.sendOrder;
+      }
+      i++;
+    }
+
+    // a message sent before one that arrived is lost
+    Vector lost = new Vector();
+    for ( int i=0; i < order.size(); i++ )
+    {
+      Entry e = (Entry) order.elementAt( i );
+      if ( !e.sacked && !e.queued && e.sendOrder < lastSacked )
+      {
+        e.queued = true;
+        lost.addElement( e.packet );
+      }
+    }
+
+    updateWindow( now );
+    return lost;
+  }
+
+  /**
+   * @return packets whose ACK is overdue, in sequence order, to be sent again
+   */
+  public synchronized Vector checkTimeouts( long now )
+  {
+    Vector lost = null;
+    for ( int i=0; i < order.size(); i++ )
+    {
+      Entry e = (Entry) order.elementAt( i );
+      if ( !e.sacked && !e.queued && now - e.sentAt >= rto )
+      {
+        if ( lost == null )
+          lost = new Vector();
+        e.queued = true;
+        lost.addElement( e.packet );
+      }
+    }
+    if ( lost != null )
+      rto = Math.min( rto * 2, MAX_RTO ); // back off
+    return lost;
+  }
+
+  /**
+   * @return time in ms until the next retransmission timeout, or
+   * Long.MAX_VALUE if nothing is waiting for an ACK
+   */
+  public synchronized long nextTimeout( long now )
+  {
+    long next = Long.MAX_VALUE;
+    for ( int i=0; i < order.size(); i++ )
+    {
+      Entry e = (Entry) order.elementAt( i );
+      if ( !e.sacked && !e.queued )
+        next = Math.min( next, Math.max( 0, e.sentAt + rto - now ) );
+    }
+    return next;
+  }
+
+  /**
+   * a message with a sequence number arrived
+   * @return the messages that can be delivered now, in order. empty for a
+   * duplicate or a message that arrived early
+   */
+  public synchronized ChatPacket[] receive( ChatPacket p )
+  {
+    int seq = p.seq;
+    if ( seq < expected || early.get( new Integer( seq ) ) != null )
+    {
+      duplicateCount++;
+      return new ChatPacket[0];
+    }
+    if ( seq > expected + MAX_WINDOW )
+    {
+      // too far ahead to acknowledge. the sender will send it again
+      return new ChatPacket[0];
+    }
+    if ( seq > expected )
+    {
+      early.put( new Integer( seq ), p );
+      return new ChatPacket[0];
+    }
+
+    Vector ready = new Vector();
+    ready.addElement( p );
+    expected++;
+    for ( Object next = early.remove( new Integer( expected ) ); next != null;
+          next = early.remove( new Integer( expected ) ) )
+    {
+      ready.addElement( next );
+      expected++;
+    }
+    ChatPacket[] result = new ChatPacket[ready.size()];
+    ready.copyInto( result );
+    return result;
+  }
+
+  /**
+   * the link was replaced and the remote node lost our messages in flight,
+   * e.g. it was restarted. start again at sequence number 0
+   */
+  public synchronized void resetSend()
+  {
+    inFlight.clear();
+    order.removeAllElements();
+    stale.clear();
+    nextSeq = 0;
+  }
+
+  /**
+   * the link was replaced and the remote node starts its sequence numbers
+   * again at 0
+   */
+  public synchronized void resetReceive()
+  {
+    early.clear();
+    expected = 0;
+  }
+
+  /**
+   * the link was replaced and the remote node has received everything below
+   * expected. the messages from expected on are sent again with their
+   * sequence numbers, on the new link.
+   * @return the packets to send again, in sequence order
+   */
+  public synchronized Vector resumeSend( int expected )
+  {
+    stale.clear();
+    Vector resend = new Vector();
+    for ( int i=0; i < order.size(); )
+    {
+      Entry e = (Entry) order.elementAt( i );
+      if ( e.seq < expected )
+      {
+        // arrived, but the ACK was lost with the old link
+        order.removeElementAt( i );
+        inFlight.remove( e.packet );
+        ackedCount++;
+        continue;
+      }
+      e.sacked = false;
+      e.queued = true;
+      resend.addElement( e.packet );
+      i++;
+    }
+    return resend;
+  }
+
+  /**
+   * @return true if p was sent, and is waiting for its ACK or for retransmission
+   */
+  public synchronized boolean isSent( ChatPacket p )
+  {
+    return inFlight.get( p ) != null || stale.get( p ) != null;
+  }
+
+  /**
+   * @return the cumulative ACK, i.e. the next sequence number expected
+   */
+  public synchronized int getExpected()
+  {
+    return expected;
+  }
+
+  /**
+   * @return the selective ACK bitmap, bit i set if message
+   * getExpected() + 1 + i arrived
+   */
+  public synchronized long getSack()
+  {
+    long sack = 0;
+    for ( int i=0; i < MAX_WINDOW; i++ )
+    {
+      if ( early.get( new Integer( expected + 1 + i ) ) != null )
+        sack |= 1L << i;
+    }
+    return sack;
+  }
+
+  public synchronized int getWindow()
+  {
+    return window;
+  }
+
+  public synchronized int getInFlight()
+  {
+    return inFlight.size();
+  }
+
+  /**
+   * @return e.g. "window=16 inFlight=3 srtt=40ms rto=200ms acked=1200
+   * retransmits=2 duplicates=0"
+   */
+  public synchronized String getStats()
+  {
+    return "window=" + window + " inFlight=" + inFlight.size() + " srtt=" + srtt
+        + "ms rto=" + rto + "ms acked=" + ackedCount + " retransmits=" + retransmitCount
+        + " duplicates=" + duplicateCount;
+  }
+
+  private void rttSample( int r )
+  {
+    if ( srtt == 0 )
+    {
+      srtt = Math.max( r, 1 );
+      rttvar = r / 2;
+    } else
+    {
+      rttvar = ( 3 * rttvar + Math.abs( srtt - r ) ) / 4;
+      srtt = Math.max( ( 7 * srtt + r ) / 8, 1 );
+    }
+    rto = Math.max( MIN_RTO, Math.min( MAX_RTO, srtt + 4 * rttvar ) );
+  }
+
+  /**
+   * once per round trip, set the window to twice the bytes delivered per
+   * round trip. the factor 2 lets the window grow until the link is the limit
+   */
+  private void updateWindow( long now )
+  {
+    long elapsed = now - rateStart;
+    if ( srtt == 0 || elapsed < srtt )
+      return;
+
+    long w = 2 * rateBytes * srtt / elapsed / Math.max( avgFrame, 1 );
+    window = (int) Math.max( MIN_WINDOW, Math.min( MAX_WINDOW, w ) );
+    rateStart = now;
+    rateBytes = 0;
+  }
+
+  /**
+   * a message waiting for its ACK
+   */
+  static class Entry
+  {
+    ChatPacket packet;
+    int seq;
+    int bytes;
+    long sentAt;
+    long sendOrder;
+    int retransmits;
+    // arrived ahead of the cumulative ACK
+    boolean sacked;
+    // queued for retransmission
+    boolean queued;
+  }
+}
@@ -0,0 +1,101 @@
+package net.bluetoothchat;
+
+import java.util.*;
+
+/**
+ * The EndPoints subscribed to each chat room.
+ * <p>Description: A v2 node announces the rooms it is in with SIGNAL_ROOMS when
+ * its session is set up, and again whenever it joins or leaves one. NetLayer keeps
+ * the announced rooms here, so that a message to a room is only queued to the
+ * EndPoints in it, instead of to everyone. Like EndPointRegistry, each room maps
+ * to an array that is replaced, never changed, so a send iterates it without
+ * holding a lock. Messages without a room go to every EndPoint, as before; v1
+ * nodes announce nothing and only get those.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class RoomIndex
+{
+  private final static EndPoint[] NONE = new EndPoint[0];
+
+  // map room name to EndPoint[]
+  private Hashtable rooms = new Hashtable();
+
+  public RoomIndex()
+  {
+  }
+
+  /**
+   * replace the rooms an EndPoint is in with the ones it announced
+   */
+  public synchronized void subscribe( EndPoint endpt, String[] names )
+  {
+    remove( endpt );
+    endpt.rooms = names;
+    for ( int i=0; i < names.length; i++ )
+    {
+      EndPoint[] old = get( names[i] );
+      EndPoint[] s = new EndPoint[old.length + 1];
+      System.arraycopy( old, 0, s, 0, old.length );
+      s[old.length] = endpt;
+      rooms.put( names[i], s );
+    }
+  }
+
+  /**
+   * take an EndPoint out of all its rooms, e.g. because it left
+   */
+  public synchronized void remove( EndPoint endpt )
+  {
+    String[] names = endpt.rooms;
+    for ( int i=0; i < names.length; i++ )
+    {
+      EndPoint[] old = get( names[i] );
+      int n = 0;
+      for ( int j=0; j < old.length; j++ )
+      {
+        if ( old[j] != endpt )
+          n++;
+      }
+      if ( n == old.length )
+        continue;
+      if ( n == 0 )
+      {
+        rooms.remove( names[i] );
+        continue;
+      }
+      EndPoint[] s = new EndPoint[n];
+      n = 0;
+      for ( int j=0; j < old.length; j++ )
+      {
+        if ( old[j] != endpt )
+          s[n++] = old[j];
+      }
+      rooms.put( names[i], s );
+    }
+  }
+
+  /**
+   * @return the EndPoints in a room. the array must not be changed
+   */
+  public synchronized EndPoint[] get( String room )
+  {
+    EndPoint[] s = (EndPoint[]) rooms.get( room );
+    return s != null ? s : NONE;
+  }
+
+  /**
+   * @return the names of the rooms at least one EndPoint is in
+   */
+  public synchronized String[] getRooms()
+  {
+    String[] names = new String[rooms.size()];
+    int n = 0;
+    for ( Enumeration e = rooms.keys(); e.hasMoreElements(); )
+    {
+      names[n++] = (String) e.nextElement();
+    }
+    return names;
+  }
+}
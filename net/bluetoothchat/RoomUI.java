@@ -0,0 +1,49 @@
+package net.bluetoothchat;
+
+import javax.microedition.lcdui.*;
+
+/**
+ *
+ * <p>Title: A screen to join and leave chat rooms</p>
+ * <p>Description: User enters the name of a room to join or leave. Messages
+ * entered after joining a room go to the members of the room only, until user
+ * picks Everyone. Messages sent to rooms user is not in are not shown.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class RoomUI extends Form
+{
+
+  TextField text;
+  StringItem joined;
+  public RoomUI()
+  {
+    super("Chat Rooms");
+    setCommandListener( ChatMain.instance );
+
+    addCommand(new Command("Join", Command.SCREEN, 1));
+    addCommand(new Command("Leave", Command.SCREEN, 2));
+    addCommand(new Command("Everyone", Command.SCREEN, 3));
+    addCommand(new Command("Back", Command.SCREEN, 4));
+
+    append( joined = new StringItem( "Your Rooms", "" ) );
+    append( text = new TextField( "Room", "", 20, TextField.ANY ) );
+  }
+
+  /**
+   * show the rooms user is in, and fill in the current one
+   */
+  public void showUI( String[] rooms, String current )
+  {
+    StringBuffer sb = new StringBuffer();
+    for ( int i=0; i < rooms.length; i++ )
+    {
+      if ( i > 0 )
+        sb.append( ", " );
+      sb.append( rooms[i] );
+    }
+    joined.setText( sb.length() > 0 ? sb.toString() : "none" );
+    text.setString( current != null ? current : "" );
+  }
+}
@@ -0,0 +1,81 @@
+package net.bluetoothchat;
+
+import java.util.*;
+
+/**
+ * The message ids a node handled lately, see NetLayer.setRelay().
+ * <p>Description: A relayed message reaches a node over every path of the
+ * mesh, and must only be delivered and passed on the first time. The ids are
+ * kept in two generations, each a Hashtable. New ids go into the current one;
+ * when it is full, or older than half the time to live, it becomes the previous
+ * one and the former previous one is thrown away. A lookup checks both. So an
+ * id is remembered for at least half the time to live, and never more than max
+ * ids are kept, without a timestamp per id or a sweep over all of them.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class SeenSet
+{
+  private int max;
+  private long ttl;
+
+  private Hashtable current = new Hashtable();
+  private Hashtable previous = new Hashtable();
+  private long rotatedAt = System.currentTimeMillis();
+
+  /**
+   * @param max most ids kept
+   * @param ttl time in ms an id is kept at most
+   */
+  public SeenSet( int max, long ttl )
+  {
+    this.max = max;
+    this.ttl = ttl;
+  }
+
+  /**
+   * @return true if the id is new, false if it was seen already
+   */
+  public synchronized boolean add( long id )
+  {
+    Long key = new Long( id );
+    if ( current.containsKey( key ) || previous.containsKey( key ) )
+      return false;
+
+    long now = System.currentTimeMillis();
+    if ( current.size() >= ( max + 1 ) / 2 || now - rotatedAt >= ttl / 2 )
+    {
+      previous = current;
+      current = new Hashtable();
+      rotatedAt = now;
+    }
+    current.put( key, key );
+    return true;
+  }
+
+  /**
+   * @return true if the id was seen
+   */
+  public synchronized boolean contains( long id )
+  {
+    Long key = new Long( id );
+    return current.containsKey( key ) || previous.containsKey( key );
+  }
+
+  /**
+   * @return time in ms an id is kept at most
+   */
+  public long getTtl()
+  {
+    return ttl;
+  }
+
+  /**
+   * @return number of ids kept
+   */
+  public synchronized int size()
+  {
+    return current.size() + previous.size();
+  }
+}
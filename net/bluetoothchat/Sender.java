@@ -1,89 +1,343 @@
-package net.bluetoothchat;
-
-/**
- * Sender thread that send out signal and data to a bluetooth connection.
- * <p>Description: Sender is a Runnable implementation that send signal and data (String)
- *  to connected DataInputStream. Each EndPoint has it own sender thread.</p>
- * <p>Copyright: Copyright (c) 2009</p>
- * @author P Coder
- * @version 1.0
- */
-import java.io.*;
-
-public class Sender implements Runnable
-{
-  // end point that this sender sends data to
-  public EndPoint endpt;
-
-  private boolean done = false;
-
-  public Sender()
-  {
-  }
-
-  /**
-   * set 'done' flag to true, which will exit the while loop
-   */
-  public void stop()
-  {
-    done = true;
-  }
-
-  public void run()
-  {
-    try
-    {
-      DataOutputStream dataout = endpt.con.openDataOutputStream();
-      while( !done )
-      {
-
-        // check to see if there are any message to send.
-        // if not, then wait for 5 second
-        if ( ! endpt.peekString()  )
-        {
-          synchronized (this) {
-            this.wait(5000);
-          }
-        }
-
-        // wake up and get next string
-        ChatPacket s = endpt.getString();
-
-        if ( s != null )
-        {
-          // if there is a message to send, send it now
-          log("sending signal "+s.signal+" string '"+s.msg+"' to "+endpt.remoteName);
-          dataout.writeInt(s.signal);
-          dataout.writeUTF(s.msg );
-          dataout.flush();
-        }
-
-        if ( s != null && s.signal == NetLayer.SIGNAL_TERMINATE )
-        {
-          // if the message is a TERMINATE signal, then break the run loop as well
-          stop();
-        }
-
-      } // while !done
-
-      // close the output stream
-      dataout.close();
-    } catch (Exception e)
-    {
-      e.printStackTrace();
-      log(e.getClass().getName()+" "+e.getMessage());
-    }
-    log("sender thread exit for "+endpt.remoteName);
-
-  }
-  private static void log( String s)
-  {
-    System.out.println("Sender: "+s);
-
-    // "S" means Sender class
-    if ( ChatMain.isDebug )
-      ChatMain.instance.gui_log( "S", s );
-
-  }
-
+package net.bluetoothchat;
+
+/**
+ * Sender thread that send out signal and data to a bluetooth connection.
+ * <p>Description: Sender is a Runnable implementation that send signal and data (String)
+ *  to connected DataInputStream. Each EndPoint has it own sender thread.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+import java.io.*;
+import java.util.*;
+
+public class Sender implements Runnable
+{
+  // end point that this sender sends data to
+  public EndPoint endpt;
+
+  private boolean done = false;
+
+  // frames of a batch are collected here, so that a batch goes out in one write
+  private SendBuffer batch = new SendBuffer();
+
+  // number of flushes, packets and bytes written.
+  // packetCount / flushCount is the average batch size achieved
+  private int flushCount = 0;
+  private int packetCount = 0;
+  private long byteCount = 0;
+
+  // sequence number to fill into the frame encode() returned last,
+  // -1 if it is complete. see FrameCodec.encodeTemplate()
+  private int frameSeq = -1;
+
+  public Sender()
+  {
+  }
+
+  /**
+   * set 'done' flag to true, which will exit the while loop
+   */
+  public void stop()
+  {
+    done = true;
+    // wake up nextPacket()
+    if ( endpt != null )
+      endpt.msgs.signal();
+  }
+
+  public boolean isDone()
+  {
+    return done;
+  }
+
+  public void run()
+  {
+    try
+    {
+      DataOutputStream dataout = endpt.con.openDataOutputStream();
+      while( !done )
+      {
+
+        // get the next message to send.
+        // if there is none, wait up to 5 second for one
+        ChatPacket s = nextPacket(5000);
+
+        if ( s != null )
+        {
+          // if there is a message to send, send it now
+          send( dataout, s, endpt.btnet.batchMaxDelay );
+        }
+
+      } // while !done
+
+      // close the output stream
+      dataout.close();
+    } catch (Exception e)
+    {
+      e.printStackTrace();
+      log(e.getClass().getName()+" "+e.getMessage());
+
+      // the link is broken, unless we are closing it anyway
+      if ( !done )
+        endpt.btnet.dropEndPoint( endpt, "write failed" );
+    }
+    log("sender thread exit for "+endpt.remoteName);
+
+  }
+  /**
+   * write a packet to the remote EndPoint, without waiting for more packets
+   * to batch with it.
+   * @param dataout stream connected to the remote EndPoint
+   * @param s packet to send
+   */
+  public void send( DataOutputStream dataout, ChatPacket s ) throws IOException
+  {
+    send( dataout, s, 0 );
+  }
+
+  /**
+   * write a packet to the remote EndPoint. when batching is enabled
+   * (see NetLayer.setBatching()), the packets queued behind it, and those queued
+   * within maxDelay ms, are written with it in one write and one flush,
+   * up to the packet and byte limits.
+   * @param dataout stream connected to the remote EndPoint
+   * @param s packet to send
+   * @param maxDelay max time in ms to wait for more packets to fill the batch
+   */
+  public void send( DataOutputStream dataout, ChatPacket s, int maxDelay ) throws IOException
+  {
+    NetLayer btnet = endpt.btnet;
+    long end = System.currentTimeMillis() + maxDelay;
+    int packets = 0;
+    int bytes = 0;
+    boolean message = false;
+    // while the batch holds a single frame, it is written from the
+    // packet's own encoding without copying it
+    byte[] single = null;
+
+    batch.reset();
+    while ( s != null )
+    {
+      byte[] frame = encode( s );
+      // null if a retransmission is no longer needed
+      if ( frame != null )
+      {
+        if ( packets == 0 && frameSeq < 0 )
+        {
+          single = frame;
+        } else
+        {
+          if ( single != null )
+          {
+            batch.write( single, 0, single.length );
+            single = null;
+          }
+          // the shared frame of a chat message gets its sequence number
+          // for this EndPoint while it is copied
+          if ( frameSeq >= 0 )
+            FrameCodec.writeSeq( batch, frame, frameSeq );
+          else
+            batch.write( frame, 0, frame.length );
+        }
+        packets++;
+        bytes += frame.length;
+        if ( s.signal == NetLayer.SIGNAL_MESSAGE )
+          message = true;
+
+        if ( s.signal == NetLayer.SIGNAL_TERMINATE )
+        {
+          // if the message is a TERMINATE signal, then break the run loop as well
+          // nothing may be sent after it
+          stop();
+          break;
+        }
+        if ( packets >= btnet.batchMaxPackets || bytes >= btnet.batchMaxBytes )
+          break;
+      }
+
+      s = nextPacket( 0 );
+      if ( s == null && maxDelay > 0 )
+      {
+        long left = end - System.currentTimeMillis();
+        if ( left > 0 )
+          s = nextPacket( left );
+      }
+    }
+    if ( packets == 0 )
+      return;
+
+    if ( single != null )
+      dataout.write( single, 0, single.length );
+    else
+      batch.writeTo( dataout );
+    dataout.flush();
+
+    // see NetLayer.HeartbeatTask
+    endpt.lastSent = System.currentTimeMillis();
+    if ( message )
+      endpt.lastActivity = endpt.lastSent;
+
+    flushCount++;
+    packetCount += packets;
+    byteCount += bytes;
+    if ( packets > 1 )
+      log("flushed "+packets+" packets to "+endpt.remoteName+", "+getStats());
+  }
+
+  /**
+   * take the next packet that may be sent now, see PacketQueue for the order
+   * of the priority classes. a new chat message to a v2 node waits for the
+   * session to be set up, see NetLayer.sessionReceived(), and while the send
+   * window is full; the chat messages behind it wait as well, except
+   * retransmissions, which are put at the head of the chat lane. see
+   * ReliableChannel
+   * @param timeout max time in ms to wait, 0 to return at once
+   * @return the packet, or null if there is none within the timeout
+   */
+  ChatPacket nextPacket( long timeout )
+  {
+    PacketQueue q = endpt.msgs;
+    long end = System.currentTimeMillis() + timeout;
+    synchronized( q )
+    {
+      while ( !done )
+      {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        if ( isReliable() )
+        {
+          // messages whose ACK is overdue go first
+          Vector lost = endpt.channel.checkTimeouts( now );
+          for ( int i = lost != null ? lost.size() - 1 : -1; i >= 0; i-- )
+          {
+            // the link is closing, there is nothing more to send
+            if ( !q.putFirst( (ChatPacket) lost.elementAt( i ) ) )
+              return null;
+          }
+          next = endpt.channel.nextTimeout( now );
+        }
+
+        ChatPacket s = q.peek();
+        if ( s != null && !( isReliable( s ) && mustWait( s ) ) )
+          return q.poll();
+        if ( s != null )
+        {
+          // the chat lane is held up, the other lanes may go on
+          s = q.poll( PacketQueue.CLASS_CHAT );
+          if ( s != null )
+            return s;
+        }
+
+        long left = end - now;
+        if ( left <= 0 )
+          return null;
+        q.await( Math.min( left, next ) );
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if a chat message must wait for the SESSION frame of the
+   * remote EndPoint, or for room in the send window
+   */
+  private boolean mustWait( ChatPacket s )
+  {
+    return !endpt.sessionReady || endpt.channel.mustWait( s );
+  }
+
+  /**
+   * @return true if chat messages to the remote EndPoint are acknowledged
+   */
+  private boolean isReliable()
+  {
+    return endpt.remoteVersion >= 2 && endpt.btnet.reliable;
+  }
+
+  private boolean isReliable( ChatPacket s )
+  {
+    return s.signal == NetLayer.SIGNAL_MESSAGE && isReliable();
+  }
+
+  /**
+   * encode one packet in the wire format the remote EndPoint understands.
+   * a broadcast packet is encoded only once for all EndPoints using the same
+   * format, see FrameCodec.encode(). so is a chat message to a v2 node, its
+   * sequence number for this EndPoint is left in frameSeq.
+   * @return the frame, or null if the packet must not be sent
+   */
+  private byte[] encode( ChatPacket s ) throws IOException
+  {
+    log("sending signal "+s.signal+" string '"+s.msg+"' to "+endpt.remoteName);
+    boolean crc = endpt.btnet.useChecksum;
+    frameSeq = -1;
+    if ( s.signal == NetLayer.SIGNAL_ACK )
+    {
+      // the ACK tells what has arrived until now, not when it was queued
+      s.data = endpt.ackBody();
+      return FrameCodec.encode( s, 2, crc );
+    }
+    if ( s.signal == NetLayer.SIGNAL_DATA )
+    {
+      // numbered within its channel, see ChannelMux
+      return FrameCodec.encodeSeq( s, endpt.mux.nextSeq( s.channel ), crc );
+    }
+    if ( isReliable( s ) )
+    {
+      byte[] frame = FrameCodec.encodeTemplate( s, crc );
+      frameSeq = endpt.channel.prepare( s, frame.length );
+      return frameSeq >= 0 ? frame : null;
+    }
+    // VERSION is always a bare v1 signal, so that v1 nodes can skip it
+    int version = s.signal == NetLayer.SIGNAL_VERSION ? 1 : endpt.remoteVersion;
+    return FrameCodec.encode( s, version, crc );
+  }
+
+  public int getFlushCount()
+  {
+    return flushCount;
+  }
+
+  public int getPacketCount()
+  {
+    return packetCount;
+  }
+
+  public long getByteCount()
+  {
+    return byteCount;
+  }
+
+  /**
+   * @return counters as text, including the average batch size
+   */
+  public String getStats()
+  {
+    int avg = flushCount > 0 ? packetCount * 100 / flushCount : 0;
+    return "flushes=" + flushCount + " packets=" + packetCount + " bytes=" + byteCount
+        + " avgBatch=" + (avg / 100) + "." + (avg % 100 < 10 ? "0" : "") + (avg % 100);
+  }
+
+  private static void log( String s)
+  {
+    if ( ChatMain.isLogging )
+      System.out.println("Sender: "+s);
+
+    // "S" means Sender class
+    if ( ChatMain.isDebug )
+      ChatMain.instance.gui_log( "S", s );
+
+  }
+
+  /**
+   * ByteArrayOutputStream that can write its content without copying it
+   */
+  static class SendBuffer extends ByteArrayOutputStream
+  {
+    public void writeTo( OutputStream out ) throws IOException
+    {
+      out.write( buf, 0, count );
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,950 @@
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Benchmarks of the chat engine over LoopbackTransport.
+ * <p>Description: Runs a hub NetLayer with many simulated peers in one VM and
+ * prints the cost of the different execution modes. This is a plain
+ * main() program for a desktop or server VM, it is not part of the MIDlet.</p>
+ * <p>Usage: SimBench threads [peers...] [TaskRunner class name]<br>
+ * compares one thread per reader/sender, the PollingEngine and, if a class name
+ * is given (e.g. a TaskRunner that starts virtual threads), that TaskRunner.
+ * For each mode it reports the number of live threads and heap used by the
+ * peers, the time to accept and handshake all peers, and the time per packet
+ * to broadcast a burst of messages. Thread stacks are native memory and do not
+ * show in the heap figure, so the thread count is the better indication of
+ * memory cost; the broadcast time per packet includes the thread switching cost
+ * of each mode.</p>
+ * <p>Usage: SimBench broadcast [v2] [peers...]<br>
+ * compares NetLayer.sendString(), which shares one encoded packet between all
+ * EndPoints, with queueing a separate packet on each EndPoint. It reports the
+ * time and the heap allocated per broadcast. The allocation is the growth of
+ * the used heap without a GC in between, so it is only an estimate. The peers
+ * are raw v1 connections that never read; with v2 they are NetLayers set to
+ * checksums, see NetLayer.setProtocol(), so the messages go as acknowledged v2
+ * frames with checksums. The time then includes the acknowledgements, and the
+ * heap the work of the peers, which is the same in both modes.</p>
+ * <p>Usage: SimBench gossip [nodes] [fanout]<br>
+ * compares flooding, see NetLayer.setRelay(), with gossip, see
+ * NetLayer.setGossip(), on a mesh of nodes (30 by default). Each node is in
+ * range of its two neighbours on a ring and of one more picked at random, the
+ * same for both modes. MESSAGES messages are sent, each by a node picked at
+ * random. For each mode it reports the share of the nodes the messages reached,
+ * the 50th, 90th and 99th percentile and the maximum of the time it took, and
+ * the bytes written on all links until the last delivery per message
+ * delivered. The bytes include acknowledgements, heartbeats and digests.</p>
+ * <p>Usage: SimBench addresses [port]<br>
+ * checks that a node is known by the same address whichever of two nodes
+ * connects, over LoopbackTransport and over SocketTransport on port and
+ * port + 1 (7000 by default). The address is what the duplicate links,
+ * session resumption, sendTo() and the relay rely on.</p>
+ * <p>Usage: SimBench relink [messages]<br>
+ * sends messages (100 by default) from one node to another, whose subscriber
+ * holds them back unacknowledged, then lets the other node open a second link
+ * that replaces the first, see NetLayer.addEndPoint(). It checks that every
+ * message arrives once and in order over the link kept.</p>
+ * <p>Usage: SimBench files<br>
+ * offers files with unsafe names, e.g. an escaped ../, from one node to
+ * another over LoopbackTransport, and checks that the receiver refuses them or
+ * stores them under a name of its own, and that FileConnectionStore escapes
+ * the names it puts into a file URL.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class SimBench
+{
+  // size of each simulated link buffer. kept small so 10k peers fit in memory
+  final static int BUFFER_SIZE = 1024;
+  // number of messages broadcast by the hub in each run
+  final static int MESSAGES = 20;
+  // give up waiting after this many ms
+  final static int TIMEOUT = 120000;
+  // time between digests of the gossip benchmark, and the time to wait
+  // for the last messages to be pulled
+  final static int DIGEST_PERIOD = 1000;
+  final static int SETTLE_TIME = 10000;
+
+  public static void main( String[] args ) throws Exception
+  {
+    // the console would dominate the measurement
+    ChatMain.isLogging = false;
+
+    String bench = args.length > 0 ? args[0] : "threads";
+    if ( bench.equals( "threads" ) )
+    {
+      benchThreads( args );
+    } else if ( bench.equals( "broadcast" ) )
+    {
+      benchBroadcast( args );
+    } else if ( bench.equals( "gossip" ) )
+    {
+      benchGossip( args );
+    } else if ( bench.equals( "addresses" ) )
+    {
+      benchAddresses( args );
+    } else if ( bench.equals( "files" ) )
+    {
+      benchFiles();
+    } else if ( bench.equals( "relink" ) )
+    {
+      benchRelink( args );
+    } else
+    {
+      System.out.println("unknown benchmark " + bench);
+    }
+    System.exit( 0 );
+  }
+
+  /**
+   * compare execution modes at 1k and 10k peers, or at the given peer counts
+   */
+  static void benchThreads( String[] args ) throws Exception
+  {
+    int[] sizes = { 1000, 10000 };
+    String runnerClass = null;
+    if ( args.length > 1 )
+    {
+      int n = 0;
+      int[] given = new int[args.length - 1];
+      for ( int i=1; i < args.length; i++ )
+      {
+        try {
+          given[n] = Integer.parseInt( args[i] );
+          n++;
+        }
+        catch (NumberFormatException ex) {
+          runnerClass = args[i];
+        }
+      }
+      if ( n > 0 )
+      {
+        sizes = new int[n];
+        System.arraycopy( given, 0, sizes, 0, n );
+      }
+    }
+
+    System.out.println("mode peers threads heapKB bytes/peer setup(ms) us/packet");
+    for ( int i=0; i < sizes.length; i++ )
+    {
+      runHub( "thread", sizes[i], null, null );
+      runHub( "engine", sizes[i], null, new PollingEngine( 4, PollingEngine.DEFAULT_POLL_INTERVAL ) );
+      if ( runnerClass != null )
+      {
+        TaskRunner runner = (TaskRunner) Class.forName( runnerClass ).newInstance();
+        runHub( runnerClass, sizes[i], runner, null );
+      }
+    }
+  }
+
+  /**
+   * compare shared and per EndPoint broadcast at 1 to 1000 peers,
+   * or at the given peer counts
+   */
+  static void benchBroadcast( String[] args ) throws Exception
+  {
+    boolean v2 = args.length > 1 && args[1].equals( "v2" );
+    int first = v2 ? 2 : 1;
+    int[] sizes = v2 ? new int[] { 1, 10, 100 } : new int[] { 1, 10, 100, 1000 };
+    if ( args.length > first )
+    {
+      sizes = new int[args.length - first];
+      for ( int i=first; i < args.length; i++ )
+      {
+        sizes[i - first] = Integer.parseInt( args[i] );
+      }
+    }
+
+    System.out.println("mode peers us/broadcast bytes/broadcast");
+    for ( int i=0; i < sizes.length; i++ )
+    {
+      if ( v2 )
+        runBroadcastV2( sizes[i] );
+      else
+        runBroadcast( sizes[i] );
+    }
+  }
+
+  /**
+   * connect n raw peers to a hub NetLayer, then broadcast MESSAGES messages
+   * with each method. the peers never read, so the link buffers must hold
+   * all messages.
+   */
+  static void runBroadcast( int n )
+  {
+    Counter counter = new Counter();
+    NetLayer hub = new NetLayer();
+    hub.setPollingEngine( new PollingEngine( 4, PollingEngine.DEFAULT_POLL_INTERVAL ) );
+    StreamConnection[] peers = new StreamConnection[n];
+    try
+    {
+      LoopbackTransport hubTransport = new LoopbackTransport( "hub", BUFFER_SIZE * 4 );
+      hub.init( "hub", counter, hubTransport );
+      for ( int i=0; i < n; i++ )
+      {
+        LoopbackTransport peer = new LoopbackTransport( "peer" + i, BUFFER_SIZE * 4 );
+        peers[i] = connect( peer, hubTransport.getLocalAddress() );
+        DataOutputStream out = peers[i].openDataOutputStream();
+        out.writeInt( NetLayer.SIGNAL_HANDSHAKE );
+        out.writeUTF( "peer" + i );
+        out.flush();
+      }
+      counter.await( n );
+      awaitDrained( hub );
+
+      compareBroadcasts( hub, n );
+    } catch (Throwable e)
+    {
+      System.out.println( "broadcast " + n + " failed: " + e );
+    }
+    finally
+    {
+      hub.disconnect();
+      for ( int i=0; i < n; i++ )
+      {
+        try {
+          if ( peers[i] != null )
+            peers[i].close();
+        }
+        catch (IOException ex) {
+        }
+      }
+      pause( 500 );
+    }
+  }
+
+  /**
+   * connect a hub NetLayer to n NetLayers, then broadcast MESSAGES messages
+   * with each method as acknowledged v2 frames with checksums
+   */
+  static void runBroadcastV2( int n )
+  {
+    Counter counter = new Counter();
+    NetLayer hub = new NetLayer();
+    NetLayer[] peers = new NetLayer[n];
+    try
+    {
+      LoopbackTransport hubTransport = new LoopbackTransport( "hub", BUFFER_SIZE * 4 );
+      hub.setProtocol( 2, true, FrameCodec.DEFAULT_MAX_FRAME );
+      hub.init( "hub", counter, hubTransport );
+      for ( int i=0; i < n; i++ )
+      {
+        LoopbackTransport peer = new LoopbackTransport( "peer" + i, BUFFER_SIZE * 4 );
+        hubTransport.addInRange( peer );
+        peers[i] = new NetLayer();
+        peers[i].setProtocol( 2, true, FrameCodec.DEFAULT_MAX_FRAME );
+        peers[i].init( "peer" + i, new Counter(), peer );
+      }
+      pause( 200 );
+      hub.query();
+      long end = System.currentTimeMillis() + TIMEOUT;
+      for ( int ready = 0; ready < n; )
+      {
+        if ( System.currentTimeMillis() > end )
+          throw new IOException("timeout waiting for " + n + " sessions, got " + ready);
+        pause( 50 );
+        ready = 0;
+        EndPoint[] snapshot = hub.endPoints.snapshot();
+        for ( int i=0; i < snapshot.length; i++ )
+        {
+          if ( snapshot[i].remoteVersion >= 2 && snapshot[i].sessionReady )
+            ready++;
+        }
+      }
+
+      compareBroadcasts( hub, n );
+    } catch (Throwable e)
+    {
+      System.out.println( "broadcast v2 " + n + " failed: " + e );
+    }
+    finally
+    {
+      hub.disconnect();
+      for ( int i=0; i < n; i++ )
+      {
+        if ( peers[i] != null )
+          peers[i].disconnect();
+      }
+      pause( 1000 );
+    }
+  }
+
+  /**
+   * broadcast MESSAGES messages from the hub with NetLayer.sendString(),
+   * then with a packet per EndPoint, and print the time and heap used
+   */
+  static void compareBroadcasts( NetLayer hub, int n ) throws IOException
+  {
+    for ( int shared=1; shared >= 0; shared-- )
+    {
+      Runtime rt = Runtime.getRuntime();
+      usedMemory();
+      long mem0 = rt.totalMemory() - rt.freeMemory();
+      long t0 = System.currentTimeMillis();
+      for ( int m=0; m < MESSAGES; m++ )
+      {
+        String s = "broadcast message number " + m;
+        if ( shared == 1 )
+        {
+          hub.sendString( s );
+        } else
+        {
+          EndPoint[] snapshot = hub.endPoints.snapshot();
+          for ( int i=0; i < snapshot.length; i++ )
+          {
+            EndPoint endpt = snapshot[i];
+            endpt.putString( NetLayer.SIGNAL_MESSAGE, s );
+          }
+        }
+      }
+      awaitDrained( hub );
+      long time = System.currentTimeMillis() - t0;
+      long mem1 = rt.totalMemory() - rt.freeMemory();
+
+      System.out.println( (shared == 1 ? "shared " : "per-peer ") + n + " "
+                          + time * 1000 / MESSAGES + " " + (mem1 - mem0) / MESSAGES );
+    }
+  }
+
+  /**
+   * compare flooding and gossip on a mesh of 30 nodes, or of the given size
+   */
+  static void benchGossip( String[] args ) throws Exception
+  {
+    int n = args.length > 1 ? Integer.parseInt( args[1] ) : 30;
+    int fanout = args.length > 2 ? Integer.parseInt( args[2] ) : NetLayer.DEFAULT_FANOUT;
+
+    System.out.println("mode nodes links delivered% p50 p90 p99 max(ms) bytes/delivery");
+    runMesh( "flood", n, 0 );
+    runMesh( "gossip", n, fanout );
+  }
+
+  /**
+   * build a mesh of n NetLayers, send MESSAGES messages from random nodes
+   * and measure how they spread
+   * @param fanout 0 to flood
+   */
+  static void runMesh( String mode, int n, int fanout )
+  {
+    // the same mesh and senders for every mode
+    Random random = new Random( 1 );
+    Deliveries deliveries = new Deliveries();
+    NetLayer[] nets = new NetLayer[n];
+    try
+    {
+      LoopbackTransport[] transports = new LoopbackTransport[n];
+      for ( int i=0; i < n; i++ )
+      {
+        transports[i] = new LoopbackTransport( "node" + i, BUFFER_SIZE * 8 );
+      }
+      boolean[][] linked = new boolean[n][n];
+      int links = 0;
+      for ( int i=0; i < n; i++ )
+      {
+        int[] peers = { ( i + 1 ) % n, ( random.nextInt() & 0x7FFFFFFF ) % n };
+        for ( int k=0; k < peers.length; k++ )
+        {
+          int j = peers[k];
+          if ( j == i || linked[i][j] )
+            continue;
+          linked[i][j] = linked[j][i] = true;
+          transports[i].addInRange( transports[j] );
+          links++;
+        }
+      }
+
+      for ( int i=0; i < n; i++ )
+      {
+        nets[i] = new NetLayer();
+        // any node is at most n links away
+        nets[i].setRelay( n, NetLayer.DEFAULT_SEEN_MAX, NetLayer.DEFAULT_SEEN_TTL );
+        if ( fanout > 0 )
+          nets[i].setGossip( fanout, n, DIGEST_PERIOD );
+        nets[i].init( "node" + i, deliveries, transports[i] );
+      }
+      // one at a time, so two nodes do not connect to each other at once
+      for ( int i=0; i < n; i++ )
+      {
+        nets[i].query();
+        pause( 200 );
+      }
+      long end = System.currentTimeMillis() + TIMEOUT;
+      for ( int up = 0; up < 2 * links; )
+      {
+        if ( System.currentTimeMillis() > end )
+          throw new IOException("timeout waiting for " + links + " links, got " + up / 2);
+        pause( 100 );
+        up = 0;
+        for ( int i=0; i < n; i++ )
+        {
+          up += nets[i].endPoints.size();
+        }
+      }
+
+      deliveries.bytes0 = LoopbackConnection.getBytesWritten();
+      for ( int m=0; m < MESSAGES; m++ )
+      {
+        int origin = ( random.nextInt() & 0x7FFFFFFF ) % n;
+        nets[origin].sendString( System.currentTimeMillis() + " message " + m );
+        pause( 100 );
+      }
+      int expected = MESSAGES * ( n - 1 );
+      long settle = System.currentTimeMillis() + SETTLE_TIME;
+      while ( deliveries.count() < expected && System.currentTimeMillis() < settle )
+      {
+        pause( 50 );
+      }
+      deliveries.report( mode, n, links, expected );
+    } catch (Throwable e)
+    {
+      System.out.println( mode + " " + n + " failed: " + e );
+    }
+    finally
+    {
+      for ( int i=0; i < n; i++ )
+      {
+        if ( nets[i] != null )
+          nets[i].disconnect();
+      }
+      pause( 6000 );
+    }
+  }
+
+  /**
+   * connect two nodes both ways, over loopback and over sockets
+   */
+  static void benchAddresses( String[] args )
+  {
+    int port = args.length > 1 ? Integer.parseInt( args[1] ) : 7000;
+    boolean ok = true;
+    for ( int dialer = 0; dialer < 2; dialer++ )
+    {
+      ok &= runAddresses( "loopback", dialer, new Transport[] {
+          new LoopbackTransport( "nodeA" ), new LoopbackTransport( "nodeB" ) } );
+      ok &= runAddresses( "socket", dialer, new Transport[] {
+          new SocketTransport( port, port, port + 1 ),
+          new SocketTransport( port + 1, port, port + 1 ) } );
+    }
+    System.out.println( ok ? "addresses ok" : "addresses FAILED" );
+  }
+
+  /**
+   * let one of two nodes connect to the other, and compare the address
+   * each node knows the other by with the address the other listens on
+   */
+  static boolean runAddresses( String mode, int dialer, Transport[] transports )
+  {
+    NetLayer[] nets = new NetLayer[2];
+    boolean ok = false;
+    try
+    {
+      Counter counter = new Counter();
+      for ( int i=0; i < 2; i++ )
+      {
+        nets[i] = new NetLayer();
+        nets[i].init( "node" + i, counter, transports[i] );
+      }
+      pause( 200 );
+      nets[dialer].query();
+      long end = System.currentTimeMillis() + TIMEOUT;
+      while ( nets[0].endPoints.size() < 1 || nets[1].endPoints.size() < 1 )
+      {
+        if ( System.currentTimeMillis() > end )
+          throw new IOException("timeout waiting for the link");
+        pause( 50 );
+      }
+      ok = true;
+      for ( int i=0; i < 2; i++ )
+      {
+        String key = nets[i].endPoints.snapshot()[0].remoteAddress;
+        String expected = transports[1 - i].getLocalAddress();
+        System.out.println( mode + " node" + dialer + " connects: node" + i + " knows "
+                            + key + ", want " + expected );
+        ok &= key.equals( expected );
+      }
+    } catch (Throwable e)
+    {
+      System.out.println( mode + " failed: " + e );
+    }
+    finally
+    {
+      for ( int i=0; i < 2; i++ )
+      {
+        if ( nets[i] != null )
+          nets[i].disconnect();
+      }
+      pause( 1000 );
+    }
+    return ok;
+  }
+
+  /**
+   * replace a link while messages on it are not acknowledged
+   */
+  static void benchRelink( String[] args )
+  {
+    int n = args.length > 1 ? Integer.parseInt( args[1] ) : 100;
+    boolean ok = false;
+    NetLayer[] nets = new NetLayer[2];
+    try
+    {
+      // the receiver has the smaller address, so the link it opens is kept
+      LoopbackTransport receiver = new LoopbackTransport( "receiver" );
+      LoopbackTransport sender = new LoopbackTransport( "sender" );
+      nets[0] = new NetLayer();
+      nets[0].init( "sender", new Counter(), sender );
+      nets[1] = new NetLayer();
+      nets[1].init( "receiver", new Counter(), receiver );
+      Collector collector = new Collector();
+      nets[1].getPublisher().subscribe( collector );
+      pause( 200 );
+      nets[0].query();
+      long end = System.currentTimeMillis() + TIMEOUT;
+      while ( nets[0].endPoints.size() < 1 || !nets[0].endPoints.snapshot()[0].sessionReady )
+      {
+        if ( System.currentTimeMillis() > end )
+          throw new IOException("timeout waiting for the link");
+        pause( 50 );
+      }
+
+      EndPoint old = nets[0].endPoints.snapshot()[0];
+      for ( int i=0; i < n; i++ )
+      {
+        nets[0].sendString( "m" + i );
+      }
+      pause( 500 );
+      System.out.println( "before relink: " + old.channel.getInFlight() + " unacknowledged, "
+                          + old.getQueueDepth() + " queued" );
+      nets[1].connectPeer( sender.getLocalAddress(), "sender", "loopback://" + sender.getLocalAddress() );
+      pause( 1000 );
+      boolean replaced = nets[0].endPoints.snapshot()[0] != old;
+
+      collector.subscription.request( Long.MAX_VALUE );
+      end = System.currentTimeMillis() + TIMEOUT;
+      while ( collector.size() < n && System.currentTimeMillis() < end )
+      {
+        pause( 50 );
+      }
+      pause( 500 );
+      ok = replaced && collector.size() == n;
+      for ( int i=0; i < collector.size(); i++ )
+      {
+        ok &= collector.messages.elementAt( i ).equals( "m" + i );
+      }
+      System.out.println( "replaced " + replaced + ", got " + collector.size() + " of " + n );
+    } catch (Throwable e)
+    {
+      System.out.println( "relink failed: " + e );
+    }
+    finally
+    {
+      for ( int i=0; i < 2; i++ )
+      {
+        if ( nets[i] != null )
+          nets[i].disconnect();
+      }
+    }
+    System.out.println( ok ? "relink ok" : "relink FAILED" );
+  }
+
+  /**
+   * offer files with unsafe names, see NetLayer.fileOffered()
+   */
+  static void benchFiles() throws IOException
+  {
+    // offered name, and the name it must be stored under, or null if it
+    // must be refused
+    String[][] cases = {
+        { "photo.jpg", "photo.jpg" },
+        { "photo.jpg", "photo(1).jpg" },
+        { "/E:/Images/../MIDlet.jad", "MIDlet.jad" },
+        { "..", null },
+        { "%2e%2e%2fMIDlet.jad", null },
+        { "..%5cMIDlet.jad", null },
+        { "a#b.txt", null },
+        { "a?b.txt", null },
+        { "my photo.jpg", "my photo.jpg" } };
+    boolean ok = true;
+    NetLayer[] nets = new NetLayer[2];
+    MemoryStore[] stores = new MemoryStore[2];
+    try
+    {
+      Counter counter = new Counter();
+      for ( int i=0; i < 2; i++ )
+      {
+        nets[i] = new NetLayer();
+        stores[i] = new MemoryStore();
+        nets[i].setTransferStore( stores[i] );
+        nets[i].init( "node" + i, counter, new LoopbackTransport( "files" + i ) );
+      }
+      pause( 200 );
+      nets[0].query();
+      long end = System.currentTimeMillis() + TIMEOUT;
+      while ( nets[0].endPoints.size() < 1 || nets[1].endPoints.size() < 1
+              || nets[0].endPoints.snapshot()[0].remoteVersion < 2 )
+      {
+        if ( System.currentTimeMillis() > end )
+          throw new IOException("timeout waiting for the link");
+        pause( 50 );
+      }
+      String address = nets[0].endPoints.snapshot()[0].remoteAddress;
+      for ( int i=0; i < cases.length; i++ )
+      {
+        stores[0].files.put( cases[i][0], new byte[] { (byte) i } );
+        FileTransfer t = nets[0].sendFile( address, cases[i][0], 1 );
+        end = System.currentTimeMillis() + TIMEOUT;
+        while ( t.getState() != FileTransfer.STATE_DONE && t.getState() != FileTransfer.STATE_FAILED
+                && System.currentTimeMillis() < end )
+        {
+          pause( 20 );
+        }
+        String stored = null;
+        FileTransfer[] received = nets[1].getTransfers();
+        for ( int j=0; j < received.length; j++ )
+        {
+          if ( received[j].id == t.id && received[j].getState() == FileTransfer.STATE_DONE )
+            stored = received[j].getStoredName();
+        }
+        boolean good = cases[i][1] == null ? stored == null && t.getState() == FileTransfer.STATE_FAILED
+                                           : cases[i][1].equals( stored );
+        System.out.println( "offer " + cases[i][0] + ": stored as " + stored + ", want " + cases[i][1] );
+        ok &= good;
+      }
+    } catch (Throwable e)
+    {
+      System.out.println( "files failed: " + e );
+      ok = false;
+    }
+    finally
+    {
+      for ( int i=0; i < 2; i++ )
+      {
+        if ( nets[i] != null )
+          nets[i].disconnect();
+      }
+    }
+
+    String[][] urls = {
+        { "my photo#1.jpg", "my%20photo%231.jpg" },
+        { "%2e%2e%2f", "%252e%252e%252f" },
+        { "caf\u00e9.txt", "caf%C3%A9.txt" } };
+    for ( int i=0; i < urls.length; i++ )
+    {
+      String url = FileConnectionStore.escape( urls[i][0] );
+      System.out.println( "escape " + urls[i][0] + ": " + url + ", want " + urls[i][1] );
+      ok &= url.equals( urls[i][1] );
+    }
+    System.out.println( ok ? "files ok" : "files FAILED" );
+  }
+
+  /**
+   * connect n raw peers to a hub NetLayer, let each peer handshake,
+   * then broadcast MESSAGES messages from the hub.
+   */
+  static void runHub( String mode, int n, TaskRunner runner, PollingEngine engine )
+  {
+    Counter counter = new Counter();
+    NetLayer hub = new NetLayer();
+    hub.setTaskRunner( runner );
+    hub.setPollingEngine( engine );
+    StreamConnection[] peers = new StreamConnection[n];
+    try
+    {
+      long mem0 = usedMemory();
+      int threads0 = Thread.activeCount();
+
+      LoopbackTransport hubTransport = new LoopbackTransport( "hub", BUFFER_SIZE );
+      hub.init( "hub", counter, hubTransport );
+
+      long t0 = System.currentTimeMillis();
+      for ( int i=0; i < n; i++ )
+      {
+        // every peer needs its own address, the hub ignores a second
+        // connection from the same address
+        LoopbackTransport peer = new LoopbackTransport( "peer" + i, BUFFER_SIZE );
+        peers[i] = connect( peer, hubTransport.getLocalAddress() );
+        DataOutputStream out = peers[i].openDataOutputStream();
+        out.writeInt( NetLayer.SIGNAL_HANDSHAKE );
+        out.writeUTF( "peer" + i );
+        out.flush();
+      }
+      counter.await( n );
+      long setup = System.currentTimeMillis() - t0;
+
+      long mem1 = usedMemory();
+      int threads1 = Thread.activeCount();
+
+      t0 = System.currentTimeMillis();
+      for ( int m=0; m < MESSAGES; m++ )
+      {
+        hub.sendString( "message " + m );
+      }
+      awaitDrained( hub );
+      long burst = System.currentTimeMillis() - t0;
+
+      System.out.println( mode + " " + n + " " + (threads1 - threads0) + " "
+                          + (mem1 - mem0) / 1024 + " " + (mem1 - mem0) / n + " "
+                          + setup + " " + (burst * 1000 / ((long) n * MESSAGES)) );
+    } catch (Throwable e)
+    {
+      // e.g. OutOfMemoryError when the VM cannot start 2 threads per peer
+      System.out.println( mode + " " + n + " failed: " + e );
+    }
+    finally
+    {
+      hub.disconnect();
+      for ( int i=0; i < n; i++ )
+      {
+        try {
+          if ( peers[i] != null )
+            peers[i].close();
+        }
+        catch (IOException ex) {
+        }
+      }
+      // idle senders only notice the stop after their 5 second wait.
+      // let them exit so they do not count in the next run
+      pause( 6000 );
+    }
+  }
+
+  /**
+   * connect to a hub, retrying until its service is listening
+   */
+  static StreamConnection connect( Transport t, String address ) throws IOException
+  {
+    for ( int retry=0; ; retry++ )
+    {
+      try {
+        return t.connect( LoopbackTransport.SCHEME + address );
+      }
+      catch (ConnectionNotFoundException ex) {
+        if ( retry > 100 )
+          throw ex;
+        pause( 10 );
+      }
+    }
+  }
+
+  /**
+   * wait until every EndPoint of a NetLayer has sent all pending packets
+   */
+  static void awaitDrained( NetLayer net ) throws IOException
+  {
+    long end = System.currentTimeMillis() + TIMEOUT;
+    EndPoint[] snapshot = net.endPoints.snapshot();
+    for ( int i=0; i < snapshot.length; i++ )
+    {
+      EndPoint endpt = snapshot[i];
+      // acknowledged messages are done when the ACK is back
+      while ( endpt.peekString() || endpt.channel.getInFlight() > 0 )
+      {
+        if ( System.currentTimeMillis() > end )
+          throw new IOException("timeout waiting for senders");
+        pause( 1 );
+      }
+    }
+  }
+
+  static long usedMemory()
+  {
+    Runtime rt = Runtime.getRuntime();
+    for ( int i=0; i < 3; i++ )
+    {
+      System.gc();
+      pause( 50 );
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  static void pause( long ms )
+  {
+    try {
+      Thread.sleep( ms );
+    }
+    catch (InterruptedException ex) {
+    }
+  }
+
+  /**
+   * BTListener of all mesh nodes, that records the time each message took
+   * to reach a node. the message starts with the time it was sent
+   */
+  static class Deliveries implements BTListener
+  {
+    long[] latencies = new long[16];
+    int n = 0;
+    long bytes0;
+    long bytes;
+
+    public synchronized void handleAction( String action, Object param1, Object param2 )
+    {
+      if ( !action.equals( BTListener.EVENT_RECEIVED ) )
+        return;
+      String s = ((ChatPacket) param2).getMsg();
+      long sent = Long.parseLong( s.substring( 0, s.indexOf( ' ' ) ) );
+      if ( n == latencies.length )
+      {
+        long[] a = new long[n * 2];
+        System.arraycopy( latencies, 0, a, 0, n );
+        latencies = a;
+      }
+      latencies[n++] = System.currentTimeMillis() - sent;
+      bytes = LoopbackConnection.getBytesWritten();
+    }
+
+    synchronized int count()
+    {
+      return n;
+    }
+
+    synchronized void report( String mode, int nodes, int links, int expected )
+    {
+      // insertion sort, n is small
+      for ( int i=1; i < n; i++ )
+      {
+        long v = latencies[i];
+        int j = i - 1;
+        for ( ; j >= 0 && latencies[j] > v; j-- )
+        {
+          latencies[j + 1] = latencies[j];
+        }
+        latencies[j + 1] = v;
+      }
+      System.out.println( mode + " " + nodes + " " + links + " " + n * 100 / expected + " "
+                          + percentile( 50 ) + " " + percentile( 90 ) + " " + percentile( 99 ) + " "
+                          + ( n > 0 ? latencies[n - 1] : 0 ) + " "
+                          + ( n > 0 ? ( bytes - bytes0 ) / n : 0 ) );
+    }
+
+    private long percentile( int p )
+    {
+      return n > 0 ? latencies[( n - 1 ) * p / 100] : 0;
+    }
+  }
+
+  /**
+   * Subscriber that keeps the messages it gets. it requests none by
+   * itself, so the messages wait unacknowledged until the test requests them
+   */
+  static class Collector implements Flow.Subscriber
+  {
+    Flow.Subscription subscription;
+    Vector messages = new Vector();
+
+    public void onSubscribe( Flow.Subscription s )
+    {
+      subscription = s;
+    }
+
+    public synchronized void onNext( ChatEvent item )
+    {
+      messages.addElement( ((ChatPacket) item.param2).getMsg() );
+    }
+
+    public void onError( Throwable t )
+    {
+      System.out.println( "subscriber error: " + t );
+    }
+
+    public void onComplete()
+    {
+    }
+
+    synchronized int size()
+    {
+      return messages.size();
+    }
+  }
+
+  /**
+   * TransferStore that keeps the files in memory
+   */
+  static class MemoryStore implements TransferStore
+  {
+    // map name to byte[]
+    Hashtable files = new Hashtable();
+
+    public synchronized InputStream openRead( String name, long offset ) throws IOException
+    {
+      byte[] b = (byte[]) files.get( name );
+      if ( b == null || b.length < offset )
+        throw new IOException( "no " + name );
+      return new ByteArrayInputStream( b, (int) offset, b.length - (int) offset );
+    }
+
+    public synchronized String create( String name ) throws IOException
+    {
+      String s = name;
+      int dot = name.lastIndexOf( '.' );
+      if ( dot <= 0 )
+        dot = name.length();
+      for ( int i=1; files.get( s ) != null; i++ )
+      {
+        s = name.substring( 0, dot ) + "(" + i + ")" + name.substring( dot );
+      }
+      files.put( s, new byte[0] );
+      return s;
+    }
+
+    public synchronized OutputStream openWrite( final String name, long offset ) throws IOException
+    {
+      byte[] old = (byte[]) files.get( name );
+      if ( old == null || old.length < offset )
+        throw new IOException( "no " + name );
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.write( old, 0, (int) offset );
+      return new OutputStream()
+      {
+        public void write( int b )
+        {
+          out.write( b );
+        }
+
+        public void close()
+        {
+          synchronized( MemoryStore.this )
+          {
+            files.put( name, out.toByteArray() );
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * BTListener that counts JOIN events
+   */
+  static class Counter implements BTListener
+  {
+    int joins = 0;
+
+    public synchronized void handleAction( String action, Object param1, Object param2 )
+    {
+      if ( action.equals( BTListener.EVENT_JOIN ) )
+      {
+        joins++;
+        notifyAll();
+      }
+    }
+
+    synchronized void await( int n ) throws IOException
+    {
+      long end = System.currentTimeMillis() + TIMEOUT;
+      while ( joins < n )
+      {
+        long left = end - System.currentTimeMillis();
+        if ( left <= 0 )
+          throw new IOException("timeout waiting for " + n + " joins, got " + joins);
+        try {
+          wait( left );
+        }
+        catch (InterruptedException ex) {
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import java.io.*;
+
+/**
+ * StreamConnection handed out by SocketTransport.
+ * <p>Description: The source port of an accepted socket is a random one, not
+ * the port the remote node listens on, so it does not identify the node. The
+ * connecting side therefore writes the address it listens on as the first bytes
+ * of the connection, and the accepting side reads it when NetLayer first asks
+ * for it, on the thread that sets the connection up rather than the one that
+ * accepts, so that a node that connects and then sends nothing holds up no other.
+ * The host of the address must be the one the connection comes from, only the
+ * port is taken on trust. A SocketLink keeps that address, and the streams opened
+ * to write or read it, since a connection hands out its streams only once.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class SocketLink implements StreamConnection
+{
+  // most characters of an advertised address
+  public final static int MAX_ADDRESS = 64;
+
+  // address the remote node listens on, see SocketTransport.getLocalAddress()
+  String remoteAddress;
+  // most ms an accepted connection has to tell its address
+  long timeout;
+
+  SocketConnection socket;
+  InputStream in;
+  OutputStream out;
+
+  private SocketLink( SocketConnection socket, String remoteAddress ) throws IOException
+  {
+    this.socket = socket;
+    this.remoteAddress = remoteAddress;
+    in = socket.openInputStream();
+    out = socket.openOutputStream();
+  }
+
+  /**
+   * a connection we opened. tells the remote node our address
+   * @param remoteAddress the address we connected to
+   * @param localAddress the address we listen on
+   */
+  static SocketLink connected( SocketConnection socket, String remoteAddress, String localAddress )
+      throws IOException
+  {
+    SocketLink link = new SocketLink( socket, remoteAddress );
+    DataOutputStream dataout = new DataOutputStream( link.out );
+    dataout.writeUTF( localAddress );
+    dataout.flush();
+    return link;
+  }
+
+  /**
+   * a connection the remote node opened. its address is read by the first
+   * getRemoteAddress()
+   * @param timeout most ms to wait for the address
+   */
+  static SocketLink accepted( SocketConnection socket, long timeout ) throws IOException
+  {
+    SocketLink link = new SocketLink( socket, null );
+    link.timeout = timeout;
+    return link;
+  }
+
+  /**
+   * read the address the remote node listens on, and check that its host is
+   * the one the connection comes from
+   */
+  private String readAddress() throws IOException
+  {
+    // the streams have no read timeout, so read only what has arrived
+    long deadline = System.currentTimeMillis() + timeout;
+    await( 2, deadline );
+    DataInputStream datain = new DataInputStream( in );
+    int len = datain.readUnsignedShort();
+    if ( len == 0 || len > MAX_ADDRESS )
+      throw new IOException( "bad address length " + len );
+    await( len, deadline );
+    byte[] b = new byte[len];
+    datain.readFully( b );
+    String address = new String( b, "UTF-8" );
+
+    int colon = address.lastIndexOf( ':' );
+    if ( colon <= 0 || !address.substring( 0, colon ).equals( socket.getAddress() ) )
+      throw new IOException( "address " + address + " from " + socket.getAddress() );
+    try {
+      Integer.parseInt( address.substring( colon + 1 ) );
+    }
+    catch (NumberFormatException ex) {
+      throw new IOException( "bad address " + address );
+    }
+    return address;
+  }
+
+  /**
+   * wait until n bytes can be read without blocking
+   */
+  private void await( int n, long deadline ) throws IOException
+  {
+    while ( in.available() < n )
+    {
+      if ( System.currentTimeMillis() > deadline )
+        throw new IOException( "no address from " + socket.getAddress() );
+      try {
+        Thread.sleep( 10 );
+      }
+      catch (InterruptedException ex) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * @return the address the remote node listens on. for an accepted
+   * connection, the first call reads it, and waits at most the timeout
+   */
+  public synchronized String getRemoteAddress() throws IOException
+  {
+    if ( remoteAddress == null )
+      remoteAddress = readAddress();
+    return remoteAddress;
+  }
+
+  public InputStream openInputStream() throws IOException
+  {
+    return in;
+  }
+
+  public DataInputStream openDataInputStream() throws IOException
+  {
+    return new DataInputStream( in );
+  }
+
+  public OutputStream openOutputStream() throws IOException
+  {
+    return out;
+  }
+
+  public DataOutputStream openDataOutputStream() throws IOException
+  {
+    return new DataOutputStream( out );
+  }
+
+  public void close() throws IOException
+  {
+    try {
+      in.close();
+      out.close();
+    }
+    catch (IOException ex) {
+      // the socket is closed anyway
+    }
+    socket.close();
+  }
+}
@@ -0,0 +1,139 @@
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import java.io.*;
+
+/**
+ * Transport implementation on top of TCP sockets.
+ * <p>Description: Each node listens on its own port of the given host (usually
+ * localhost). There is no service discovery protocol for plain sockets, so
+ * discover() reports every other port of a configured port range as a candidate
+ * peer; ports that nobody listens on simply fail to connect. This allow us to
+ * run several BlueChat nodes on one machine, or in one VM, over real TCP
+ * connections.</p>
+ * <p>A node is known by the address it listens on, host:port, in both
+ * directions: the connecting side tells it first thing, see SocketLink.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public class SocketTransport implements Transport
+{
+  // url scheme of socket connection urls
+  public final static String SCHEME = "socket://";
+  // ms an accepted connection has to tell its address, see SocketLink
+  public final static int ADDRESS_TIMEOUT = 5000;
+
+  // host that all nodes listen on
+  String host;
+  // port of the local BlueChat service
+  int port;
+  // port range that discover() will report
+  int firstPort;
+  int lastPort;
+
+  // local BlueChat service server object
+  ServerSocketConnection server;
+
+  public SocketTransport( int port, int firstPort, int lastPort )
+  {
+    this( "127.0.0.1", port, firstPort, lastPort );
+  }
+
+  public SocketTransport( String host, int port, int firstPort, int lastPort )
+  {
+    this.host = host;
+    this.port = port;
+    this.firstPort = firstPort;
+    this.lastPort = lastPort;
+  }
+
+  public void init() throws IOException
+  {
+  }
+
+  public void listen() throws IOException
+  {
+    server = (ServerSocketConnection) Connector.open( SCHEME + ":" + port );
+  }
+
+  public StreamConnection accept() throws IOException
+  {
+    SocketConnection c = (SocketConnection) server.acceptAndOpen();
+    try {
+      c.setSocketOption( SocketConnection.DELAY, 0 );
+      return SocketLink.accepted( c, ADDRESS_TIMEOUT );
+    }
+    catch (IOException ex) {
+      c.close();
+      throw ex;
+    }
+  }
+
+  public StreamConnection connect( String url ) throws IOException
+  {
+    SocketConnection c = (SocketConnection) Connector.open( url );
+    try {
+      // chat messages are small, do not let Nagle hold them back
+      c.setSocketOption( SocketConnection.DELAY, 0 );
+      return SocketLink.connected( c, url.substring( SCHEME.length() ), getLocalAddress() );
+    }
+    catch (IOException ex) {
+      c.close();
+      throw ex;
+    }
+  }
+
+  public void discover( final TransportListener listener ) throws IOException
+  {
+    new Thread() {
+      public void run()
+      {
+        for ( int p = firstPort; p <= lastPort; p++ )
+        {
+          if ( p != port )
+          {
+            String address = host + ":" + p;
+            listener.peerDiscovered( address, address, SCHEME + address );
+          }
+        }
+        listener.discoveryCompleted();
+      }
+    }.start();
+  }
+
+  public String getRemoteAddress( StreamConnection c ) throws IOException
+  {
+    return ((SocketLink) c).getRemoteAddress();
+  }
+
+  public String getRemoteName( StreamConnection c )
+  {
+    try {
+      return getRemoteAddress( c );
+    }
+    catch (IOException ex) {
+      return "Unknown";
+    }
+  }
+
+  public String getLocalAddress()
+  {
+    return host + ":" + port;
+  }
+
+  public boolean isPollable()
+  {
+    return true;
+  }
+
+  public void close()
+  {
+    try {
+      // this close will interrupt server.acceptAndOpen()
+      server.close();
+    }
+    catch (IOException ex) {
+    }
+  }
+}
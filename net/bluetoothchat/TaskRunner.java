@@ -0,0 +1,22 @@
+package net.bluetoothchat;
+
+/**
+ * Strategy for running the reader and sender of an EndPoint.
+ * <p>Description: By default NetLayer starts a new platform thread for each
+ * Reader and Sender. A TaskRunner can be given to NetLayer.setTaskRunner() to run
+ * them some other way. On a server VM that supports virtual threads, an
+ * implementation can simply do Thread.ofVirtual().start(task), or hand the task
+ * to any thread pool. The task blocks in read or wait for the lifetime of the
+ * EndPoint, so a bounded pool must have a thread for every task.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public interface TaskRunner
+{
+  /**
+   * Run a task asynchronously.
+   * @param task a Reader or Sender
+   */
+  public void execute( Runnable task );
+}
@@ -0,0 +1,41 @@
+package net.bluetoothchat;
+
+import java.io.*;
+
+/**
+ * Storage that file transfers stream from and to.
+ * <p>Description: NetLayer never holds a whole file in memory. An outgoing file
+ * is read chunk by chunk from the stream returned by openRead(), an incoming file
+ * is written chunk by chunk to the stream returned by openWrite(). Both take an
+ * offset, so that a transfer interrupted by a broken link goes on where it
+ * stopped. See FileTransfer and NetLayer.setTransferStore().</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public interface TransferStore
+{
+  /**
+   * open a file to be sent
+   * @param name file name as given to NetLayer.sendFile()
+   * @param offset number of bytes to skip
+   */
+  public InputStream openRead( String name, long offset ) throws IOException;
+
+  /**
+   * make room for a file offered by a remote node. a file that exists is
+   * never replaced, the new one gets a name of its own
+   * @param name file name offered by the remote node, without a path
+   * @return the name to pass to openWrite()
+   * @throws IOException if the file cannot be stored under such a name
+   */
+  public String create( String name ) throws IOException;
+
+  /**
+   * open a file to be received. the bytes before offset were written by an
+   * earlier call and must be kept, the rest is thrown away
+   * @param name file name returned by create()
+   * @param offset number of bytes already received
+   */
+  public OutputStream openWrite( String name, long offset ) throws IOException;
+}
@@ -0,0 +1,78 @@
+package net.bluetoothchat;
+
+import javax.microedition.io.*;
+import java.io.*;
+
+/**
+ * Link layer abstraction used by NetLayer.
+ * <p>Description: A Transport knows how to publish the local BlueChat service,
+ * accept connections from remote nodes, open connections to remote nodes and
+ * discover other BlueChat nodes. NetLayer, EndPoint, Reader and Sender only see
+ * the StreamConnection objects handed out by the Transport, so the same chat engine
+ * can run over bluetooth (BluetoothTransport), over an in-process loopback
+ * (LoopbackTransport) or over TCP sockets (SocketTransport).</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public interface Transport
+{
+  /**
+   * Initialize the underlying stack. Called once by NetLayer.init() before
+   * any other method.
+   */
+  public void init() throws IOException;
+
+  /**
+   * Create and publish the local BlueChat service.
+   */
+  public void listen() throws IOException;
+
+  /**
+   * Wait for the next remote node to connect to the local BlueChat service.
+   * This method blocks until a client connects or the transport is closed.
+   */
+  public StreamConnection accept() throws IOException;
+
+  /**
+   * Open a connection to a remote BlueChat service.
+   * @param url connection url as reported by TransportListener.peerDiscovered()
+   */
+  public StreamConnection connect( String url ) throws IOException;
+
+  /**
+   * Start searching for remote BlueChat services. This method returns
+   * immediately, the result is reported to the listener.
+   */
+  public void discover( TransportListener listener ) throws IOException;
+
+  /**
+   * @return a string that uniquely identifies the remote node of a connection
+   */
+  public String getRemoteAddress( StreamConnection c ) throws IOException;
+
+  /**
+   * @return a human readable name for the remote node of a connection. this is
+   * only a temporary name until the handshake tells us the nick name.
+   */
+  public String getRemoteName( StreamConnection c );
+
+  /**
+   * @return a string that uniquely identifies the local node. it must not
+   * take more than FrameCodec.MAX_NAME bytes, otherwise the node does not
+   * relay, see NetLayer.setRelay()
+   */
+  public String getLocalAddress();
+
+  /**
+   * @return true if the input streams of this transport report buffered data
+   * through available(), so that connections can be serviced by a PollingEngine
+   * instead of dedicated Reader and Sender threads
+   */
+  public boolean isPollable();
+
+  /**
+   * Stop the local BlueChat service. A pending accept() will be interrupted.
+   */
+  public void close();
+}
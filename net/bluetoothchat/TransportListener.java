@@ -0,0 +1,26 @@
+package net.bluetoothchat;
+
+/**
+ * Callback interface for Transport discovery.
+ * <p>Description: Transport implementations report each discovered remote
+ * BlueChat service through peerDiscovered(), and call discoveryCompleted() when
+ * the search is over.</p>
+ * <p>Copyright: Copyright (c) 2009</p>
+ * @author P Coder
+ * @version 1.0
+ */
+public interface TransportListener
+{
+  /**
+   * A remote BlueChat service is found.
+   * @param address unique address of the remote node
+   * @param name temporary display name of the remote node
+   * @param url connection url to pass to Transport.connect()
+   */
+  public void peerDiscovered( String address, String name, String url );
+
+  /**
+   * No more remote BlueChat services will be reported for this discovery.
+   */
+  public void discoveryCompleted();
+}